@@ -0,0 +1,252 @@
+package mas.cv1;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.*;
+
+//forwards the chat messages to the clients in batches
+//
+//every message gets a sequence number and is kept in the ChatHistory, each client remembers the sequence number
+//of the next message it should get. The messages which arrive between two flushes are sent together, the clients
+//which wait for the same messages get one ACL message with all of them as receivers. The clients confirm the batches
+//(CONFIRM with the next sequence number they expect); a client with too many unconfirmed batches is slow and gets no
+//more batches until it confirms. If it falls behind the history, the messages it missed are dropped and it is told
+//how many of them there were.
+//
+//A client which joins late can ask for a replay of the history from some sequence number up to the first message it
+//got live. The replays are sent separately from the live batches (in the REPLAY_CONVERSATION), a batch per replay at a
+//time, so a long replay does not delay the live messages.
+public class BroadcastEngine {
+
+    //user defined parameters of the batches - the sequence number of the first message and the number of messages
+    public static final String SEQ_PARAMETER = "X-Seq";
+    public static final String COUNT_PARAMETER = "X-Count";
+    //the conversation id of the batches sent as a replay of the history
+    public static final String REPLAY_CONVERSATION = "replay";
+
+    int maxInFlight;
+    int maxBatch;
+    long ackTimeout;
+
+    ChatHistory history;
+
+    LinkedHashMap<AID, Client> clients = new LinkedHashMap<AID, Client>();
+    LinkedHashMap<AID, Replay> replays = new LinkedHashMap<AID, Replay>();
+
+    class Client {
+
+        AID aid;
+        //the first message the client got live
+        long startSeq;
+        //the next message to send to the client
+        long nextSeq;
+        //the sent batches which were not confirmed yet - the sequence number after the batch and the time it was sent
+        ArrayDeque<long[]> inFlight = new ArrayDeque<long[]>();
+
+        //statistics
+        long batches = 0;
+        long dropped = 0;
+        long timeouts = 0;
+        long confirmed = 0;
+        long totalLag = 0;
+        long maxLag = 0;
+
+        Client(AID aid, long nextSeq) {
+            this.aid = aid;
+            this.startSeq = nextSeq;
+            this.nextSeq = nextSeq;
+        }
+
+        public String toString() {
+            return aid.getLocalName() + ": batches=" + batches + ", behind=" + (history.getNextSeq() - nextSeq)
+                    + ", inFlight=" + inFlight.size() + ", dropped=" + dropped + ", timeouts=" + timeouts
+                    + ", avgLag=" + (confirmed == 0 ? 0 : totalLag / confirmed) + " ms, maxLag=" + maxLag + " ms";
+        }
+    }
+
+    //a replay of the history for a client, the messages from next to end (excluding) are still to be sent
+    class Replay {
+
+        AID aid;
+        long next;
+        long end;
+
+        Replay(AID aid, long next, long end) {
+            this.aid = aid;
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    public BroadcastEngine(ChatHistory history, int maxInFlight, int maxBatch, long ackTimeout) {
+        this.history = history;
+        this.maxInFlight = maxInFlight;
+        this.maxBatch = maxBatch;
+        this.ackTimeout = ackTimeout;
+    }
+
+    //a new client gets only the messages published from now on
+    public void addClient(AID aid) {
+        if (!clients.containsKey(aid)) {
+            clients.put(aid, new Client(aid, history.getNextSeq()));
+        }
+    }
+
+    public void removeClient(AID aid) {
+        clients.remove(aid);
+        replays.remove(aid);
+    }
+
+    public long publish(String line) {
+        return history.append(line);
+    }
+
+    //the client wants the messages from seq up to the messages it gets live, the client is added if it is not known
+    //yet (the request may come before the notification from the DF)
+    public void requestReplay(AID aid, long seq) {
+        addClient(aid);
+        long end = clients.get(aid).startSeq;
+        if (seq < end) {
+            replays.put(aid, new Replay(aid, seq, end));
+        }
+    }
+
+    //sends the next batch of each replay
+    public void replay(Agent agent) {
+
+        Iterator<Replay> it = replays.values().iterator();
+        while (it.hasNext()) {
+            Replay r = it.next();
+
+            //the beginning of the replay is no longer in the history
+            if (r.next < history.getFirstSeq()) {
+                long missed = Math.min(r.end, history.getFirstSeq()) - r.next;
+                r.next += missed;
+
+                ACLMessage notice = new ACLMessage(ACLMessage.INFORM);
+                notice.addReceiver(r.aid);
+                notice.setConversationId(REPLAY_CONVERSATION);
+                notice.setContent("[" + missed + " messages no longer in history]");
+                agent.send(notice);
+            }
+
+            if (r.next < r.end) {
+                long end = Math.min(r.end, r.next + maxBatch);
+                ACLMessage batch = createBatch(r.next, end);
+                batch.setConversationId(REPLAY_CONVERSATION);
+                batch.addReceiver(r.aid);
+                agent.send(batch);
+                r.next = end;
+            }
+
+            if (r.next >= r.end) {
+                it.remove();
+            }
+        }
+    }
+
+    public boolean isReplaying() {
+        return !replays.isEmpty();
+    }
+
+    //the client got all messages before seq
+    public void confirm(AID aid, long seq, long now) {
+        Client c = clients.get(aid);
+        if (c == null)
+            return;
+
+        while (!c.inFlight.isEmpty() && c.inFlight.peekFirst()[0] <= seq) {
+            long lag = now - c.inFlight.removeFirst()[1];
+            c.confirmed++;
+            c.totalLag += lag;
+            c.maxLag = Math.max(c.maxLag, lag);
+        }
+    }
+
+    //sends the new messages to all clients which are not too slow
+    public void flush(Agent agent, long now) {
+
+        //the clients waiting for the same messages get the same batch
+        HashMap<Long, ArrayList<Client>> groups = new HashMap<Long, ArrayList<Client>>();
+
+        for (Client c : clients.values()) {
+
+            //the batches which were not confirmed in time are considered lost (or the client does not confirm at all)
+            while (!c.inFlight.isEmpty() && now - c.inFlight.peekFirst()[1] > ackTimeout) {
+                c.inFlight.removeFirst();
+                c.timeouts++;
+            }
+
+            if (c.nextSeq == history.getNextSeq() || c.inFlight.size() >= maxInFlight)
+                continue;
+
+            //the client is behind the history, drop what it missed
+            if (c.nextSeq < history.getFirstSeq()) {
+                long missed = history.getFirstSeq() - c.nextSeq;
+                c.dropped += missed;
+                c.nextSeq = history.getFirstSeq();
+
+                ACLMessage notice = new ACLMessage(ACLMessage.INFORM);
+                notice.addReceiver(c.aid);
+                notice.setContent("[" + missed + " messages dropped]");
+                agent.send(notice);
+            }
+
+            ArrayList<Client> group = groups.get(c.nextSeq);
+            if (group == null) {
+                group = new ArrayList<Client>();
+                groups.put(c.nextSeq, group);
+            }
+            group.add(c);
+        }
+
+        for (Map.Entry<Long, ArrayList<Client>> e : groups.entrySet()) {
+
+            long start = e.getKey();
+            long end = Math.min(history.getNextSeq(), start + maxBatch);
+
+            ACLMessage batch = createBatch(start, end);
+            for (Client c : e.getValue()) {
+                batch.addReceiver(c.aid);
+                c.nextSeq = end;
+                c.inFlight.addLast(new long[] {end, now});
+                c.batches++;
+            }
+
+            agent.send(batch);
+        }
+    }
+
+    //the messages from start to end (excluding), one per line
+    ACLMessage createBatch(long start, long end) {
+
+        StringBuilder content = new StringBuilder();
+        for (long seq = start; seq < end; seq++) {
+            if (seq > start)
+                content.append('\n');
+            content.append(history.get(seq));
+        }
+
+        ACLMessage batch = new ACLMessage(ACLMessage.INFORM);
+        batch.setContent(content.toString());
+        batch.addUserDefinedParameter(SEQ_PARAMETER, String.valueOf(start));
+        batch.addUserDefinedParameter(COUNT_PARAMETER, String.valueOf(end - start));
+        return batch;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("messages: ").append(history.getNextSeq()).append(", in history: ")
+                .append(history.getNextSeq() - history.getFirstSeq()).append(", clients: ").append(clients.size());
+        for (Client c : clients.values()) {
+            sb.append("\n  ").append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package mas.cv1;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//the history of the chat - the last messages encoded in a fixed size ring buffer outside of the heap
+//
+//each message is stored as its length (4 bytes) and its UTF-8 bytes, the messages are numbered by sequence numbers
+//and the position of each message in the buffer is kept in a ring index. When a new message does not fit, the oldest
+//messages are forgotten. The history is used only from the server agent's thread, so it is not synchronized.
+public class ChatHistory {
+
+    ByteBuffer buffer;
+    int capacity;
+
+    //the position (counted from the start of the history, not wrapped) of the message seq is index[seq % index.length]
+    long[] index;
+
+    long firstSeq = 0;
+    long nextSeq = 0;
+    //the position where the next message is written
+    long writePos = 0;
+
+    public ChatHistory(int capacityBytes, int maxMessages) {
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+        this.capacity = capacityBytes;
+        this.index = new long[maxMessages];
+    }
+
+    public long append(String message) {
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + bytes.length;
+        if (size > capacity) {
+            //a message longer than the whole history is cut
+            bytes = java.util.Arrays.copyOf(bytes, capacity - 4);
+            size = capacity;
+        }
+
+        //forget the oldest messages until the new one fits (both in the buffer and in the index)
+        while (firstSeq < nextSeq && (writePos + size - index[(int) (firstSeq % index.length)] > capacity
+                || nextSeq - firstSeq >= index.length)) {
+            firstSeq++;
+        }
+
+        index[(int) (nextSeq % index.length)] = writePos;
+        write(writePos, intToBytes(bytes.length));
+        write(writePos + 4, bytes);
+        writePos += size;
+
+        return nextSeq++;
+    }
+
+    //returns the message, or null if it is not in the history (anymore)
+    public String get(long seq) {
+        if (seq < firstSeq || seq >= nextSeq)
+            return null;
+
+        long pos = index[(int) (seq % index.length)];
+        byte[] len = new byte[4];
+        read(pos, len);
+        byte[] bytes = new byte[bytesToInt(len)];
+        read(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getFirstSeq() {
+        return firstSeq;
+    }
+
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    //copies the bytes to the ring, the part which does not fit to the end continues at the start
+    void write(long pos, byte[] bytes) {
+        int p = (int) (pos % capacity);
+        int first = Math.min(bytes.length, capacity - p);
+        ByteBuffer b = buffer.duplicate();
+        b.position(p);
+        b.put(bytes, 0, first);
+        if (first < bytes.length) {
+            b.position(0);
+            b.put(bytes, first, bytes.length - first);
+        }
+    }
+
+    void read(long pos, byte[] bytes) {
+        int p = (int) (pos % capacity);
+        int first = Math.min(bytes.length, capacity - p);
+        ByteBuffer b = buffer.duplicate();
+        b.position(p);
+        b.get(bytes, 0, first);
+        if (first < bytes.length) {
+            b.position(0);
+            b.get(bytes, first, bytes.length - first);
+        }
+    }
+
+    static byte[] intToBytes(int v) {
+        return new byte[] {(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+
+    static int bytesToInt(byte[] b) {
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+}
@@ -1,6 +1,8 @@
 package mas.cv1;
 
 import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.OneShotBehaviour;
 import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
@@ -9,20 +11,125 @@ import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
 
 
-//a simple agent which sends "hi" message every 5 seconds to the messaging server
+//a simple agent which sends "hi" message every 5 seconds to the messaging server and prints the messages the server
+//forwards to it
+//
+//the client which joins late can ask the server for the messages sent before it joined, the argument replay=sequence
+//number of the first message (default 0 - everything the server still has, -1 no replay)
 public class SimpleChatClient extends Agent {
 
     @Override
     protected void setup() {
         super.setup();
 
+        //messaging-client service description, the server finds the clients in the DF
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("messaging-client");
+        sd.setName("client");
+
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(this.getAID());
+        dfd.addServices(sd);
+
+        try {
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+
+        long replay = 0;
+        if (getArguments() != null) {
+            for (Object arg : getArguments()) {
+                String[] kv = arg.toString().split("=", 2);
+                if (kv[0].equals("replay")) {
+                    replay = Long.parseLong(kv[1]);
+                }
+            }
+        }
+        if (replay >= 0) {
+            this.addBehaviour(new ReplayRequestBehavior(replay));
+        }
+
         //add the sending behavior
         this.addBehaviour(new MsgSendingBehavior(this));
+        //add the receiving behavior
+        this.addBehaviour(new MsgReceivingBehavior());
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
+
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //prints the batches of messages from the server and confirms them
+    class MsgReceivingBehavior extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+
+            ACLMessage msg;
+            while ((msg = myAgent.receive()) != null) {
+
+                //the replayed messages are not confirmed, the server sends them at its own pace
+                if (BroadcastEngine.REPLAY_CONVERSATION.equals(msg.getConversationId())) {
+                    System.out.println(getLocalName() + " replayed: " + msg.getContent());
+                    continue;
+                }
+
+                System.out.println(getLocalName() + " got: " + msg.getContent());
+
+                //the server sends the next batch after we confirm this one
+                String seq = msg.getUserDefinedParameter(BroadcastEngine.SEQ_PARAMETER);
+                String count = msg.getUserDefinedParameter(BroadcastEngine.COUNT_PARAMETER);
+                if (seq != null && count != null) {
+                    ACLMessage confirm = new ACLMessage(ACLMessage.CONFIRM);
+                    confirm.addReceiver(msg.getSender());
+                    confirm.setContent(String.valueOf(Long.parseLong(seq) + Long.parseLong(count)));
+                    myAgent.send(confirm);
+                }
+            }
+
+            block();
+        }
+    }
+
+    //asks the server for the messages sent before we joined
+    class ReplayRequestBehavior extends OneShotBehaviour {
+
+        long from;
+
+        ReplayRequestBehavior(long from) {
+            this.from = from;
+        }
+
+        @Override
+        public void action() {
+
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType("messaging-server");
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.addServices(sd);
+
+            try {
+                DFAgentDescription[] servers = DFService.search(myAgent, dfd);
+                if (servers.length == 0) {
+                    System.err.println("No servers found");
+                    return;
+                }
+                ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                msg.addReceiver(servers[0].getName());
+                msg.setContent("replay " + from);
+                myAgent.send(msg);
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     //simple behavior which sends a message every 5 seconds
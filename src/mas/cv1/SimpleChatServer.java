@@ -2,17 +2,29 @@ package mas.cv1;
 
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.proto.SubscriptionInitiator;
 
 import java.util.Date;
 
 //a simple agent which registers itself to the DF, prints received messages and forwards themto other agents
+//
+//the clients are found by a subscription to the DF and the messages are forwarded to them in batches by the
+//BroadcastEngine, the arguments are window=ms between two batches (default 50), history=number of messages kept for
+//slow and late clients (default 10000), historyBytes=size of the history buffer (default 4 MB), inFlight=number of
+//unconfirmed batches of a client (default 4), replayWindow=ms between two batches of a replay (default 10)
+//
+//a client asks for a replay of the history by a REQUEST with content 'replay <sequence number>'
 public class SimpleChatServer extends Agent {
 
+    BroadcastEngine engine;
+
     @Override
     protected void setup() {
         super.setup();
@@ -34,14 +46,50 @@ public class SimpleChatServer extends Agent {
             e.printStackTrace();
         }
 
+        long window = 50;
+        int history = 10000;
+        int historyBytes = 4 << 20;
+        int inFlight = 4;
+        long replayWindow = 10;
+        if (getArguments() != null) {
+            for (Object arg : getArguments()) {
+                String[] kv = arg.toString().split("=", 2);
+                if (kv[0].equals("window")) {
+                    window = Long.parseLong(kv[1]);
+                } else if (kv[0].equals("history")) {
+                    history = Integer.parseInt(kv[1]);
+                } else if (kv[0].equals("historyBytes")) {
+                    historyBytes = Integer.parseInt(kv[1]);
+                } else if (kv[0].equals("inFlight")) {
+                    inFlight = Integer.parseInt(kv[1]);
+                } else if (kv[0].equals("replayWindow")) {
+                    replayWindow = Long.parseLong(kv[1]);
+                }
+            }
+        }
+        engine = new BroadcastEngine(new ChatHistory(historyBytes, history), inFlight, 1000, 5000);
+
+        //subscribe to the DF to learn about the clients which come and go
+        ServiceDescription csd = new ServiceDescription();
+        csd.setType("messaging-client");
+        DFAgentDescription template = new DFAgentDescription();
+        template.addServices(csd);
+        this.addBehaviour(new ClientSubscriptionBehaviour(this, DFService.createSubscriptionMessage(this, getDefaultDF(), template, null)));
+
         //add behavior which takes care of the receiving and forwarding of messages
         this.addBehaviour(new MessageReceivingBehaviour());
+        //add behavior which sends the received messages to the clients
+        this.addBehaviour(new FlushBehaviour(this, window));
+        //add behavior which sends the replays of the history, separately from the live messages
+        this.addBehaviour(new ReplayBehaviour(this, replayWindow));
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
 
+        System.out.println(engine);
+
         //derigister at the end
         try {
             DFService.deregister(this);
@@ -51,48 +99,98 @@ public class SimpleChatServer extends Agent {
     }
 
 
-    //a behavior which receives, prints and forwards the messages
-    class MessageReceivingBehaviour extends CyclicBehaviour {
+    //keeps the set of clients up to date, the DF notifies us about every registration and deregistration
+    class ClientSubscriptionBehaviour extends SubscriptionInitiator {
+
+        public ClientSubscriptionBehaviour(Agent a, ACLMessage subscription) {
+            super(a, subscription);
+        }
 
         @Override
-        public void action() {
-            ACLMessage msg = myAgent.receive();
-            if (msg == null) {
-                block();
-                return;
+        protected void handleInform(ACLMessage inform) {
+            try {
+                for (DFAgentDescription dfd : DFService.decodeNotification(inform.getContent())) {
+                    //a description without services means the agent deregistered
+                    if (dfd.getAllServices().hasNext()) {
+                        engine.addClient(dfd.getName());
+                    } else {
+                        engine.removeClient(dfd.getName());
+                    }
+                }
+            } catch (FIPAException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            //print the received message
-            System.out.println("[" + new Date().toString() + "] " + msg.getSender().getName() + ": " + msg.getContent());
+    //a behavior which receives and prints the messages, and receives the confirmations of the batches
+    class MessageReceivingBehaviour extends CyclicBehaviour {
 
-            //description of the messaging-client service (for searching)
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("messaging-client");
+        //the notifications from the DF belong to the subscription
+        MessageTemplate notFromDF = MessageTemplate.not(MessageTemplate.MatchSender(getDefaultDF()));
 
-            //description of the client agents
-            DFAgentDescription dfd = new DFAgentDescription();
-            dfd.addServices(sd);
+        @Override
+        public void action() {
 
-            try {
+            //process all messages in the queue, block only when it is empty
+            ACLMessage msg;
+            while ((msg = myAgent.receive(notFromDF)) != null) {
+
+                if (msg.getPerformative() == ACLMessage.CONFIRM) {
+                    try {
+                        engine.confirm(msg.getSender(), Long.parseLong(msg.getContent()), System.currentTimeMillis());
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
 
-                //search for the clients
-                DFAgentDescription[] clients = DFService.search(myAgent, dfd);
+                if (msg.getPerformative() == ACLMessage.REQUEST && msg.getContent() != null
+                        && msg.getContent().startsWith("replay ")) {
+                    try {
+                        engine.requestReplay(msg.getSender(), Long.parseLong(msg.getContent().substring(7).trim()));
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
 
-                //create the message for the clients
-                ACLMessage toClients = new ACLMessage(ACLMessage.INFORM);
-                toClients.setContent(msg.getSender().getName() + ": " + msg.getContent());
+                //print the received message
+                System.out.println("[" + new Date().toString() + "] " + msg.getSender().getName() + ": " + msg.getContent());
 
-                //add all clients to the recipients and send the message
-                for (DFAgentDescription client : clients) {
-                    toClients.addReceiver(client.getName());
-                }
-                myAgent.send(toClients);
-            } catch (FIPAException e) {
-                e.printStackTrace();
+                engine.publish(msg.getSender().getName() + ": " + msg.getContent());
             }
 
             block();
         }
     }
 
+    //sends the messages received since the last tick to the clients
+    class FlushBehaviour extends TickerBehaviour {
+
+        public FlushBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+            engine.flush(myAgent, System.currentTimeMillis());
+        }
+    }
+
+    //sends a batch of each replay in progress, the live messages are not delayed by a long replay
+    class ReplayBehaviour extends TickerBehaviour {
+
+        public ReplayBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+            if (engine.isReplaying()) {
+                engine.replay(myAgent);
+            }
+        }
+    }
+
 }
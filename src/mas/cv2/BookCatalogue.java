@@ -0,0 +1,162 @@
+package mas.cv2;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+//the catalogue of the books for sale (the title of a book and its price)
+//
+//the catalogue is read by the behaviours of the agent and changed by the GUI. The readers take an immutable snapshot
+//and never lock, the writers build a new snapshot and swap it, so a listing is always consistent even if the GUI
+//changes many books at the same time. Every change increases the version of the catalogue.
+public class BookCatalogue {
+
+    //an immutable state of the catalogue, the titles are sorted
+    public static class Snapshot {
+
+        final long version;
+        final String[] titles;
+        final int[] prices;
+        //the version in which the book was added or its price changed
+        final long[] changed;
+
+        Snapshot(long version, String[] titles, int[] prices, long[] changed) {
+            this.version = version;
+            this.titles = titles;
+            this.prices = prices;
+            this.changed = changed;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return titles.length;
+        }
+
+        public String getTitle(int i) {
+            return titles[i];
+        }
+
+        public int getPrice(int i) {
+            return prices[i];
+        }
+
+        public long getChanged(int i) {
+            return changed[i];
+        }
+
+        //the position of the book, or a negative number if it is not in the catalogue
+        public int indexOf(String title) {
+            return Arrays.binarySearch(titles, title);
+        }
+
+        public boolean contains(String title) {
+            return indexOf(title) >= 0;
+        }
+
+        //the price of the book, or -1 if it is not in the catalogue
+        public int getPrice(String title) {
+            int i = indexOf(title);
+            return i < 0 ? -1 : prices[i];
+        }
+    }
+
+    AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(
+            new Snapshot(0, new String[0], new int[0], new long[0]));
+
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    public boolean contains(String title) {
+        return current.get().contains(title);
+    }
+
+    public int getPrice(String title) {
+        return current.get().getPrice(title);
+    }
+
+    public void put(String title, int price) {
+        putAll(new String[] {title}, new int[] {price});
+    }
+
+    public void putAll(Map<String, Integer> books) {
+        String[] titles = new String[books.size()];
+        int[] prices = new int[books.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> e : books.entrySet()) {
+            titles[i] = e.getKey();
+            prices[i] = e.getValue();
+            i++;
+        }
+        putAll(titles, prices);
+    }
+
+    //adds the books or changes their prices, all of them in one new version
+    public synchronized void putAll(String[] titles, int[] prices) {
+
+        Snapshot old = current.get();
+        long version = old.version + 1;
+
+        //the titles of the new books
+        HashSet<String> added = new HashSet<String>();
+        for (String t : titles) {
+            if (!old.contains(t)) {
+                added.add(t);
+            }
+        }
+
+        int size = old.titles.length + added.size();
+        String[] newTitles = Arrays.copyOf(old.titles, size);
+        int j = old.titles.length;
+        for (String t : added) {
+            newTitles[j++] = t;
+        }
+        Arrays.sort(newTitles);
+
+        int[] newPrices = new int[size];
+        long[] newChanged = new long[size];
+        for (int i = 0; i < size; i++) {
+            int o = old.indexOf(newTitles[i]);
+            if (o >= 0) {
+                newPrices[i] = old.prices[o];
+                newChanged[i] = old.changed[o];
+            }
+        }
+
+        for (int i = 0; i < titles.length; i++) {
+            int n = Arrays.binarySearch(newTitles, titles[i]);
+            if (newChanged[n] == 0 || newPrices[n] != prices[i]) {
+                newPrices[n] = prices[i];
+                newChanged[n] = version;
+            }
+        }
+
+        current.set(new Snapshot(version, newTitles, newPrices, newChanged));
+    }
+
+    public synchronized boolean remove(String title) {
+
+        Snapshot old = current.get();
+        int i = old.indexOf(title);
+        if (i < 0)
+            return false;
+
+        int size = old.titles.length - 1;
+        String[] newTitles = new String[size];
+        int[] newPrices = new int[size];
+        long[] newChanged = new long[size];
+        System.arraycopy(old.titles, 0, newTitles, 0, i);
+        System.arraycopy(old.titles, i + 1, newTitles, i, size - i);
+        System.arraycopy(old.prices, 0, newPrices, 0, i);
+        System.arraycopy(old.prices, i + 1, newPrices, i, size - i);
+        System.arraycopy(old.changed, 0, newChanged, 0, i);
+        System.arraycopy(old.changed, i + 1, newChanged, i, size - i);
+
+        current.set(new Snapshot(old.version + 1, newTitles, newPrices, newChanged));
+        return true;
+    }
+}
@@ -38,7 +38,7 @@ import java.util.*;
 
 public class BookSellerAgent extends Agent {
 	// The catalogue of books for sale (maps the title of a book to its price)
-	private Hashtable catalogue;
+	private BookCatalogue catalogue;
 	// The GUI by means of which the user can add books in the catalogue
 	private BookSellerGui myGui;
 
@@ -47,9 +47,8 @@ public class BookSellerAgent extends Agent {
 	// Put agent initializations here
 	protected void setup() {
 		// Create the catalogue
-		catalogue = new Hashtable();
-        catalogue.put("LOTR", rnd.nextInt(100) + 50);
-        catalogue.put("Hobbit", rnd.nextInt(50) + 40);
+		catalogue = new BookCatalogue();
+        catalogue.putAll(new String[] {"LOTR", "Hobbit"}, new int[] {rnd.nextInt(100) + 50, rnd.nextInt(50) + 40});
 
 		// Create and show the GUI 
 		myGui = new BookSellerGui(this);
@@ -81,15 +80,19 @@ public class BookSellerAgent extends Agent {
 	}
 
     /**
-     This is invoked by the GUI when the user adds a new book for sale
+     This is invoked by the GUI when the user adds a new book for sale, the catalogue can be changed from any thread
      */
     public void updateCatalogue(final String title, final int price) {
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                catalogue.put(title, new Integer(price));
-                System.out.println(title+" inserted into catalogue. Price = "+price);
-            }
-        } );
+        catalogue.put(title, price);
+        System.out.println(title+" inserted into catalogue. Price = "+price);
+    }
+
+    /**
+     Adds or changes the prices of several books at once, the behaviours see either none or all of the changes
+     */
+    public void updateCatalogue(Map<String, Integer> books) {
+        catalogue.putAll(books);
+        System.out.println(books.size()+" books inserted into catalogue.");
     }
 
     // Put agent clean-up operations here
@@ -141,7 +144,7 @@ public class BookSellerAgent extends Agent {
                 throw new NotUnderstoodException("invalid request format");
             }
 
-            if (!catalogue.containsKey(fields[1])) {
+            if (!catalogue.contains(fields[1])) {
                 throw new RefuseException("book not available");
             }
 
@@ -182,9 +185,10 @@ public class BookSellerAgent extends Agent {
 
             StringBuilder books = new StringBuilder();
 
-            //books are delimited by "|"
-            for (Object book: catalogue.keySet()) {
-                books.append(book.toString() + "|");
+            //books are delimited by "|", the snapshot does not change while we build the list
+            BookCatalogue.Snapshot snapshot = catalogue.snapshot();
+            for (int i = 0; i < snapshot.size(); i++) {
+                books.append(snapshot.getTitle(i)).append('|');
             }
 
             ACLMessage reply = request.createReply();
@@ -221,10 +225,11 @@ public class BookSellerAgent extends Agent {
             String bookTitle = fields[1];
 
             //if we have the book, we offer our price
-            if (catalogue.containsKey(bookTitle)) {
+            int price = catalogue.getPrice(bookTitle);
+            if (price >= 0) {
                 ACLMessage reply = cfp.createReply();
                 reply.setPerformative(ACLMessage.PROPOSE);
-                reply.setContent(catalogue.get(bookTitle).toString());
+                reply.setContent(String.valueOf(price));
                 return reply;
             }
 
@@ -239,7 +244,7 @@ public class BookSellerAgent extends Agent {
             String[] fields = content.split("\\|");
             String bookTitle = fields[1];
 
-            if (!catalogue.containsKey(bookTitle)) {
+            if (!catalogue.contains(bookTitle)) {
                 throw new FailureException("book no longer available");
             }
 
@@ -32,6 +32,7 @@ import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
 import jade.core.AID;
 import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
@@ -40,15 +41,17 @@ import jade.domain.FIPAService;
 import jade.lang.acl.ACLMessage;
 import jade.proto.AchieveREInitiator;
 import jade.proto.ContractNetInitiator;
-import jade.util.leap.Iterator;
-import jade.util.leap.List;
 import mas.cv3.onto.BookInfo;
+import mas.cv3.onto.BookListPage;
 import mas.cv3.onto.BookOntology;
 import mas.cv3.onto.GetBookList;
+import mas.cv3.onto.SearchBooks;
 import mas.cv3.onto.SellBook;
 
 import javax.swing.*;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.Vector;
 
@@ -58,9 +61,18 @@ public class BookBuyerAgent extends Agent {
 
     private Random rnd = new Random();
 
+    //the number of books in a page of the list of books
+    static final int PAGE_SIZE = 100;
+
     private Codec codec = new SLCodec();
     private Ontology onto = BookOntology.getInstance();
 
+    //the prices we learned from the lists of books and the proposals
+    private QuoteCache quotes;
+
+    //the round-trip times of the sellers, the deadlines for their replies
+    private RttEstimator rtt;
+
 	// Put agent initializations here
 	protected void setup() {
 		// Printout a welcome message
@@ -93,33 +105,93 @@ public class BookBuyerAgent extends Agent {
             addBehaviour(new ListBooks(this, null, sellerAgents));
         }
 
-        //ask everyone about for the price of LOTR and buy it from the cheapest
+        //the arguments are title=the book to buy (default LOTR), purchases=how many times to buy it (default 1),
+        //period=ms between the purchases (default 5000), quoteTtl=ms a price is trusted (default 60000),
+        //search=words to search for in the titles (no search by default), prefix=true to search for the beginnings
+        //of the words, rttMin and rttMax=limits of the reply deadlines in ms (default 200 and 30000)
+        String title = "LOTR";
+        String search = null;
+        boolean prefix = false;
+        int purchases = 1;
+        long period = 5000;
+        long quoteTtl = 60000;
+        long rttMin = 200;
+        long rttMax = 30000;
+        if (getArguments() != null) {
+            for (Object arg : getArguments()) {
+                String[] kv = arg.toString().split("=", 2);
+                if (kv[0].equals("title")) {
+                    title = kv[1];
+                } else if (kv[0].equals("purchases")) {
+                    purchases = Integer.parseInt(kv[1]);
+                } else if (kv[0].equals("period")) {
+                    period = Long.parseLong(kv[1]);
+                } else if (kv[0].equals("quoteTtl")) {
+                    quoteTtl = Long.parseLong(kv[1]);
+                } else if (kv[0].equals("search")) {
+                    search = kv[1];
+                } else if (kv[0].equals("prefix")) {
+                    prefix = Boolean.parseBoolean(kv[1]);
+                } else if (kv[0].equals("rttMin")) {
+                    rttMin = Long.parseLong(kv[1]);
+                } else if (kv[0].equals("rttMax")) {
+                    rttMax = Long.parseLong(kv[1]);
+                }
+            }
+        }
+        quotes = new QuoteCache(quoteTtl);
+        rtt = new RttEstimator(10000, rttMin, rttMax, 1024);
+
+        //the sellers search their catalogues and send only the matching books
+        if (search != null && sellerAgents.length > 0) {
+            addBehaviour(new FindBooks(this, sellerAgents, search, prefix));
+        }
+
+        //buy the book from the cheapest seller, the first time we ask everyone about the price
         if (sellerAgents.length > 0) {
-            addBehaviour(new BuyBook(this, null, sellerAgents));
+            addBehaviour(new PurchaseBehaviour(this, period, title, purchases));
         }
 
 	}
 
     //this behavior obtains the list of books sold by the sellers
+    //
+    //the list is sent in pages of PAGE_SIZE books, the books of a page are printed and forgotten, and if the seller has
+    //more books, the next page is requested by a new ListBooks (with the cursor from the page)
     private class ListBooks extends AchieveREInitiator {
 
         AID[] sellers;
+        String cursor;
+        //the number of books listed so far (for the next pages of a single seller)
+        int listed;
+        boolean morePages = false;
+        //when the requests were sent, for the round-trip times of the sellers
+        long sent;
 
         public ListBooks(Agent a, ACLMessage msg, AID[] sellers) {
+            this(a, msg, sellers, null, 0);
+        }
+
+        public ListBooks(Agent a, ACLMessage msg, AID[] sellers, String cursor, int listed) {
             super(a, msg);
             this.sellers = sellers;
+            this.cursor = cursor;
+            this.listed = listed;
         }
 
         @Override
         protected Vector prepareRequests(ACLMessage request) {
 
             Vector requests = new Vector();
+            sent = System.currentTimeMillis();
 
             try {
                 for (AID seller : sellers) {
                     ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
                     msg.addReceiver(seller);
                     GetBookList gbl = new GetBookList();
+                    gbl.setPageSize(PAGE_SIZE);
+                    gbl.setCursor(cursor);
                     msg.setOntology(onto.getName());
                     msg.setLanguage(codec.getName());
                     getContentManager().fillContent(msg, new Action(seller, gbl));
@@ -143,13 +215,16 @@ public class BookBuyerAgent extends Agent {
         //handle the REFUSE message if and agents refuses to send the list of books
         @Override
         protected void handleRefuse(ACLMessage refuse) {
+            rtt.sample(refuse.getSender(), System.currentTimeMillis() - sent);
             System.out.println("Agent " + refuse.getSender() + " refused to send the list of books");
         }
 
-        //process the answers -- list of books from individual agents
+        //process the answers -- a page of the list of books from individual agents
         @Override
         protected void handleInform(ACLMessage inform) {
 
+            rtt.sample(inform.getSender(), System.currentTimeMillis() - sent);
+
             ContentElement ce = null;
             try {
                 ce = getContentManager().extractContent(inform);
@@ -159,21 +234,223 @@ public class BookBuyerAgent extends Agent {
                 e.printStackTrace();
             }
             Result r = (Result)ce;
-            List books = r.getItems();
+            BookListPage page = (BookListPage)r.getValue();
             System.out.print("Agent " + inform.getSender() + " List of books: ");
-            Iterator it = books.iterator();
-            while (it.hasNext()) {
-                BookInfo bi = (BookInfo)it.next();
+            long now = System.currentTimeMillis();
+            for (BookInfo bi : page.getBooks()) {
                 System.out.print("("+bi.getName()+","+bi.getPrice()+") ");
+                if (bi.getPrice() != null) {
+                    quotes.put(bi.getName(), inform.getSender(), bi.getPrice(), page.getVersion(), now);
+                }
             }
             System.out.println();
+
+            int total = listed + page.getBooks().size();
+            if (page.getNextCursor() != null) {
+                morePages = true;
+                myAgent.addBehaviour(new ListBooks(myAgent, null, new AID[] {inform.getSender()}, page.getNextCursor(), total));
+            } else {
+                System.out.println("Agent " + inform.getSender() + " listed " + total + " books (version " + page.getVersion() + ")");
+            }
         }
 
         //this method is called when we receive all responses from the sellers, it may be a good place to select
         // the cheapest seller and buy the from the agent
         @Override
         protected void handleAllResultNotifications(Vector resultNotifications) {
-            System.out.println("All replies received");
+            if (!morePages) {
+                System.out.println("All replies received");
+            }
+        }
+    }
+
+    //this behavior asks the sellers for the books with the given words in the title
+    private class FindBooks extends AchieveREInitiator {
+
+        AID[] sellers;
+        String query;
+        boolean prefix;
+
+        public FindBooks(Agent a, AID[] sellers, String query, boolean prefix) {
+            super(a, null);
+            this.sellers = sellers;
+            this.query = query;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected Vector prepareRequests(ACLMessage request) {
+
+            Vector requests = new Vector();
+
+            try {
+                for (AID seller : sellers) {
+                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                    msg.addReceiver(seller);
+                    SearchBooks sb = new SearchBooks();
+                    sb.setQuery(query);
+                    sb.setPrefix(prefix);
+                    sb.setLimit(PAGE_SIZE);
+                    msg.setOntology(onto.getName());
+                    msg.setLanguage(codec.getName());
+                    getContentManager().fillContent(msg, new Action(seller, sb));
+                    requests.add(msg);
+                }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+
+            return requests;
+        }
+
+        //the matching books of a seller, we remember their prices
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            try {
+                Result r = (Result)getContentManager().extractContent(inform);
+                BookListPage page = (BookListPage)r.getValue();
+                System.out.print("Agent " + inform.getSender() + " found for '" + query + "': ");
+                long now = System.currentTimeMillis();
+                for (BookInfo bi : page.getBooks()) {
+                    System.out.print("("+bi.getName()+","+bi.getPrice()+") ");
+                    quotes.put(bi.getName(), inform.getSender(), bi.getPrice(), page.getVersion(), now);
+                }
+                System.out.println();
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //buys the book from the cheapest seller we know about, if we do not know any price, we send a CFP to all sellers
+    void buy(String title) {
+        QuoteCache.Quote q = quotes.getCheapest(title, System.currentTimeMillis());
+        if (q != null) {
+            System.out.println("Buying " + q);
+            addBehaviour(new DirectBuy(this, q));
+        } else {
+            addBehaviour(new BuyBook(this, null, sellerAgents, title));
+        }
+    }
+
+    //the version of the seller's catalogue the reply comes from, -1 if the seller does not send it
+    static long getCatalogueVersion(ACLMessage msg) {
+        String version = msg.getUserDefinedParameter(BookCatalogue.VERSION_PARAMETER);
+        return version == null ? -1 : Long.parseLong(version);
+    }
+
+    //buys the book the given number of times, one purchase each period
+    private class PurchaseBehaviour extends TickerBehaviour {
+
+        String title;
+        int purchases;
+
+        public PurchaseBehaviour(Agent a, long period, String title, int purchases) {
+            super(a, period);
+            this.title = title;
+            this.purchases = purchases;
+        }
+
+        @Override
+        public void onStart() {
+            super.onStart();
+            onTick();
+        }
+
+        @Override
+        protected void onTick() {
+            if (purchases <= 0) {
+                stop();
+                return;
+            }
+            purchases--;
+            buy(title);
+        }
+    }
+
+    //buys the book directly from the seller with the cheapest quote, if the seller refuses (the price changed or it
+    //does not have the book), the quote is forgotten and we fall back to the CFP
+    private class DirectBuy extends AchieveREInitiator {
+
+        QuoteCache.Quote quote;
+        boolean bought = false;
+        boolean replied = false;
+        long sent;
+
+        public DirectBuy(Agent a, QuoteCache.Quote quote) {
+            super(a, null);
+            this.quote = quote;
+        }
+
+        @Override
+        protected Vector prepareRequests(ACLMessage request) {
+
+            Vector requests = new Vector();
+
+            try {
+                ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                msg.addReceiver(quote.getSeller());
+                BookInfo bi = new BookInfo();
+                bi.setName(quote.getTitle());
+                bi.setPrice(quote.getPrice());  //the seller refuses if the price is higher now
+                SellBook sb = new SellBook();
+                sb.setBi(bi);
+                msg.setOntology(onto.getName());
+                msg.setLanguage(codec.getName());
+                getContentManager().fillContent(msg, new Action(quote.getSeller(), sb));
+                sent = System.currentTimeMillis();
+                msg.setReplyByDate(new Date(sent + rtt.getTimeout(quote.getSeller())));
+                requests.add(msg);
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+
+            return requests;
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            replied(inform);
+            try {
+                Result r = (Result)getContentManager().extractContent(inform);
+                BookInfo bi = (BookInfo)r.getValue();
+                bought = true;
+                System.out.println("Agent: " + inform.getSender().getName() + " sold " + bi.getName() + " for " + bi.getPrice());
+                quotes.put(bi.getName(), inform.getSender(), bi.getPrice(), getCatalogueVersion(inform), System.currentTimeMillis());
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        protected void handleRefuse(ACLMessage refuse) {
+            replied(refuse);
+            System.out.println("Agent " + refuse.getSender() + " refused to sell " + quote.getTitle() + ": " + refuse.getContent());
+        }
+
+        void replied(ACLMessage reply) {
+            replied = true;
+            rtt.sample(reply.getSender(), System.currentTimeMillis() - sent);
+        }
+
+        @Override
+        public int onEnd() {
+            if (!replied) {
+                rtt.timeout(quote.getSeller());
+            }
+            if (!bought) {
+                quotes.remove(quote.getTitle(), quote.getSeller());
+                addBehaviour(new BuyBook(myAgent, null, sellerAgents, quote.getTitle()));
+            }
+            return super.onEnd();
         }
     }
 
@@ -181,30 +458,35 @@ public class BookBuyerAgent extends Agent {
     private class BuyBook extends ContractNetInitiator {
 
         AID[] sellers;
+        String title;
+        //when the CFPs were sent, for the round-trip times of the sellers
+        long sent;
 
-        public BuyBook(Agent a, ACLMessage cfp, AID[] sellers) {
+        public BuyBook(Agent a, ACLMessage cfp, AID[] sellers, String title) {
             super(a, cfp);
             this.sellers = sellers;
+            this.title = title;
         }
 
         @Override
         protected Vector prepareCfps(ACLMessage cfp) {
 
             Vector cfps = new Vector();
+            sent = System.currentTimeMillis();
+            long timeout = rtt.getTimeout(Arrays.asList(sellers));
 
             try {
                 for (AID seller: sellers) {
                     ACLMessage msg = new ACLMessage(ACLMessage.CFP);
                     msg.addReceiver(seller);
                     BookInfo bi = new BookInfo();
-                    bi.setName("LOTR");
+                    bi.setName(title);
                     SellBook sb = new SellBook();
                     sb.setBi(bi);
                     msg.setOntology(onto.getName());
                     msg.setLanguage(codec.getName());
                     getContentManager().fillContent(msg, new Action(seller, sb));
-                    Date t = new Date();
-                    msg.setReplyByDate(new Date(t.getTime() + 10000)); //agents must reply in 10 seconds
+                    msg.setReplyByDate(new Date(sent + timeout)); //all the sellers should have replied by then
                     cfps.add(msg);
                 }
             }
@@ -220,9 +502,15 @@ public class BookBuyerAgent extends Agent {
         //process individual proposals
         @Override
         protected void handlePropose(ACLMessage propose, Vector acceptances) {
+            rtt.sample(propose.getSender(), System.currentTimeMillis() - sent);
             System.out.println("Agent: " + propose.getSender().getName() + " proposed " + propose.getContent());
         }
 
+        @Override
+        protected void handleRefuse(ACLMessage refuse) {
+            rtt.sample(refuse.getSender(), System.currentTimeMillis() - sent);
+        }
+
         //this is the last step - it processes the inform that the book is sold to us
         @Override
         protected void handleInform(ACLMessage inform) {
@@ -234,11 +522,23 @@ public class BookBuyerAgent extends Agent {
         protected void handleAllResponses(Vector responses, Vector acceptances) {
             System.out.println("Got all responses");
 
+            //the sellers which did not reply in time
+            HashSet<AID> missing = new HashSet<AID>(Arrays.asList(sellers));
+            for (int i = 0; i < responses.size(); i++) {
+                missing.remove(((ACLMessage)responses.get(i)).getSender());
+            }
+            for (AID seller : missing) {
+                rtt.timeout(seller);
+            }
+
             //find the best price
             int bestPrice = Integer.MAX_VALUE;
             ACLMessage bestResponse = null;
             for (int i = 0; i < responses.size(); i++) {
                 ACLMessage response = (ACLMessage)responses.get(i);
+                if (response.getPerformative() == ACLMessage.REFUSE) {
+                    quotes.remove(title, response.getSender());
+                }
                 if (response.getPerformative() == ACLMessage.PROPOSE) {
                     ContentElement ce = null;
                     try {
@@ -252,6 +552,7 @@ public class BookBuyerAgent extends Agent {
 
                     BookInfo bi = (BookInfo)r.getValue();
                     int price = bi.getPrice();
+                    quotes.put(title, response.getSender(), price, getCatalogueVersion(response), System.currentTimeMillis());
                     if (price < bestPrice) {
                         bestResponse = response;
                         bestPrice = price;
@@ -277,7 +578,7 @@ public class BookBuyerAgent extends Agent {
 	// Put agent clean-up operations here
 	protected void takeDown() {
         // Printout a dismissal message
-		System.out.println("Buyer-agent "+ getAID().getName()+" terminating.");
+		System.out.println("Buyer-agent "+ getAID().getName()+" terminating, " + quotes + ", " + rtt + ".");
 	}
 
 }
@@ -31,7 +31,6 @@ import jade.content.onto.OntologyException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
 import jade.core.Agent;
-import jade.core.behaviours.OneShotBehaviour;
 import jade.core.behaviours.ReceiverBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
@@ -40,32 +39,38 @@ import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.proto.AchieveREResponder;
 import jade.proto.ContractNetResponder;
-import jade.util.leap.ArrayList;
 import mas.cv3.onto.BookInfo;
+import mas.cv3.onto.BookListPage;
 import mas.cv3.onto.BookOntology;
 import mas.cv3.onto.GetBookList;
+import mas.cv3.onto.SearchBooks;
 import mas.cv3.onto.SellBook;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.Random;
 
 public class BookSellerAgent extends Agent {
 	// The catalogue of books for sale (maps the title of a book to its price)
-	private Hashtable catalogue;
+	private BookCatalogue catalogue;
 	// The GUI by means of which the user can add books in the catalogue
 	private BookSellerGui myGui;
 
     private Codec codec = new SLCodec();
     private Ontology onto = BookOntology.getInstance();
+    //the decoded contents of the messages, each message is decoded at most once
+    private ContentCache cache;
 
     private Random rnd = new Random();
 
+    //the largest page of the catalogue sent in one message
+    static final int MAX_PAGE_SIZE = 1000;
+
 	// Put agent initializations here
 	protected void setup() {
 		// Create the catalogue
-		catalogue = new Hashtable();
-        catalogue.put("LOTR", rnd.nextInt(100) + 50);
-        catalogue.put("Hobbit", rnd.nextInt(50) + 40);
+		catalogue = new BookCatalogue();
+        catalogue.putAll(new String[] {"LOTR", "Hobbit"}, new int[] {rnd.nextInt(100) + 50, rnd.nextInt(50) + 40});
 
 		// Create and show the GUI
 		myGui = new BookSellerGui(this);
@@ -74,6 +79,7 @@ public class BookSellerAgent extends Agent {
         //first, register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
         this.getContentManager().registerOntology(onto);
+        cache = new ContentCache(getContentManager(), 256);
 
 		// Register the book-selling service in the yellow pages
 		DFAgentDescription dfd = new DFAgentDescription();
@@ -89,27 +95,35 @@ public class BookSellerAgent extends Agent {
 			fe.printStackTrace();
 		}
 
-        //behavior which processes the ListBooks requuests
-        addBehaviour(new ListAvailableBooks(this, MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST), new MessageTemplate(new MatchListBooks()))));
+        //behavior which processes the ListBooks requuests, the templates look at the action decoded by the cache, so
+        //each message is decoded only once for all the templates and the behaviour which handles it
+        addBehaviour(new ListAvailableBooks(this, cache.matchAction(ACLMessage.REQUEST, GetBookList.class)));
+
+        //behavior which searches the titles of the books
+        addBehaviour(new SearchAvailableBooks(this, cache.matchAction(ACLMessage.REQUEST, SearchBooks.class)));
 
         //behavir which sells the books
-        addBehaviour(new HandleSellBook(this, MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST), new MessageTemplate(new MatchSellBook()))));
+        addBehaviour(new HandleSellBook(this, cache.matchAction(ACLMessage.REQUEST, SellBook.class)));
 
         //behavior to return an offer on a book and sells it eventually
-        addBehaviour(new OfferBookPrices(this, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
+        addBehaviour(new OfferBookPrices(this, cache.matchAction(ACLMessage.CFP, SellBook.class)));
 
 	}
 
     /**
-     This is invoked by the GUI when the user adds a new book for sale
+     This is invoked by the GUI when the user adds a new book for sale, the catalogue can be changed from any thread
      */
     public void updateCatalogue(final String title, final int price) {
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                catalogue.put(title, new Integer(price));
-                System.out.println(title+" inserted into catalogue. Price = "+price);
-            }
-        } );
+        catalogue.put(title, price);
+        System.out.println(title+" inserted into catalogue. Price = "+price);
+    }
+
+    /**
+     Adds or changes the prices of several books at once, the behaviours see either none or all of the changes
+     */
+    public void updateCatalogue(Map<String, Integer> books) {
+        catalogue.putAll(books);
+        System.out.println(books.size()+" books inserted into catalogue.");
     }
 
     // Put agent clean-up operations here
@@ -127,45 +141,6 @@ public class BookSellerAgent extends Agent {
 		System.out.println("Seller-agent "+getAID().getName()+" terminating.");
 	}
 
-    //MessageTemplate, which matches only ListBook messages
-    private class MatchListBooks implements MessageTemplate.MatchExpression {
-
-        @Override
-        public boolean match(ACLMessage aclMessage) {
-            System.err.println(aclMessage.getContent());
-            ContentElement ce = null;
-            try {
-                ce = getContentManager().extractContent(aclMessage);
-            } catch (Codec.CodecException e) {
-                e.printStackTrace();
-            } catch (OntologyException e) {
-                e.printStackTrace();
-            }
-
-            Action a = (Action)ce;
-            return a.getAction() instanceof GetBookList;
-        }
-    }
-
-    //MessageTemplate, which matches only SellBook messages
-    private class MatchSellBook implements MessageTemplate.MatchExpression {
-
-        @Override
-        public boolean match(ACLMessage aclMessage) {
-            System.err.println(aclMessage.getContent());
-            ContentElement ce = null;
-            try {
-                ce = getContentManager().extractContent(aclMessage);
-            } catch (Codec.CodecException e) {
-                e.printStackTrace();
-            } catch (OntologyException e) {
-                e.printStackTrace();
-            }
-
-            Action a = (Action)ce;
-            return a.getAction() instanceof SellBook;
-        }
-    }
     //this behavior sells a single book
     private class HandleSellBook extends AchieveREResponder {
 
@@ -177,7 +152,7 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage handleRequest(ACLMessage request) throws NotUnderstoodException, RefuseException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(request);
+                ContentElement ce = cache.extract(request);
                 Action act = (Action)ce;
 
                 if (!(act.getAction() instanceof SellBook))
@@ -185,16 +160,24 @@ public class BookSellerAgent extends Agent {
 
                 SellBook sb = (SellBook)act.getAction();
 
-                if (!catalogue.containsKey(sb.getBi().getName())) {
+                BookCatalogue.Snapshot snapshot = catalogue.snapshot();
+                int price = snapshot.getPrice(sb.getBi().getName());
+                if (price < 0) {
                     throw new RefuseException("book not available");
                 }
 
+                //the buyer may send the price it expects (from an older list or proposal), we do not sell for more
+                if (sb.getBi().getPrice() != null && price > sb.getBi().getPrice()) {
+                    throw new RefuseException("price changed");
+                }
+
                 ACLMessage reply = request.createReply();
                 reply.setPerformative(ACLMessage.INFORM);
+                reply.addUserDefinedParameter(BookCatalogue.VERSION_PARAMETER, String.valueOf(snapshot.getVersion()));
 
                 BookInfo bi = new BookInfo();
                 bi.setName(sb.getBi().getName());
-                bi.setPrice((Integer)catalogue.get(sb.getBi().getName()));
+                bi.setPrice(price);
 
                 getContentManager().fillContent(reply, new Result(sb, bi));
 
@@ -224,7 +207,7 @@ public class BookSellerAgent extends Agent {
 
             ContentElement ce = null;
             try {
-                ce = getContentManager().extractContent(request);
+                ce = cache.extract(request);
             } catch (Codec.CodecException e) {
                 e.printStackTrace();
             } catch (OntologyException e) {
@@ -233,6 +216,10 @@ public class BookSellerAgent extends Agent {
             Action a = (Action)ce;
 
             if (a.getAction() instanceof GetBookList) {
+                //the next pages are sent right away, without the AGREE
+                if (((GetBookList)a.getAction()).getCursor() != null) {
+                    return null;
+                }
                 ACLMessage reply = request.createReply();
                 reply.setPerformative(ACLMessage.AGREE);
                 return reply;
@@ -247,22 +234,48 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage prepareResultNotification(ACLMessage request, ACLMessage response) throws FailureException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(request);
+                ContentElement ce = cache.extract(request);
                 Action a = (Action)ce;
 
                 if (a.getAction() instanceof GetBookList) {
 
-                    ArrayList bis = new ArrayList();
-                    for (Object key : catalogue.keySet()) {
+                    GetBookList gbl = (GetBookList)a.getAction();
+                    int pageSize = MAX_PAGE_SIZE;
+                    if (gbl.getPageSize() != null && gbl.getPageSize() > 0) {
+                        pageSize = Math.min(gbl.getPageSize(), MAX_PAGE_SIZE);
+                    }
+                    long sinceVersion = gbl.getSinceVersion() != null ? gbl.getSinceVersion() : -1;
+
+                    //the snapshot does not change while we build the page
+                    BookCatalogue.Snapshot snapshot = catalogue.snapshot();
+
+                    //the titles are sorted, the page starts after the cursor
+                    int i = 0;
+                    if (gbl.getCursor() != null) {
+                        i = snapshot.indexOf(gbl.getCursor());
+                        i = i >= 0 ? i + 1 : -i - 1;
+                    }
+
+                    ArrayList<BookInfo> bis = new ArrayList<BookInfo>();
+                    for (; i < snapshot.size() && bis.size() < pageSize; i++) {
+                        if (snapshot.getChanged(i) <= sinceVersion)
+                            continue;
                         BookInfo bi = new BookInfo();
-                        bi.setName(key.toString());
-                        bi.setPrice((Integer)catalogue.get(key));
+                        bi.setName(snapshot.getTitle(i));
+                        bi.setPrice(snapshot.getPrice(i));
                         bis.add(bi);
                     }
 
+                    BookListPage page = new BookListPage();
+                    page.setBooks(bis);
+                    page.setVersion(snapshot.getVersion());
+                    if (i < snapshot.size()) {
+                        page.setNextCursor(snapshot.getTitle(i - 1));
+                    }
+
                     ACLMessage reply = request.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    getContentManager().fillContent(reply, new Result(a.getAction(), bis));
+                    getContentManager().fillContent(reply, new Result(a.getAction(), page));
                     return reply;
                 }
             } catch (Codec.CodecException e) {
@@ -275,6 +288,53 @@ public class BookSellerAgent extends Agent {
         }
     }
 
+    //this behavior answers the searches from the index of the titles, only the matching books are sent
+    private class SearchAvailableBooks extends AchieveREResponder {
+
+        public SearchAvailableBooks(Agent a, MessageTemplate mt) {
+            super(a, mt);
+        }
+
+        @Override
+        protected ACLMessage handleRequest(ACLMessage request) throws NotUnderstoodException, RefuseException {
+
+            try {
+                Action a = (Action)cache.extract(request);
+                SearchBooks sb = (SearchBooks)a.getAction();
+
+                int limit = MAX_PAGE_SIZE;
+                if (sb.getLimit() != null && sb.getLimit() > 0) {
+                    limit = Math.min(sb.getLimit(), MAX_PAGE_SIZE);
+                }
+                boolean prefix = sb.getPrefix() != null && sb.getPrefix();
+
+                BookCatalogue.Snapshot snapshot = catalogue.snapshot();
+                ArrayList<BookInfo> bis = new ArrayList<BookInfo>();
+                for (String title : catalogue.getIndex().search(sb.getQuery(), prefix, limit, snapshot)) {
+                    BookInfo bi = new BookInfo();
+                    bi.setName(title);
+                    bi.setPrice(snapshot.getPrice(title));
+                    bis.add(bi);
+                }
+
+                BookListPage page = new BookListPage();
+                page.setBooks(bis);
+                page.setVersion(snapshot.getVersion());
+
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.INFORM);
+                getContentManager().fillContent(reply, new Result(sb, page));
+                return reply;
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+
+            throw new NotUnderstoodException("");
+        }
+    }
+
     //implementatio of the contract-net respoder, offers a price and waits for the decision of the initiator
     private class OfferBookPrices extends ContractNetResponder {
 
@@ -287,7 +347,7 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage handleCfp(ACLMessage cfp) throws RefuseException, FailureException, NotUnderstoodException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(cfp);
+                ContentElement ce = cache.extract(cfp);
                 Action ac = (Action)ce;
 
                 if (ac.getAction() instanceof SellBook) {
@@ -295,12 +355,15 @@ public class BookSellerAgent extends Agent {
                     String bookTitle = sb.getBi().getName();
 
                     //if we own the book, we propose our price
-                    if (catalogue.containsKey(bookTitle)) {
+                    BookCatalogue.Snapshot snapshot = catalogue.snapshot();
+                    int price = snapshot.getPrice(bookTitle);
+                    if (price >= 0) {
                         ACLMessage reply = cfp.createReply();
                         reply.setPerformative(ACLMessage.PROPOSE);
+                        reply.addUserDefinedParameter(BookCatalogue.VERSION_PARAMETER, String.valueOf(snapshot.getVersion()));
                         BookInfo bi = new BookInfo();
                         bi.setName(bookTitle);
-                        bi.setPrice((Integer)catalogue.get(bookTitle));
+                        bi.setPrice(price);
                         getContentManager().fillContent(reply, new Result(sb, bi));
                         return reply;
                     }
@@ -322,20 +385,23 @@ public class BookSellerAgent extends Agent {
         protected ACLMessage handleAcceptProposal(ACLMessage cfp, ACLMessage propose, ACLMessage accept) throws FailureException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(cfp);
+                ContentElement ce = cache.extract(cfp);
                 Action ac = (Action)ce;
                 SellBook sb = (SellBook)ac.getAction();
                 String bookTitle = sb.getBi().getName();
 
-                if (!catalogue.containsKey(bookTitle)) {
+                BookCatalogue.Snapshot snapshot = catalogue.snapshot();
+                int price = snapshot.getPrice(bookTitle);
+                if (price < 0) {
                     throw new FailureException("book no longer available");
                 }
 
                 ACLMessage reply = accept.createReply();
                 reply.setPerformative(ACLMessage.INFORM);
+                reply.addUserDefinedParameter(BookCatalogue.VERSION_PARAMETER, String.valueOf(snapshot.getVersion()));
                 BookInfo bi = new BookInfo();
                 bi.setName(sb.getBi().getName());
-                bi.setPrice((Integer)catalogue.get(bi.getName()));
+                bi.setPrice(price);
                 getContentManager().fillContent(reply, new Result(ac.getAction(), bi));
                 return reply;
 
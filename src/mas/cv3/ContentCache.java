@@ -0,0 +1,111 @@
+package mas.cv3;
+
+import jade.content.ContentElement;
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes the content of each message at most once. The decoded content is remembered for the message (the messages
+ * are compared by identity, the ACLMessage does not override equals), so the templates, the responders and the
+ * handlers which look at the same message share one decoding. The messages we fill through the cache are remembered
+ * too, so our own PROPOSE does not have to be decoded when the buyer accepts it.
+ *
+ * An entry is valid only as long as the content of the message is the same string, a message whose content was set
+ * again is decoded again. The cache keeps only the last capacity messages, it is used from the agent's thread only.
+ */
+public class ContentCache {
+
+    //the decoded content, or the exception if the content could not be decoded
+    static class Entry {
+        String content;
+        ContentElement element;
+        Exception error;
+    }
+
+    ContentManager cm;
+    LinkedHashMap<ACLMessage, Entry> entries;
+
+    long hits = 0;
+    long misses = 0;
+
+    public ContentCache(ContentManager cm, final int capacity) {
+        this.cm = cm;
+        this.entries = new LinkedHashMap<ACLMessage, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ACLMessage, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public ContentElement extract(ACLMessage msg) throws Codec.CodecException, OntologyException {
+
+        Entry e = entries.get(msg);
+        if (e != null && e.content == msg.getContent()) {
+            hits++;
+        } else {
+            misses++;
+            e = new Entry();
+            e.content = msg.getContent();
+            try {
+                e.element = cm.extractContent(msg);
+            } catch (Codec.CodecException | OntologyException ex) {
+                e.error = ex;
+            }
+            entries.put(msg, e);
+        }
+
+        if (e.error instanceof Codec.CodecException)
+            throw (Codec.CodecException) e.error;
+        if (e.error instanceof OntologyException)
+            throw (OntologyException) e.error;
+        return e.element;
+    }
+
+    public void fill(ACLMessage msg, ContentElement ce) throws Codec.CodecException, OntologyException {
+        cm.fillContent(msg, ce);
+
+        Entry e = new Entry();
+        e.content = msg.getContent();
+        e.element = ce;
+        entries.put(msg, e);
+    }
+
+    /**
+     * Returns the content of the message, or the action if the content is an Action, null if it cannot be decoded.
+     */
+    public Object getAction(ACLMessage msg) {
+        try {
+            ContentElement ce = extract(msg);
+            return ce instanceof Action ? ((Action) ce).getAction() : ce;
+        } catch (Codec.CodecException e) {
+            return null;
+        } catch (OntologyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A template matching the messages with the performative whose action (or content) is of the given type.
+     */
+    public MessageTemplate matchAction(int performative, final Class<?> type) {
+        return MessageTemplate.and(MessageTemplate.MatchPerformative(performative),
+                new MessageTemplate(new MessageTemplate.MatchExpression() {
+                    @Override
+                    public boolean match(ACLMessage msg) {
+                        return type.isInstance(getAction(msg));
+                    }
+                }));
+    }
+
+    public String toString() {
+        return "content cache: " + hits + " hits, " + misses + " decoded";
+    }
+}
@@ -0,0 +1,121 @@
+package mas.cv3;
+
+import jade.core.AID;
+
+import java.util.HashMap;
+
+//the prices of the books the buyer learned from the lists of books and from the proposals of the sellers
+//
+//a quote is the price of a book at a seller together with the version of the seller's catalogue it comes from and
+//the time we learned it. A quote is used only until it is older than the ttl, and only while we do not know about a
+//newer version of the seller's catalogue (any change of the catalogue may have changed the price).
+public class QuoteCache {
+
+    public static class Quote {
+
+        final String title;
+        final AID seller;
+        final int price;
+        final long version;
+        final long time;
+
+        Quote(String title, AID seller, int price, long version, long time) {
+            this.title = title;
+            this.seller = seller;
+            this.price = price;
+            this.version = version;
+            this.time = time;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public AID getSeller() {
+            return seller;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String toString() {
+            return title + " from " + seller.getLocalName() + " for " + price + " (version " + version + ")";
+        }
+    }
+
+    long ttl;
+
+    //title -> seller -> quote
+    HashMap<String, HashMap<AID, Quote>> quotes = new HashMap<String, HashMap<AID, Quote>>();
+    //the newest known version of the catalogue of each seller
+    HashMap<AID, Long> versions = new HashMap<AID, Long>();
+
+    long hits = 0;
+    long misses = 0;
+
+    public QuoteCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public void put(String title, AID seller, int price, long version, long now) {
+
+        Long known = versions.get(seller);
+        if (known == null || known < version) {
+            versions.put(seller, version);
+        } else if (known > version) {
+            //an old message, we already know a newer catalogue
+            return;
+        }
+
+        HashMap<AID, Quote> byTitle = quotes.get(title);
+        if (byTitle == null) {
+            byTitle = new HashMap<AID, Quote>();
+            quotes.put(title, byTitle);
+        }
+        byTitle.put(seller, new Quote(title, seller, price, version, now));
+    }
+
+    //the seller does not sell the book (anymore)
+    public void remove(String title, AID seller) {
+        HashMap<AID, Quote> byTitle = quotes.get(title);
+        if (byTitle != null) {
+            byTitle.remove(seller);
+        }
+    }
+
+    //the cheapest valid quote of the book, null if there is none
+    public Quote getCheapest(String title, long now) {
+
+        Quote best = null;
+        HashMap<AID, Quote> byTitle = quotes.get(title);
+        if (byTitle != null) {
+            for (Quote q : byTitle.values()) {
+                if (!isValid(q, now))
+                    continue;
+                if (best == null || q.price < best.price) {
+                    best = q;
+                }
+            }
+        }
+
+        if (best == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return best;
+    }
+
+    boolean isValid(Quote q, long now) {
+        return now - q.time <= ttl && q.version >= versions.get(q.seller);
+    }
+
+    public String toString() {
+        return "quote cache: " + hits + " hits, " + misses + " misses";
+    }
+}
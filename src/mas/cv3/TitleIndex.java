@@ -0,0 +1,113 @@
+package mas.cv3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+//an inverted index of the titles of the books - maps each word (in lower case) to the titles which contain it
+//
+//the index is updated with every change of the catalogue (a title is added before the new snapshot is published and
+//removed after it), the searches run at the same time without locking. A search finds the titles with all the words of
+//the query, only the words of the query are looked up, so the time does not depend on the size of the catalogue.
+public class TitleIndex {
+
+    ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>> words = new ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>>();
+
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (String t : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!t.isEmpty()) {
+                tokens.add(t);
+            }
+        }
+        return tokens;
+    }
+
+    public void add(String title) {
+        for (String w : tokenize(title)) {
+            ConcurrentSkipListSet<String> titles = words.get(w);
+            if (titles == null) {
+                ConcurrentSkipListSet<String> created = new ConcurrentSkipListSet<String>();
+                titles = words.putIfAbsent(w, created);
+                if (titles == null) {
+                    titles = created;
+                }
+            }
+            titles.add(title);
+        }
+    }
+
+    //the empty sets of words are left in the index, they are reused if the word appears again
+    public void remove(String title) {
+        for (String w : tokenize(title)) {
+            ConcurrentSkipListSet<String> titles = words.get(w);
+            if (titles != null) {
+                titles.remove(title);
+            }
+        }
+    }
+
+    /**
+     * Returns the titles (sorted) which contain all words of the query and which are in the catalogue snapshot, at most
+     * limit of them. If prefix is true, a word of the query matches all words starting with it.
+     */
+    public ArrayList<String> search(String query, boolean prefix, int limit, BookCatalogue.Snapshot snapshot) {
+
+        ArrayList<String> result = new ArrayList<String>();
+        ArrayList<String> tokens = tokenize(query);
+        if (tokens.isEmpty())
+            return result;
+
+        //the titles for each word of the query, the smallest set is scanned and the others are checked
+        ArrayList<NavigableSet<String>> sets = new ArrayList<NavigableSet<String>>();
+        for (String t : tokens) {
+            NavigableSet<String> titles = prefix ? getPrefixTitles(t) : words.get(t);
+            if (titles == null || titles.isEmpty())
+                return result;
+            sets.add(titles);
+        }
+
+        NavigableSet<String> smallest = sets.get(0);
+        for (NavigableSet<String> s : sets) {
+            if (s.size() < smallest.size()) {
+                smallest = s;
+            }
+        }
+
+        for (String title : smallest) {
+            if (result.size() >= limit)
+                break;
+            if (containsAll(sets, title) && snapshot.contains(title)) {
+                result.add(title);
+            }
+        }
+        return result;
+    }
+
+    //the titles with a word starting with the prefix, a single word needs no copy
+    NavigableSet<String> getPrefixTitles(String prefix) {
+
+        Collection<ConcurrentSkipListSet<String>> matching = words.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+        if (matching.size() == 1) {
+            return matching.iterator().next();
+        }
+
+        TreeSet<String> titles = new TreeSet<String>();
+        for (ConcurrentSkipListSet<String> s : matching) {
+            titles.addAll(s);
+        }
+        return titles;
+    }
+
+    static boolean containsAll(ArrayList<NavigableSet<String>> sets, String title) {
+        for (NavigableSet<String> s : sets) {
+            if (!s.contains(title))
+                return false;
+        }
+        return true;
+    }
+
+}
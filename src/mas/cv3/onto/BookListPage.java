@@ -0,0 +1,45 @@
+package mas.cv3.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.AggregateSlot;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * A page of the catalogue of a seller. The nextCursor is the cursor of the next page, it is not set on the last page.
+ * The version is the version of the catalogue the page was taken from.
+ */
+public class BookListPage implements Concept {
+
+    ArrayList<BookInfo> books;
+    String nextCursor;
+    Long version;
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<BookInfo> getBooks() {
+        return books;
+    }
+
+    public void setBooks(ArrayList<BookInfo> books) {
+        this.books = books;
+    }
+
+    @Slot(mandatory = false)
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    @Slot(mandatory = true)
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
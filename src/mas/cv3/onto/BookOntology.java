@@ -1,31 +1,234 @@
 package mas.cv3.onto;
 
-import jade.content.onto.BeanOntology;
-import jade.content.onto.BeanOntologyException;
+import jade.content.abs.*;
+import jade.content.onto.*;
+import jade.content.schema.*;
+
+import java.util.ArrayList;
 
 /**
  * Created by marti_000 on 8.4.14.
+ *
+ * The schemas are written by hand instead of being introspected by the BeanOntology, and the objects are converted
+ * to/from their abstract descriptors directly (see mas.cv4.onto.BookOntology). The names are the ones the BeanOntology
+ * generated from the classes.
  */
-public class BookOntology extends BeanOntology {
+public class BookOntology extends Ontology {
+
+    public static final String ONTOLOGY_NAME = "book-ontology";
+
+    //vocabulary
+    public static final String BOOK_INFO = "BookInfo";
+    public static final String BOOK_INFO_NAME = "name";
+    public static final String BOOK_INFO_PRICE = "price";
+
+    public static final String BOOK_LIST_PAGE = "BookListPage";
+    public static final String BOOK_LIST_PAGE_BOOKS = "books";
+    public static final String BOOK_LIST_PAGE_NEXT_CURSOR = "nextCursor";
+    public static final String BOOK_LIST_PAGE_VERSION = "version";
+
+    public static final String GET_BOOK_LIST = "GetBookList";
+    public static final String GET_BOOK_LIST_PAGE_SIZE = "pageSize";
+    public static final String GET_BOOK_LIST_CURSOR = "cursor";
+    public static final String GET_BOOK_LIST_SINCE_VERSION = "sinceVersion";
+
+    public static final String SEARCH_BOOKS = "SearchBooks";
+    public static final String SEARCH_BOOKS_QUERY = "query";
+    public static final String SEARCH_BOOKS_PREFIX = "prefix";
+    public static final String SEARCH_BOOKS_LIMIT = "limit";
+
+    public static final String SELL_BOOK = "SellBook";
+    public static final String SELL_BOOK_BI = "bi";
 
     static BookOntology theInstance = null;
 
     private BookOntology() {
-        super("book-ontology");
+        super(ONTOLOGY_NAME, BasicOntology.getInstance());
 
         try {
-            add("mas.cv3.onto");
+            PrimitiveSchema stringSchema = (PrimitiveSchema) getSchema(BasicOntology.STRING);
+            PrimitiveSchema integerSchema = (PrimitiveSchema) getSchema(BasicOntology.INTEGER);
+            PrimitiveSchema booleanSchema = (PrimitiveSchema) getSchema(BasicOntology.BOOLEAN);
+
+            ConceptSchema bookInfo = new ConceptSchema(BOOK_INFO);
+            bookInfo.add(BOOK_INFO_NAME, stringSchema);
+            bookInfo.add(BOOK_INFO_PRICE, integerSchema, ObjectSchema.OPTIONAL);
+            add(bookInfo, BookInfo.class);
+
+            ConceptSchema bookListPage = new ConceptSchema(BOOK_LIST_PAGE);
+            bookListPage.add(BOOK_LIST_PAGE_BOOKS, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            bookListPage.add(BOOK_LIST_PAGE_NEXT_CURSOR, stringSchema, ObjectSchema.OPTIONAL);
+            bookListPage.add(BOOK_LIST_PAGE_VERSION, integerSchema);
+            add(bookListPage, BookListPage.class);
+
+            AgentActionSchema getBookList = new AgentActionSchema(GET_BOOK_LIST);
+            getBookList.add(GET_BOOK_LIST_PAGE_SIZE, integerSchema, ObjectSchema.OPTIONAL);
+            getBookList.add(GET_BOOK_LIST_CURSOR, stringSchema, ObjectSchema.OPTIONAL);
+            getBookList.add(GET_BOOK_LIST_SINCE_VERSION, integerSchema, ObjectSchema.OPTIONAL);
+            getBookList.setResult(bookListPage);
+            add(getBookList, GetBookList.class);
+
+            AgentActionSchema searchBooks = new AgentActionSchema(SEARCH_BOOKS);
+            searchBooks.add(SEARCH_BOOKS_QUERY, stringSchema);
+            searchBooks.add(SEARCH_BOOKS_PREFIX, booleanSchema, ObjectSchema.OPTIONAL);
+            searchBooks.add(SEARCH_BOOKS_LIMIT, integerSchema, ObjectSchema.OPTIONAL);
+            searchBooks.setResult(bookListPage);
+            add(searchBooks, SearchBooks.class);
+
+            AgentActionSchema sellBook = new AgentActionSchema(SELL_BOOK);
+            sellBook.add(SELL_BOOK_BI, bookInfo);
+            sellBook.setResult(bookInfo);
+            add(sellBook, SellBook.class);
         }
-        catch (BeanOntologyException be) {
-            be.printStackTrace();
+        catch (OntologyException oe) {
+            oe.printStackTrace();
         }
     }
 
-    public static BookOntology getInstance() {
+    public static synchronized BookOntology getInstance() {
         if (theInstance == null)
             theInstance = new BookOntology();
-
         return theInstance;
     }
 
+    //object -> abstract descriptor, the other objects (Action, Result, lists, ...) are handled by the BasicOntology
+    @Override
+    protected AbsObject fromObject(Object obj, Ontology globalOnto) throws UnknownSchemaException, OntologyException {
+
+        if (obj instanceof BookInfo) {
+            return fromBookInfo((BookInfo) obj);
+        }
+        if (obj instanceof BookListPage) {
+            BookListPage page = (BookListPage) obj;
+            AbsConcept abs = new AbsConcept(BOOK_LIST_PAGE);
+            AbsAggregate books = new AbsAggregate(BasicOntology.SEQUENCE);
+            if (page.getBooks() != null) {
+                for (BookInfo bi : page.getBooks()) {
+                    books.add(fromBookInfo(bi));
+                }
+            }
+            abs.set(BOOK_LIST_PAGE_BOOKS, books);
+            if (page.getNextCursor() != null) {
+                abs.set(BOOK_LIST_PAGE_NEXT_CURSOR, page.getNextCursor());
+            }
+            abs.set(BOOK_LIST_PAGE_VERSION, page.getVersion());
+            return abs;
+        }
+        if (obj instanceof GetBookList) {
+            GetBookList gbl = (GetBookList) obj;
+            AbsAgentAction abs = new AbsAgentAction(GET_BOOK_LIST);
+            if (gbl.getPageSize() != null) {
+                abs.set(GET_BOOK_LIST_PAGE_SIZE, gbl.getPageSize());
+            }
+            if (gbl.getCursor() != null) {
+                abs.set(GET_BOOK_LIST_CURSOR, gbl.getCursor());
+            }
+            if (gbl.getSinceVersion() != null) {
+                abs.set(GET_BOOK_LIST_SINCE_VERSION, gbl.getSinceVersion());
+            }
+            return abs;
+        }
+        if (obj instanceof SearchBooks) {
+            SearchBooks sb = (SearchBooks) obj;
+            AbsAgentAction abs = new AbsAgentAction(SEARCH_BOOKS);
+            abs.set(SEARCH_BOOKS_QUERY, sb.getQuery());
+            if (sb.getPrefix() != null) {
+                abs.set(SEARCH_BOOKS_PREFIX, sb.getPrefix());
+            }
+            if (sb.getLimit() != null) {
+                abs.set(SEARCH_BOOKS_LIMIT, sb.getLimit());
+            }
+            return abs;
+        }
+        if (obj instanceof SellBook) {
+            AbsAgentAction abs = new AbsAgentAction(SELL_BOOK);
+            abs.set(SELL_BOOK_BI, fromBookInfo(((SellBook) obj).getBi()));
+            return abs;
+        }
+
+        return super.fromObject(obj, globalOnto);
+    }
+
+    //abstract descriptor -> object, lcType is the lower case name of the schema
+    @Override
+    protected Object toObject(AbsObject abs, String lcType, Ontology globalOnto) throws UnknownSchemaException, UngroundedException, OntologyException {
+
+        switch (lcType) {
+            case "bookinfo":
+                return toBookInfo(abs);
+            case "booklistpage": {
+                BookListPage page = new BookListPage();
+                ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+                AbsAggregate agg = (AbsAggregate) abs.getAbsObject(BOOK_LIST_PAGE_BOOKS);
+                if (agg != null) {
+                    for (int i = 0; i < agg.size(); i++) {
+                        books.add(toBookInfo(agg.get(i)));
+                    }
+                }
+                page.setBooks(books);
+                AbsPrimitive nextCursor = (AbsPrimitive) abs.getAbsObject(BOOK_LIST_PAGE_NEXT_CURSOR);
+                if (nextCursor != null) {
+                    page.setNextCursor(nextCursor.getString());
+                }
+                page.setVersion(((Number) ((AbsPrimitive) abs.getAbsObject(BOOK_LIST_PAGE_VERSION)).getObject()).longValue());
+                return page;
+            }
+            case "getbooklist": {
+                GetBookList gbl = new GetBookList();
+                AbsPrimitive pageSize = (AbsPrimitive) abs.getAbsObject(GET_BOOK_LIST_PAGE_SIZE);
+                if (pageSize != null) {
+                    gbl.setPageSize(((Number) pageSize.getObject()).intValue());
+                }
+                AbsPrimitive cursor = (AbsPrimitive) abs.getAbsObject(GET_BOOK_LIST_CURSOR);
+                if (cursor != null) {
+                    gbl.setCursor(cursor.getString());
+                }
+                AbsPrimitive sinceVersion = (AbsPrimitive) abs.getAbsObject(GET_BOOK_LIST_SINCE_VERSION);
+                if (sinceVersion != null) {
+                    gbl.setSinceVersion(((Number) sinceVersion.getObject()).longValue());
+                }
+                return gbl;
+            }
+            case "searchbooks": {
+                SearchBooks sb = new SearchBooks();
+                sb.setQuery(((AbsPrimitive) abs.getAbsObject(SEARCH_BOOKS_QUERY)).getString());
+                AbsPrimitive prefix = (AbsPrimitive) abs.getAbsObject(SEARCH_BOOKS_PREFIX);
+                if (prefix != null) {
+                    sb.setPrefix(prefix.getBoolean());
+                }
+                AbsPrimitive limit = (AbsPrimitive) abs.getAbsObject(SEARCH_BOOKS_LIMIT);
+                if (limit != null) {
+                    sb.setLimit(((Number) limit.getObject()).intValue());
+                }
+                return sb;
+            }
+            case "sellbook": {
+                SellBook sb = new SellBook();
+                sb.setBi(toBookInfo(abs.getAbsObject(SELL_BOOK_BI)));
+                return sb;
+            }
+        }
+
+        return super.toObject(abs, lcType, globalOnto);
+    }
+
+    static AbsConcept fromBookInfo(BookInfo bi) {
+        AbsConcept abs = new AbsConcept(BOOK_INFO);
+        abs.set(BOOK_INFO_NAME, bi.getName());
+        if (bi.getPrice() != null) {
+            abs.set(BOOK_INFO_PRICE, bi.getPrice());
+        }
+        return abs;
+    }
+
+    static BookInfo toBookInfo(AbsObject abs) {
+        BookInfo bi = new BookInfo();
+        bi.setName(((AbsPrimitive) abs.getAbsObject(BOOK_INFO_NAME)).getString());
+        AbsPrimitive price = (AbsPrimitive) abs.getAbsObject(BOOK_INFO_PRICE);
+        if (price != null) {
+            //the codec may decode the number as any Number (e.g. a Long)
+            bi.setPrice(((Number) price.getObject()).intValue());
+        }
+        return bi;
+    }
 }
@@ -1,13 +1,47 @@
 package mas.cv3.onto;
 
 import jade.content.AgentAction;
-import jade.content.onto.annotations.AggregateResult;
-
-import java.util.ArrayList;
+import jade.content.onto.annotations.Result;
+import jade.content.onto.annotations.Slot;
 
 /**
  * Created by marti_000 on 8.4.14.
+ *
+ * Asks for a page of the catalogue - at most pageSize books with titles after the cursor (all books if there is no
+ * cursor), which changed after sinceVersion (if it is set). The next page is requested with the nextCursor of the
+ * BookListPage.
  */
-@AggregateResult(type = BookInfo.class)
+@Result(type = BookListPage.class)
 public class GetBookList implements AgentAction {
+
+    Integer pageSize;
+    String cursor;
+    Long sinceVersion;
+
+    @Slot(mandatory = false)
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @Slot(mandatory = false)
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    @Slot(mandatory = false)
+    public Long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    public void setSinceVersion(Long sinceVersion) {
+        this.sinceVersion = sinceVersion;
+    }
 }
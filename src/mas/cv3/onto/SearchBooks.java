@@ -0,0 +1,44 @@
+package mas.cv3.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Result;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Asks for the books whose titles contain all the words of the query. If prefix is true, the words of the query
+ * may be only the beginnings of the words of the title. At most limit books are returned (in a single BookListPage).
+ */
+@Result(type = BookListPage.class)
+public class SearchBooks implements AgentAction {
+
+    String query;
+    Boolean prefix;
+    Integer limit;
+
+    @Slot(mandatory = true)
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    @Slot(mandatory = false)
+    public Boolean getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(Boolean prefix) {
+        this.prefix = prefix;
+    }
+
+    @Slot(mandatory = false)
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+}
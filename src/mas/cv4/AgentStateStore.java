@@ -0,0 +1,344 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Goal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The state of the traders kept by the environment (their money, goals and books), stored in columns of primitive
+ * arrays instead of an AgentInfo with lists of BookInfo and Goal objects for each trader.
+ *
+ * Each trader gets a dense ID (in the order it was added), its money, first and last book are kept in arrays indexed by
+ * the ID, its goals in arrays indexed by ID * titles + title (the value, NaN if there is no goal for the title, and the
+ * ID of the book in the goal). The books are kept in slots - the ID, title and owner of the book and the next book of
+ * the same owner (the books of a trader form a list in the order it got them). The names of the traders and the IDs of
+ * the books are found by open addressing tables of the IDs and slots, so no objects are created for the entries.
+ *
+ * A trader with four books and three goals takes under 200 bytes besides its name (and no object at all, the AgentInfo
+ * with its lists, books and goals took about 470 bytes), so the garbage collector has only a few large arrays to trace
+ * instead of tens of millions of small objects. The AgentInfo of a trader is created only when it is sent
+ * (toAgentInfo).
+ */
+public class AgentStateStore {
+
+    static final int NONE = -1;
+    //the title of the books whose names are not in Constants, their names are in otherTitles
+    static final byte OTHER_TITLE = -1;
+
+    int titleCount = Constants.getBookCount();
+
+    //the traders by their IDs
+    int agentCount = 0;
+    String[] names = new String[16];
+    long[] money = new long[16];
+    int[] firstBook = new int[16];
+    int[] lastBook = new int[16];
+    float[] goalValue = new float[16 * titleCount];
+    int[] goalBook = new int[16 * titleCount];
+    //the IDs of the traders by the hash of their names, NONE in the empty places
+    int[] nameTable = newTable(32);
+
+    //the books by their slots, the free slots form a list (by nextBook)
+    int slotCount = 0;
+    int bookCount = 0;
+    int freeSlot = NONE;
+    int[] bookId = new int[64];
+    byte[] bookTitle = new byte[64];
+    int[] bookOwner = new int[64];
+    int[] nextBook = new int[64];
+    //the slots of the books by the hash of their IDs, NONE in the empty places
+    int[] bookTable = newTable(128);
+    //the names of the books with unknown titles (by the ID of the book)
+    HashMap<Integer, String> otherTitles = new HashMap<Integer, String>();
+
+    static int[] newTable(int size) {
+        int[] table = new int[size];
+        Arrays.fill(table, NONE);
+        return table;
+    }
+
+    static int hash(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    //the ID of the trader, NONE if it is not in the store
+    public int getId(String name) {
+        int mask = nameTable.length - 1;
+        for (int i = hash(name.hashCode()) & mask; nameTable[i] != NONE; i = (i + 1) & mask) {
+            if (names[nameTable[i]].equals(name))
+                return nameTable[i];
+        }
+        return NONE;
+    }
+
+    public boolean contains(String name) {
+        return getId(name) != NONE;
+    }
+
+    //adds a trader without books and goals, returns its ID
+    public int add(String name, long initialMoney) {
+
+        int id = getId(name);
+        if (id != NONE)
+            return id;
+
+        if (agentCount == names.length) {
+            int capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            money = Arrays.copyOf(money, capacity);
+            firstBook = Arrays.copyOf(firstBook, capacity);
+            lastBook = Arrays.copyOf(lastBook, capacity);
+            goalValue = Arrays.copyOf(goalValue, capacity * titleCount);
+            goalBook = Arrays.copyOf(goalBook, capacity * titleCount);
+        }
+        if (2 * (agentCount + 1) > nameTable.length) {
+            nameTable = newTable(nameTable.length * 2);
+            for (int i = 0; i < agentCount; i++) {
+                insertName(i);
+            }
+        }
+
+        id = agentCount++;
+        names[id] = name;
+        money[id] = initialMoney;
+        firstBook[id] = NONE;
+        lastBook[id] = NONE;
+        Arrays.fill(goalValue, id * titleCount, (id + 1) * titleCount, Float.NaN);
+        insertName(id);
+        return id;
+    }
+
+    void insertName(int id) {
+        int mask = nameTable.length - 1;
+        int i = hash(names[id].hashCode()) & mask;
+        while (nameTable[i] != NONE) {
+            i = (i + 1) & mask;
+        }
+        nameTable[i] = id;
+    }
+
+    public int size() {
+        return agentCount;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    //the names of all traders (in the order of their IDs), the list changes when a trader is added
+    public List<String> getNames() {
+        return Arrays.asList(names).subList(0, agentCount);
+    }
+
+    public long getMoney(int id) {
+        return money[id];
+    }
+
+    public void addMoney(int id, long amount) {
+        money[id] += amount;
+    }
+
+    //the value must be a whole number (the values of the goals are), so the float keeps it exactly
+    public void setGoal(int id, int title, int bookID, double value) {
+        goalValue[id * titleCount + title] = (float) value;
+        goalBook[id * titleCount + title] = bookID;
+    }
+
+    //the slot of the book, NONE if it is not in the store
+    int findBook(int id) {
+        int mask = bookTable.length - 1;
+        for (int i = hash(id) & mask; bookTable[i] != NONE; i = (i + 1) & mask) {
+            if (bookId[bookTable[i]] == id)
+                return bookTable[i];
+        }
+        return NONE;
+    }
+
+    //whether the trader owns the book
+    public boolean owns(int id, int bookID) {
+        int slot = findBook(bookID);
+        return slot != NONE && bookOwner[slot] == id;
+    }
+
+    /**
+     * The trader gets the book - it is moved from its owner if it is in the store, otherwise it is added (the name of
+     * the book is used only then).
+     */
+    public void addBook(int id, int bookID, String bookName) {
+
+        int slot = findBook(bookID);
+        if (slot != NONE) {
+            unlink(slot);
+            link(slot, id);
+            return;
+        }
+
+        slot = newSlot();
+        bookId[slot] = bookID;
+        int title = Constants.getBookIndex(bookName);
+        if (title == NONE) {
+            bookTitle[slot] = OTHER_TITLE;
+            otherTitles.put(bookID, bookName);
+        } else {
+            bookTitle[slot] = (byte) title;
+        }
+        link(slot, id);
+        insertBook(slot);
+        bookCount++;
+    }
+
+    //the book left the store (it was sold to a trader of another shard)
+    public void removeBook(int bookID) {
+
+        int slot = findBook(bookID);
+        if (slot == NONE)
+            return;
+
+        unlink(slot);
+        deleteBook(slot);
+        if (bookTitle[slot] == OTHER_TITLE) {
+            otherTitles.remove(bookID);
+        }
+        nextBook[slot] = freeSlot;
+        freeSlot = slot;
+        bookCount--;
+    }
+
+    int newSlot() {
+
+        if (freeSlot != NONE) {
+            int slot = freeSlot;
+            freeSlot = nextBook[slot];
+            return slot;
+        }
+
+        if (slotCount == bookId.length) {
+            int capacity = bookId.length * 2;
+            bookId = Arrays.copyOf(bookId, capacity);
+            bookTitle = Arrays.copyOf(bookTitle, capacity);
+            bookOwner = Arrays.copyOf(bookOwner, capacity);
+            nextBook = Arrays.copyOf(nextBook, capacity);
+        }
+        if (2 * (slotCount + 1) > bookTable.length) {
+            int[] old = bookTable;
+            bookTable = newTable(bookTable.length * 2);
+            for (int slot : old) {
+                if (slot != NONE) {
+                    insertBook(slot);
+                }
+            }
+        }
+        return slotCount++;
+    }
+
+    void insertBook(int slot) {
+        int mask = bookTable.length - 1;
+        int i = hash(bookId[slot]) & mask;
+        while (bookTable[i] != NONE) {
+            i = (i + 1) & mask;
+        }
+        bookTable[i] = slot;
+    }
+
+    //removes the slot from the table, the following slots of the cluster are inserted again so they can be found
+    void deleteBook(int slot) {
+
+        int mask = bookTable.length - 1;
+        int i = hash(bookId[slot]) & mask;
+        while (bookTable[i] != slot) {
+            i = (i + 1) & mask;
+        }
+        bookTable[i] = NONE;
+
+        for (i = (i + 1) & mask; bookTable[i] != NONE; i = (i + 1) & mask) {
+            int moved = bookTable[i];
+            bookTable[i] = NONE;
+            insertBook(moved);
+        }
+    }
+
+    //appends the book to the books of the trader
+    void link(int slot, int id) {
+        bookOwner[slot] = id;
+        nextBook[slot] = NONE;
+        if (lastBook[id] == NONE) {
+            firstBook[id] = slot;
+        } else {
+            nextBook[lastBook[id]] = slot;
+        }
+        lastBook[id] = slot;
+    }
+
+    //removes the book from the books of its owner (the lists are short, the previous book is found from the first one)
+    void unlink(int slot) {
+        int id = bookOwner[slot];
+        int prev = NONE;
+        for (int s = firstBook[id]; s != slot; s = nextBook[s]) {
+            prev = s;
+        }
+        if (prev == NONE) {
+            firstBook[id] = nextBook[slot];
+        } else {
+            nextBook[prev] = nextBook[slot];
+        }
+        if (lastBook[id] == slot) {
+            lastBook[id] = prev;
+        }
+    }
+
+    String getTitle(int slot) {
+        return bookTitle[slot] == OTHER_TITLE ? otherTitles.get(bookId[slot]) : Constants.getBookName(bookTitle[slot]);
+    }
+
+    //the state of the trader for the messages
+    public AgentInfo toAgentInfo(int id) {
+
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        for (int slot = firstBook[id]; slot != NONE; slot = nextBook[slot]) {
+            BookInfo bi = new BookInfo();
+            bi.setBookID(bookId[slot]);
+            bi.setBookName(getTitle(slot));
+            books.add(bi);
+        }
+
+        ArrayList<Goal> goals = new ArrayList<Goal>();
+        for (int title = 0; title < titleCount; title++) {
+            float value = goalValue[id * titleCount + title];
+            if (Float.isNaN(value))
+                continue;
+            BookInfo bi = new BookInfo();
+            bi.setBookID(goalBook[id * titleCount + title]);
+            bi.setBookName(Constants.getBookName(title));
+            Goal g = new Goal();
+            g.setBook(bi);
+            g.setValue(value);
+            goals.add(g);
+        }
+
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(books);
+        ai.setGoals(goals);
+        ai.setMoney(money[id]);
+        return ai;
+    }
+
+    //the memory taken by the columns and tables (without the names of the traders and the array headers)
+    public long getBytes() {
+        return names.length * 4L + money.length * 8L + firstBook.length * 4L + lastBook.length * 4L
+                + goalValue.length * 4L + goalBook.length * 4L + nameTable.length * 4L
+                + bookId.length * 4L + bookTitle.length + bookOwner.length * 4L + nextBook.length * 4L
+                + bookTable.length * 4L;
+    }
+
+    public String toString() {
+        long bytes = getBytes();
+        return "agent state: " + agentCount + " traders, " + bookCount + " books, " + bytes / 1024 + " kB ("
+                + (agentCount == 0 ? 0 : bytes / agentCount) + " bytes per trader)";
+    }
+}
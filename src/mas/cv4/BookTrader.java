@@ -7,14 +7,13 @@ import jade.content.onto.Ontology;
 import jade.content.onto.OntologyException;
 import jade.content.onto.UngroundedException;
 import jade.content.onto.basic.Action;
-import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 import jade.domain.FIPAException;
-import jade.domain.FIPAService;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.proto.*;
@@ -37,17 +36,35 @@ public class BookTrader extends Agent {
 
     ArrayList<BookInfo> myBooks;
     ArrayList<Goal> myGoal;
-    double myMoney;
+    long myMoney;
 
-    Random rnd = new Random();
+    Random rnd;
+    TraceRecorder recorder;
+
+    //the decoded contents of the messages, each message is decoded at most once
+    ContentCache cache;
+
+    //the round-trip times of the other traders and the environment, the deadlines for their replies
+    RttEstimator rtt;
 
     @Override
     protected void setup() {
         super.setup();
 
+        //the random generator is seeded, so that the competition can be replayed
+        rnd = Utils.createRandom(this);
+        recorder = TraceRecorder.getInstance();
+
         //register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
         this.getContentManager().registerOntology(onto);
+        cache = new ContentCache(getContentManager(), 256);
+
+        String rttInitial = Utils.getArgument(this, "rttInitial");
+        String rttMin = Utils.getArgument(this, "rttMin");
+        String rttMax = Utils.getArgument(this, "rttMax");
+        rtt = new RttEstimator(rttInitial == null ? 5000 : Long.parseLong(rttInitial),
+                rttMin == null ? 200 : Long.parseLong(rttMin), rttMax == null ? 20000 : Long.parseLong(rttMax), 1024);
 
         //book-trader service description
         ServiceDescription sd = new ServiceDescription();
@@ -70,9 +87,19 @@ public class BookTrader extends Agent {
         addBehaviour(new StartTradingBehaviour(this, MessageTemplate.MatchPerformative(ACLMessage.REQUEST)));
     }
 
+    //record all messages delivered to the agent (if recording is on)
+    @Override
+    public void postMessage(ACLMessage msg) {
+        if (recorder != null) {
+            recorder.recordMessage(getName(), msg);
+        }
+        super.postMessage(msg);
+    }
+
     @Override
     protected void takeDown() {
         super.takeDown();
+        System.out.println(getName() + " " + rtt);
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -92,7 +119,7 @@ public class BookTrader extends Agent {
         protected ACLMessage handleRequest(ACLMessage request) throws NotUnderstoodException, RefuseException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(request);
+                ContentElement ce = cache.extract(request);
 
                 if (!(ce instanceof Action)) {
                     throw new NotUnderstoodException("");
@@ -103,26 +130,11 @@ public class BookTrader extends Agent {
                 //we got the request to start trading
                 if (a.getAction() instanceof StartTrading) {
 
-                    //find out what our goals are
-                    ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
-                    getMyInfo.setOntology(onto.getName());
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
-
-                    ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
-
-                    Result res = (Result)getContentManager().extractContent(myInfo);
-
-                    AgentInfo ai = (AgentInfo)res.getValue();
+                    //the environment sends our goals in the StartTrading, older environments have to be asked for them
+                    AgentInfo ai = ((StartTrading)a.getAction()).getAgentInfo();
+                    if (ai == null) {
+                        ai = Utils.getMyInfo(myAgent, myAgent.getName(), 0);
+                    }
 
                     myBooks = ai.getBooks();
                     myGoal = ai.getGoals();
@@ -132,7 +144,7 @@ public class BookTrader extends Agent {
                     addBehaviour(new TradingBehaviour(myAgent, 2000));
 
                     //add a behavior which sells book to other agents
-                    addBehaviour(new SellBook(myAgent, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
+                    addBehaviour(new SellBook(myAgent, cache.matchAction(ACLMessage.CFP, SellMeBooks.class)));
 
                     //reply that we are able to start trading (the message is ignored by the environment)
                     ACLMessage reply = request.createReply();
@@ -175,15 +187,20 @@ public class BookTrader extends Agent {
 
                     DFAgentDescription[] traders = DFService.search(myAgent, dfd);
 
+                    ArrayList<AID> sellers = new ArrayList<AID>();
+                    for (DFAgentDescription dfad : traders) {
+                        if (dfad.getName().equals(myAgent.getAID()))
+                            continue;
+                        sellers.add(dfad.getName());
+                    }
+
                     ACLMessage buyBook = new ACLMessage(ACLMessage.CFP);
                     buyBook.setLanguage(codec.getName());
                     buyBook.setOntology(onto.getName());
-                    buyBook.setReplyByDate(new Date(System.currentTimeMillis()+5000));
+                    buyBook.setReplyByDate(new Date(System.currentTimeMillis() + rtt.getTimeout(sellers)));
 
-                    for (DFAgentDescription dfad : traders) {
-                        if (dfad.getName().equals(myAgent.getAID()))
-                            continue;
-                        buyBook.addReceiver(dfad.getName());
+                    for (AID seller : sellers) {
+                        buyBook.addReceiver(seller);
                     }
 
                     ArrayList<BookInfo> bis = new ArrayList<BookInfo>();
@@ -215,10 +232,29 @@ public class BookTrader extends Agent {
 
             public ObtainBook(Agent a, ACLMessage cfp) {
                 super(a, cfp);
+                this.cfp = cfp;
             }
 
             Chosen c;  //we need to remember what offer we have chosen
             ArrayList<BookInfo> shouldReceive; //we also remember what the seller offered to us
+            ACLMessage cfp; //the sellers we asked
+            long sent; //when the CFP was sent, for the round-trip times of the sellers
+
+            @Override
+            protected Vector prepareCfps(ACLMessage cfp) {
+                sent = System.currentTimeMillis();
+                return super.prepareCfps(cfp);
+            }
+
+            @Override
+            protected void handlePropose(ACLMessage propose, Vector acceptances) {
+                rtt.sample(propose.getSender(), System.currentTimeMillis() - sent);
+            }
+
+            @Override
+            protected void handleRefuse(ACLMessage refuse) {
+                rtt.sample(refuse.getSender(), System.currentTimeMillis() - sent);
+            }
 
 
             //the seller informs us it processed the order, we need to send the payment
@@ -231,7 +267,7 @@ public class BookTrader extends Agent {
                     MakeTransaction mt = new MakeTransaction();
 
                     mt.setSenderName(myAgent.getName());
-                    mt.setReceiverName(inform.getSender().getName());
+                    mt.setReceiverName(Utils.getTraderName(inform));
                     mt.setTradeConversationID(inform.getConversationId());
 
                     if (c.getOffer().getBooks() == null)
@@ -244,22 +280,20 @@ public class BookTrader extends Agent {
                         shouldReceive = new ArrayList<BookInfo>();
 
                     mt.setReceivingBooks(shouldReceive);
-                    mt.setReceivingMoney(0.0);
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
+                    mt.setReceivingMoney(0);
 
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                    //the shard of the environment which keeps our state
+                    AID env = Utils.findEnvironment(myAgent, myAgent.getName());
 
                     ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
+                    transReq.addReceiver(env);
                     transReq.setLanguage(codec.getName());
                     transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                    //the environment answers when the other leg comes, or fails the leg after its match timeout
+                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + Environment.MATCH_TIMEOUT
+                            + Environment.EXPIRY_PERIOD + rtt.getTimeout(env)));
 
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
+                    getContentManager().fillContent(transReq, new Action(env, mt));
                     addBehaviour(new SendBook(myAgent, transReq));
 
                 } catch (UngroundedException e) {
@@ -278,6 +312,19 @@ public class BookTrader extends Agent {
             @Override
             protected void handleAllResponses(Vector responses, Vector acceptances) {
 
+                //the sellers which did not reply before the deadline
+                HashSet<AID> missing = new HashSet<AID>();
+                Iterator receivers = cfp.getAllReceiver();
+                while (receivers.hasNext()) {
+                    missing.add((AID) receivers.next());
+                }
+                for (Object o : responses) {
+                    missing.remove(((ACLMessage) o).getSender());
+                }
+                for (AID seller : missing) {
+                    rtt.timeout(seller);
+                }
+
                 Iterator it = responses.iterator();
 
                 //we need to accept only one offer, otherwise we create two transactions with the same ID
@@ -291,7 +338,7 @@ public class BookTrader extends Agent {
                             continue;
                         }
 
-                        ce = getContentManager().extractContent(response);
+                        ce = cache.extract(response);
 
                         ChooseFrom cf = (ChooseFrom)ce;
 
@@ -375,6 +422,9 @@ public class BookTrader extends Agent {
 
         class SellBookResponder extends SSContractNetResponder {
 
+            //when we sent the proposal (or the deadline of the CFP, if later), for the round-trip time of the buyer
+            long proposed;
+
             public SellBookResponder(Agent a, ACLMessage cfp) {
                 super(a, cfp);
             }
@@ -383,7 +433,7 @@ public class BookTrader extends Agent {
             protected ACLMessage handleCfp(ACLMessage cfp) throws RefuseException, FailureException, NotUnderstoodException {
 
                 try {
-                    Action ac = (Action)getContentManager().extractContent(cfp);
+                    Action ac = (Action)cache.extract(cfp);
 
                     SellMeBooks smb = (SellMeBooks)ac.getAction();
                     ArrayList<BookInfo> books = smb.getBooks();
@@ -406,14 +456,14 @@ public class BookTrader extends Agent {
 
                     //create two offers
                     Offer o1 = new Offer();
-                    o1.setMoney(100);
+                    o1.setMoney(Money.fromDouble(100));
 
                     ArrayList<BookInfo> bis = new ArrayList<BookInfo>();
                     bis.add(myGoal.get(rnd.nextInt(myGoal.size())).getBook());
 
                     Offer o2 = new Offer();
                     o2.setBooks(bis);
-                    o2.setMoney(20);
+                    o2.setMoney(Money.fromDouble(20));
 
                     ArrayList<Offer> offers = new ArrayList<Offer>();
                     offers.add(o1);
@@ -427,8 +477,14 @@ public class BookTrader extends Agent {
                     //send the offers
                     ACLMessage reply = cfp.createReply();
                     reply.setPerformative(ACLMessage.PROPOSE);
-                    reply.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
-                    getContentManager().fillContent(reply, cf);
+                    proposed = System.currentTimeMillis();
+                    //the buyer answers after the deadline of its CFP (unless all the sellers answer sooner), the
+                    //time of its answer is measured from then
+                    if (cfp.getReplyByDate() != null) {
+                        proposed = Math.max(proposed, cfp.getReplyByDate().getTime());
+                    }
+                    reply.setReplyByDate(new Date(proposed + rtt.getTimeout(cfp.getSender())));
+                    cache.fill(reply, cf);
 
                     return reply;
                 } catch (UngroundedException e) {
@@ -445,14 +501,18 @@ public class BookTrader extends Agent {
             @Override
             protected ACLMessage handleAcceptProposal(ACLMessage cfp, ACLMessage propose, ACLMessage accept) throws FailureException {
 
+                if (System.currentTimeMillis() >= proposed) {
+                    rtt.sample(accept.getSender(), System.currentTimeMillis() - proposed);
+                }
+
                 try {
-                    ChooseFrom cf = (ChooseFrom)getContentManager().extractContent(propose);
+                    ChooseFrom cf = (ChooseFrom)cache.extract(propose);
 
                     //prepare the transaction info and send it to the environment
                     MakeTransaction mt = new MakeTransaction();
 
                     mt.setSenderName(myAgent.getName());
-                    mt.setReceiverName(cfp.getSender().getName());
+                    mt.setReceiverName(Utils.getTraderName(cfp));
                     mt.setTradeConversationID(cfp.getConversationId());
 
                     if (cf.getWillSell() == null) {
@@ -460,9 +520,9 @@ public class BookTrader extends Agent {
                     }
 
                     mt.setSendingBooks(cf.getWillSell());
-                    mt.setSendingMoney(0.0);
+                    mt.setSendingMoney(0);
 
-                    Chosen c = (Chosen)getContentManager().extractContent(accept);
+                    Chosen c = (Chosen)cache.extract(accept);
 
                     if (c.getOffer().getBooks() == null) {
                         c.getOffer().setBooks(new ArrayList<BookInfo>());
@@ -471,20 +531,18 @@ public class BookTrader extends Agent {
                     mt.setReceivingBooks(c.getOffer().getBooks());
                     mt.setReceivingMoney(c.getOffer().getMoney());
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                    //the shard of the environment which keeps our state
+                    AID env = Utils.findEnvironment(myAgent, myAgent.getName());
 
                     ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
+                    transReq.addReceiver(env);
                     transReq.setLanguage(codec.getName());
                     transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                    //the environment answers when the other leg comes, or fails the leg after its match timeout
+                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + Environment.MATCH_TIMEOUT
+                            + Environment.EXPIRY_PERIOD + rtt.getTimeout(env)));
 
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
+                    getContentManager().fillContent(transReq, new Action(env, mt));
 
                     addBehaviour(new SendBook(myAgent, transReq));
 
@@ -504,11 +562,20 @@ public class BookTrader extends Agent {
 
                 throw new FailureException("");
             }
+
+            @Override
+            protected void handleRejectProposal(ACLMessage cfp, ACLMessage propose, ACLMessage reject) {
+                if (System.currentTimeMillis() >= proposed) {
+                    rtt.sample(reject.getSender(), System.currentTimeMillis() - proposed);
+                }
+            }
         }
 
         //after the transaction is complete (the environment returned an INFORM), we update our information
         class SendBook extends AchieveREInitiator {
 
+            //the environment answers only after the other leg comes (or the leg expires), so the time of its reply is not a
+            //round trip and is not sampled
             public SendBook(Agent a, ACLMessage msg) {
                 super(a, msg);
             }
@@ -517,25 +584,9 @@ public class BookTrader extends Agent {
             protected void handleInform(ACLMessage inform) {
 
                 try {
-                    ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
-                    getMyInfo.setOntology(onto.getName());
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
-
-                    ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
-
-                    Result res = (Result)getContentManager().extractContent(myInfo);
-
-                    AgentInfo ai = (AgentInfo)res.getValue();
+                    //our new state, from a replica of the environment if there is one (the state has to include
+                    //this transaction)
+                    AgentInfo ai = Utils.getMyInfo(myAgent, myAgent.getName(), Utils.getStateVersion(inform));
 
                     myBooks = ai.getBooks();
                     myGoal = ai.getGoals();
@@ -8,17 +8,23 @@ import jade.content.onto.Ontology;
 import jade.content.onto.OntologyException;
 import jade.content.onto.UngroundedException;
 import jade.content.onto.basic.Action;
-import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
+import jade.core.ServiceException;
 import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.TickerBehaviour;
+import jade.core.messaging.TopicManagementHelper;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 import jade.domain.FIPAException;
-import jade.domain.FIPAService;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.proto.*;
+import mas.cv4.market.ImprovedStrategy;
+import mas.cv4.market.StrategyParameters;
+import mas.cv4.market.TraderState;
+import mas.cv4.market.TradingStrategy;
 import mas.cv4.onto.*;
 
 import java.util.*;
@@ -32,6 +38,7 @@ import java.util.*;
  * for the minimal price as specified in Constant class, and the goal books are
  * sold for the price that is higher than it has for me.
  *
+ * The pricing itself is implemented by a TradingStrategy, so that it can be evaluated without JADE in the MarketKernel.
  */
 public class BookTraderImproved extends Agent {
 
@@ -40,20 +47,65 @@ public class BookTraderImproved extends Agent {
 
     ArrayList<BookInfo> myBooks;
     ArrayList<Goal> myGoal;
-    double myMoney;
+    long myMoney;
     static long dateStarted;
     
-    public static final long MAXTIME = 120;
+    public static final long MAXTIME = ImprovedStrategy.MAXTIME;
 
-    Random rnd = new Random();
+    //the pricing of the books (shared with the MarketKernel), its constants are given by the agent arguments
+    TradingStrategy strategy;
+
+    Random rnd;
+    TraceRecorder recorder;
+
+    //the decoded contents of the messages, each message is decoded at most once
+    ContentCache cache;
+
+    //chooses the best offer in the negotiations, reused by all of them (they run in the agent's thread)
+    OfferScorer scorer = new OfferScorer();
+
+    //limits the negotiations running at the same time
+    NegotiationScheduler scheduler;
+
+    //the prices of the settled transactions published by the environment
+    MarketData marketData;
+
+    //the round-trip times of the other traders and the environment, the deadlines for their replies
+    RttEstimator rtt;
+
+    //the shards of the environment asked who owns the books, found again when one of them does not answer
+    ArrayList<AID> environments;
 
     @Override
     protected void setup() {
         super.setup();
 
+        //the random generator is seeded, so that the competition can be replayed
+        rnd = Utils.createRandom(this);
+        recorder = TraceRecorder.getInstance();
+
+        strategy = new ImprovedStrategy(StrategyParameters.parse(getArguments()));
+
+        String maxNegotiations = Utils.getArgument(this, "maxNegotiations");
+        String staleAfter = Utils.getArgument(this, "staleAfter");
+        scheduler = new NegotiationScheduler(this, maxNegotiations == null ? 3 : Integer.parseInt(maxNegotiations),
+                staleAfter == null ? 15000 : Long.parseLong(staleAfter));
+
+        String marketWindow = Utils.getArgument(this, "marketWindow");
+        String marketTolerance = Utils.getArgument(this, "marketTolerance");
+        marketData = new MarketData(marketWindow == null ? 30000 : Long.parseLong(marketWindow),
+                marketTolerance == null ? 0.2 : Double.parseDouble(marketTolerance));
+
+        String rttInitial = Utils.getArgument(this, "rttInitial");
+        String rttMin = Utils.getArgument(this, "rttMin");
+        String rttMax = Utils.getArgument(this, "rttMax");
+        rtt = new RttEstimator(rttInitial == null ? 5000 : Long.parseLong(rttInitial),
+                rttMin == null ? 200 : Long.parseLong(rttMin), rttMax == null ? 20000 : Long.parseLong(rttMax), 1024);
+
         //register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
         this.getContentManager().registerOntology(onto);
+        cache = new ContentCache(getContentManager(), 256);
 
         //book-trader service description
         ServiceDescription sd = new ServiceDescription();
@@ -72,13 +124,33 @@ public class BookTraderImproved extends Agent {
             e.printStackTrace();
         }
 
+        //subscribe to the market data (if the topic service runs)
+        try {
+            TopicManagementHelper topics = (TopicManagementHelper) getHelper(TopicManagementHelper.SERVICE_NAME);
+            AID topic = topics.createTopic(MarketData.TOPIC);
+            topics.register(topic);
+            addBehaviour(new MarketDataBehaviour(MessageTemplate.MatchTopic(topic)));
+        } catch (ServiceException e) {
+            System.err.println(getName() + ": the topic service is not running, trading without the market data");
+        }
+
         //add behavior which waits for the StartTrading message
         addBehaviour(new StartTradingBehaviour(this, MessageTemplate.MatchPerformative(ACLMessage.REQUEST)));
     }
 
+    //record all messages delivered to the agent (if recording is on)
+    @Override
+    public void postMessage(ACLMessage msg) {
+        if (recorder != null) {
+            recorder.recordMessage(getName(), msg);
+        }
+        super.postMessage(msg);
+    }
+
     @Override
     protected void takeDown() {
         super.takeDown();
+        System.out.println(getName() + " " + scheduler + ", " + cache + ", " + marketData + ", " + rtt);
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -91,7 +163,7 @@ public class BookTraderImproved extends Agent {
      *
      * @return
      */
-    private static List<BookInfo> getUnsatisfiedGoalBooks(List<Goal> myGoals, List<BookInfo> currentlyPossesedBooks) {
+    static List<BookInfo> getUnsatisfiedGoalBooks(List<Goal> myGoals, List<BookInfo> currentlyPossesedBooks) {
         List<BookInfo> unsatisfiedGoals = new ArrayList<>();
         for (Goal g : myGoals) {
             unsatisfiedGoals.add(g.getBook());
@@ -106,7 +178,7 @@ public class BookTraderImproved extends Agent {
      *
      * @return
      */
-    private static List<Goal> getUnsatisfiedGoals(List<Goal> myGoal, List<BookInfo> myBooks) {
+    static List<Goal> getUnsatisfiedGoals(List<Goal> myGoal, List<BookInfo> myBooks) {
         List<Goal> unsatisfiedGoals = new ArrayList<>();
         unsatisfiedGoals.addAll(myGoal);
         for (Goal goal : myGoal) {
@@ -120,71 +192,158 @@ public class BookTraderImproved extends Agent {
         return unsatisfiedGoals;
     }
     
-    private static long getSecondsFromStart() {
-        return (System.currentTimeMillis()/1000) - dateStarted;
+    static boolean containsBook(List<BookInfo> books, String bookName) {
+        for (BookInfo bi : books) {
+            if (bi.getBookName().equals(bookName)) {
+                return true;
+            }
+        }
+        return false;
     }
-    
-    private static double getValueDifferenceInTimeIncreasing(double max, double min) {
-        long seconds = getSecondsFromStart();
-        return min + Math.min(seconds, BookTraderImproved.MAXTIME) * ( max - min ) / BookTraderImproved.MAXTIME;
+
+    static long getSecondsFromStart() {
+        return (System.currentTimeMillis()/1000) - dateStarted;
     }
-    
-    private static double getValueDifferenceInTimeDecreasing(double max, double min) {
-        long seconds = getSecondsFromStart();
-        return max - Math.min(seconds, BookTraderImproved.MAXTIME) * ( max - min ) / BookTraderImproved.MAXTIME;
+
+    //converts our books and goals to the state the pricing strategy works with, built once per decision and passed to
+    //the valuations below
+    static TraderState toTraderState(List<Goal> myGoal, List<BookInfo> myBooks) {
+        TraderState state = new TraderState(Constants.getBookCount());
+        for (BookInfo bi : myBooks) {
+            state.owned[Constants.getBookIndex(bi.getBookName())]++;
+        }
+        for (Goal g : myGoal) {
+            state.goalValue[Constants.getBookIndex(g.getBook().getBookName())] = g.getValue();
+        }
+        return state;
     }
 
     /**
      * Returns the amount of money for which we are willing to sell given book.
      *
      * @param book book, which price to evaluate.
+     * @param state our books and goals (toTraderState)
      * @return
      */
-    private static double getBookValueSell(BookInfo book, List<Goal> myGoal, List<BookInfo> myBooks) {
-        double priceForBook = getValueDifferenceInTimeDecreasing(Constants.bookPrices.get(book.getBookName()) + 5, 1); // @TODO choose wisely
+    static double getBookValueSell(TradingStrategy strategy, BookInfo book, TraderState state) {
+        return strategy.getSellValue(state, Constants.getBookIndex(book.getBookName()), getSecondsFromStart());
+    }
 
-        for (Goal goal : myGoal) {
-            if (goal.getBook().getBookName().equals(book.getBookName())) {
-                
-                // if we have the goal two times, we can get rid of one for default price (above)
-                int howManyWeHave = 0;
-                for(BookInfo goalWeHave : myBooks){
-                    if (goal.getBook().getBookName().equals(goalWeHave.getBookName())) {
-                        howManyWeHave++;
-                    }
-                }
+    /**
+     * Returns the amount of money for which we are willing to buy given book.
+     *
+     * @param book book, which price to evaluate.
+     * @param state our books and goals (toTraderState)
+     * @return
+     */
+    static double getBookValueBuy(TradingStrategy strategy, BookInfo book, TraderState state) {
+        return strategy.getBuyValue(state, Constants.getBookIndex(book.getBookName()), getSecondsFromStart());
+    }
 
-                // if we only have one goal, sell it at high price
-                if (howManyWeHave <= 1) {
-                    priceForBook = getValueDifferenceInTimeDecreasing(goal.getValue() * 1.25, goal.getValue() + 1);  // @TODO choose wisely
-                }
+    /**
+     * Computes the money gain when making transaction with the given offer.
+     *
+     * @param offer offer to evaluate
+     * @param offeredBooks books that were offered to us
+     * @param state our books and goals (toTraderState)
+     * @return utility computed as (myGain - myLoss)
+     */
+    static double getOfferUtility(TradingStrategy strategy, Offer offer, List<BookInfo> offeredBooks, TraderState state) {
+        double requestedMoney = Money.toDouble(offer.getMoney());
+        List<BookInfo> requestedBooks = offer.getBooks();
+
+        double myLoss = requestedMoney;
+        if (requestedBooks != null) {
+            for (BookInfo requestedBook : requestedBooks) {
+                myLoss += getBookValueSell(strategy, requestedBook, state);
             }
         }
 
-        return priceForBook;
+        double myGain = 0;
+        if (offeredBooks != null) {
+            for (BookInfo offeredBook : offeredBooks) {
+                myGain += getBookValueBuy(strategy, offeredBook, state);
+            }
+        }
+        //System.out.println("Utility for " + offeredBooks.get(0).getBookName() + "is "  + (myGain - myLoss) );
+        return (myGain - myLoss);
     }
 
     /**
-     * Returns the amount of money for which we are willing to buy given book.
+     * Prepares the offers for the books the buyer asked for. The first offer is for money only, the others are
+     * book-for-book (+money) offers for the books in our unsatisfied goals.
      *
-     * @param book book, which price to evaluate.
-     * @return
+     * @param books books the buyer wants
+     * @return the offers, or null if we do not have all the books
      */
-    private static double getBookValueBuy(BookInfo book, List<Goal> myGoal, List<BookInfo> myBooks) {
+    static ChooseFrom createOffers(TradingStrategy strategy, List<BookInfo> books, List<Goal> myGoal, List<BookInfo> myBooks) {
+
+        ArrayList<BookInfo> sellBooks = new ArrayList<>();
+
+        //find out, if we have books the agent wants
+        for (int i = 0; i < books.size(); i++) {
+            boolean found = false;
+            for (int j = 0; j < myBooks.size(); j++) {
+                if (myBooks.get(j).getBookName().equals(books.get(i).getBookName())) {
+                    sellBooks.add(myBooks.get(j));
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return null;
+            }
+        }
 
-        List<Goal> unsatisfiedGoals = getUnsatisfiedGoals(myGoal, myBooks);
+        ArrayList<Offer> offers = new ArrayList<>();
+        TraderState state = toTraderState(myGoal, myBooks);
+        double sellPrice = 0;
+        for (BookInfo toSell : sellBooks) {
+            sellPrice += getBookValueSell(strategy, toSell, state);
+        }
 
-        //if not in our goals, the book has for us relatively small value
-        double priceForBook = getValueDifferenceInTimeDecreasing(Constants.bookPrices.get(book.getBookName()) / 5, 0); // @TODO choose wisely
+        //System.out.println(myAgent.getName() + " offering for " + sellPrice + " books: " + sellBooks.stream().map(Object::toString).collect(Collectors.joining(" ")));
+        Offer offer = new Offer();
+        offer.setMoney(Money.fromDouble(sellPrice));
+        offers.add(offer);
+
+        // book-for-book, book+money offers
+        for (Goal g : getUnsatisfiedGoals(myGoal, myBooks)) {
+            ArrayList<BookInfo> bis = new ArrayList<>();
+            bis.add(g.getBook());
+
+            Offer o = new Offer();
+            o.setBooks(bis);
+            double requiredMoney = Math.max(0, sellPrice - g.getValue());
+            o.setMoney(Money.fromDouble(requiredMoney));
+            offers.add(o);
+        }
+        ChooseFrom cf = new ChooseFrom();
 
-        for (Goal unsatisfiedGoal : unsatisfiedGoals) {
-            //if the book is in our unsatisfied goals and we do not have it yet, than the book has for us quite a high value
-            if (unsatisfiedGoal.getBook().getBookName().equals(book.getBookName())) {
-                priceForBook = getValueDifferenceInTimeIncreasing(unsatisfiedGoal.getValue(), 0.7 * unsatisfiedGoal.getValue()) - 1;  // @TODO choose wisely
-            }
+        cf.setWillSell(sellBooks);
+        cf.setOffers(offers);
+
+        return cf;
+    }
+
+    //keeps the prices from the market data topic
+    class MarketDataBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template;
+
+        public MarketDataBehaviour(MessageTemplate template) {
+            this.template = template;
         }
 
-        return priceForBook;
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(template);
+            if (msg == null) {
+                block();
+                return;
+            }
+            marketData.update(msg.getContent());
+        }
     }
 
     // waits for the StartTrading message and adds the trading behavior
@@ -198,7 +357,7 @@ public class BookTraderImproved extends Agent {
         protected ACLMessage handleRequest(ACLMessage request) throws NotUnderstoodException, RefuseException {
 
             try {
-                ContentElement ce = getContentManager().extractContent(request);
+                ContentElement ce = cache.extract(request);
 
                 if (!(ce instanceof Action)) {
                     throw new NotUnderstoodException("");
@@ -208,36 +367,21 @@ public class BookTraderImproved extends Agent {
                 //we got the request to start trading
                 if (a.getAction() instanceof StartTrading) {
 
-                    //find out what our goals are
-                    ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
-                    getMyInfo.setOntology(onto.getName());
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
-
-                    ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
-
-                    Result res = (Result) getContentManager().extractContent(myInfo);
-
-                    AgentInfo ai = (AgentInfo) res.getValue();
+                    //the environment sends our goals in the StartTrading, older environments have to be asked for them
+                    AgentInfo ai = ((StartTrading) a.getAction()).getAgentInfo();
+                    if (ai == null) {
+                        ai = Utils.getMyInfo(myAgent, myAgent.getName(), 0);
+                    }
 
                     myBooks = ai.getBooks();
                     myGoal = ai.getGoals();
                     myMoney = ai.getMoney();
 
                     //add a behavior which tries to buy a book every two seconds
-                    addBehaviour(new TradingBehaviour(myAgent, 1000)); // @TODO
+                    addBehaviour(new TradingBehaviour(myAgent, strategy.getPeriod()));
 
                     //add a behavior which sells book to other agents
-                    addBehaviour(new SellBook(myAgent, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
+                    addBehaviour(new SellBook(myAgent, cache.matchAction(ACLMessage.CFP, SellMeBooks.class)));
 
                     //reply that we are able to start trading (the message is ignored by the environment)
                     ACLMessage reply = request.createReply();
@@ -268,64 +412,260 @@ public class BookTraderImproved extends Agent {
                 super(a, period);
             }
 
+            //the first round starts right after the StartTrading, not one period later
+            @Override
+            public void onStart() {
+                super.onStart();
+                onTick();
+            }
+
             @Override
             protected void onTick() {
 
+                //ask for all books that are in my goals and I do not own them yet, the titles which are already
+                //negotiated are skipped by the scheduler
+                long now = System.currentTimeMillis();
+                List<BookInfo> unsatisfiedGoals = getUnsatisfiedGoalBooks(myGoal, myBooks);
+                for (BookInfo book : unsatisfiedGoals) {
+                    scheduler.request(book.getBookName(), now);
+                }
+
+                TraderState state = toTraderState(myGoal, myBooks);
+
                 try {
-                    //try to make request for all books that are in my goals and I do not own them yet                    
-                    List<BookInfo> unsatisfiedGoals = getUnsatisfiedGoalBooks(myGoal, myBooks);
-                    for (BookInfo book : unsatisfiedGoals) {
-
-                        //find other seller and prepare a CFP
-                        ServiceDescription sd = new ServiceDescription();
-                        sd.setType("book-trader");
-                        DFAgentDescription dfd = new DFAgentDescription();
-                        dfd.addServices(sd);
-
-                        DFAgentDescription[] traders = DFService.search(myAgent, dfd);
-
-                        ACLMessage buyBook = new ACLMessage(ACLMessage.CFP);
-                        buyBook.setLanguage(codec.getName());
-                        buyBook.setOntology(onto.getName());
-                        buyBook.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
-
-                        for (DFAgentDescription dfad : traders) {
-                            if (dfad.getName().equals(myAgent.getAID())) {
-                                continue;
-                            }
-                            buyBook.addReceiver(dfad.getName());
-                        }
+                    String title;
+                    while ((title = scheduler.next(now)) != null) {
 
-                        ArrayList<BookInfo> bis = new ArrayList<>();
+                        //we could have got the book since it was requested
+                        if (!containsBook(unsatisfiedGoals, title)) {
+                            scheduler.drop(title);
+                            continue;
+                        }
 
-                        BookInfo bi = new BookInfo();
-                        bi.setBookName(book.getBookName());
-                        bis.add(bi);
+                        //the book sells for more than we would pay, ask again when the market changes
+                        BookInfo wanted = new BookInfo();
+                        wanted.setBookName(title);
+                        if (!marketData.isWorthAsking(title, getBookValueBuy(strategy, wanted, state), now)) {
+                            scheduler.drop(title);
+                            continue;
+                        }
 
-                        SellMeBooks smb = new SellMeBooks();
-                        smb.setBooks(bis);
+                        if (environments == null) {
+                            environments = Utils.findEnvironments(myAgent);
+                        }
 
-                        getContentManager().fillContent(buyBook, new Action(myAgent.getAID(), smb));
-                        addBehaviour(new ObtainBook(myAgent, buyBook));
+                        //the CFP goes only to the traders which own the book, the environment is asked who they are
+                        if (!environments.isEmpty()) {
+                            FindOwners fo = new FindOwners(myAgent, title, environments);
+                            fo.negotiation = scheduler.start(title, fo, now);
+                            addBehaviour(fo);
+                            continue;
+                        }
 
+                        ObtainBook ob = createObtainBook(title, null);
+                        if (ob == null) {
+                            scheduler.drop(title);
+                            continue;
+                        }
+                        ob.negotiation = scheduler.start(title, ob, now);
+                        addBehaviour(ob);
                     }
 
-                } catch (Codec.CodecException | OntologyException | FIPAException e) {
+                } catch (FIPAException e) {
                     e.printStackTrace();
                 }
 
             }
         }
 
+        /**
+         * Creates the CFP for the title sent to the sellers (all other traders if they are not known), null if there is
+         * nobody to ask.
+         */
+        ObtainBook createObtainBook(String title, ArrayList<AID> sellers) {
+
+            try {
+                if (sellers == null) {
+                    ServiceDescription sd = new ServiceDescription();
+                    sd.setType("book-trader");
+                    DFAgentDescription dfd = new DFAgentDescription();
+                    dfd.addServices(sd);
+
+                    sellers = new ArrayList<AID>();
+                    for (DFAgentDescription dfad : DFService.search(myAgent, dfd)) {
+                        sellers.add(dfad.getName());
+                    }
+                }
+                sellers.remove(myAgent.getAID());
+
+                //nobody else has the book now
+                if (sellers.isEmpty())
+                    return null;
+
+                ACLMessage buyBook = new ACLMessage(ACLMessage.CFP);
+                buyBook.setLanguage(codec.getName());
+                buyBook.setOntology(onto.getName());
+                buyBook.setReplyByDate(new Date(System.currentTimeMillis() + rtt.getTimeout(sellers)));
+
+                for (AID seller : sellers) {
+                    buyBook.addReceiver(seller);
+                }
+
+                ArrayList<BookInfo> bis = new ArrayList<>();
+
+                BookInfo bi = new BookInfo();
+                bi.setBookName(title);
+                bis.add(bi);
+
+                SellMeBooks smb = new SellMeBooks();
+                smb.setBooks(bis);
+
+                getContentManager().fillContent(buyBook, new Action(myAgent.getAID(), smb));
+
+                return new ObtainBook(myAgent, buyBook);
+
+            } catch (Codec.CodecException | OntologyException | FIPAException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+
+        //asks the shards of the environment who owns the title, then sends the CFP to the owners - the agent does not
+        //wait for the answers, it keeps trading and answering the other messages
+        class FindOwners extends AchieveREInitiator {
+
+            String title;
+            ArrayList<AID> shards;
+            NegotiationScheduler.Negotiation negotiation; //the slot of this negotiation in the scheduler
+            long sent; //when the requests were sent, for the round-trip times of the shards
+            HashSet<AID> answered = new HashSet<AID>(); //the shards which replied (with anything)
+
+            public FindOwners(Agent a, String title, ArrayList<AID> shards) {
+                super(a, null);
+                this.title = title;
+                this.shards = shards;
+            }
+
+            @Override
+            protected Vector prepareRequests(ACLMessage request) {
+
+                sent = System.currentTimeMillis();
+                Date replyBy = new Date(sent + rtt.getTimeout(shards));
+
+                Vector<ACLMessage> requests = new Vector<ACLMessage>();
+                for (AID env : shards) {
+                    try {
+                        ACLMessage whoHas = Utils.createWhoHas(myAgent, env, title);
+                        whoHas.setReplyByDate(replyBy);
+                        requests.add(whoHas);
+                    } catch (Codec.CodecException e) {
+                        e.printStackTrace();
+                    } catch (OntologyException e) {
+                        e.printStackTrace();
+                    }
+                }
+                return requests;
+            }
+
+            @Override
+            protected void handleAllResponses(Vector responses) {
+                for (Object o : responses) {
+                    ACLMessage response = (ACLMessage) o;
+                    answered.add(response.getSender());
+                    rtt.sample(response.getSender(), System.currentTimeMillis() - sent);
+                }
+            }
+
+            @Override
+            protected void handleAllResultNotifications(Vector resultNotifications) {
+
+                //the owners are known only if all the shards told us
+                LinkedHashSet<AID> owners = new LinkedHashSet<AID>();
+                HashSet<AID> missing = new HashSet<AID>(shards);
+                for (Object o : resultNotifications) {
+                    ACLMessage notification = (ACLMessage) o;
+                    if (answered.add(notification.getSender())) {
+                        rtt.sample(notification.getSender(), System.currentTimeMillis() - sent);
+                    }
+                    if (notification.getPerformative() != ACLMessage.INFORM)
+                        continue;
+                    try {
+                        Utils.addOwners(myAgent, notification, owners);
+                        missing.remove(notification.getSender());
+                    } catch (Codec.CodecException e) {
+                        e.printStackTrace();
+                    } catch (OntologyException e) {
+                        e.printStackTrace();
+                    }
+                }
+                for (AID env : shards) {
+                    if (!answered.contains(env)) {
+                        rtt.timeout(env);
+                    }
+                }
+
+                //the CFP goes to all other traders if the environment does not tell us who the owners are (e.g. an
+                //older environment without WhoHas), the shards are looked up again
+                if (!missing.isEmpty()) {
+                    environments = null;
+                }
+
+                ObtainBook ob = createObtainBook(title, missing.isEmpty() ? new ArrayList<AID>(owners) : null);
+                if (ob != null) {
+                    ob.negotiation = negotiation;
+                    negotiation.setBehaviour(ob);
+                    addBehaviour(ob);
+                }
+            }
+
+            //the negotiation ends here, unless it continues by the CFP
+            @Override
+            public int onEnd() {
+                if (negotiation.isCurrent(this)) {
+                    scheduler.release(negotiation);
+                }
+                return super.onEnd();
+            }
+        }
+
         //this behavior takes care of the buying of the book itself
         class ObtainBook extends ContractNetInitiator {
 
             public ObtainBook(Agent a, ACLMessage cfp) {
                 super(a, cfp);
+                this.cfp = cfp;
             }
 
             Chosen c;  //we need to remember what offer we have chosen
             ArrayList<BookInfo> shouldReceive; //we also remember what the seller offered to us
+            NegotiationScheduler.Negotiation negotiation; //the slot of this negotiation in the scheduler
+            ACLMessage cfp; //the sellers we asked
+            long sent; //when the CFP was sent, for the round-trip times of the sellers
+
+            @Override
+            protected Vector prepareCfps(ACLMessage cfp) {
+                sent = System.currentTimeMillis();
+                return super.prepareCfps(cfp);
+            }
+
+            @Override
+            protected void handlePropose(ACLMessage propose, Vector acceptances) {
+                rtt.sample(propose.getSender(), System.currentTimeMillis() - sent);
+            }
+
+            @Override
+            protected void handleRefuse(ACLMessage refuse) {
+                rtt.sample(refuse.getSender(), System.currentTimeMillis() - sent);
+            }
+
+            //the negotiation ends here, unless it continues by the transaction
+            @Override
+            public int onEnd() {
+                if (negotiation.isCurrent(this)) {
+                    scheduler.release(negotiation);
+                }
+                return super.onEnd();
+            }
 
             //the seller informs us it processed the order, we need to send the payment
             @Override
@@ -336,7 +676,7 @@ public class BookTraderImproved extends Agent {
                     MakeTransaction mt = new MakeTransaction();
 
                     mt.setSenderName(myAgent.getName());
-                    mt.setReceiverName(inform.getSender().getName());
+                    mt.setReceiverName(Utils.getTraderName(inform));
                     mt.setTradeConversationID(inform.getConversationId());
 
                     if (c.getOffer().getBooks() == null) {
@@ -351,23 +691,25 @@ public class BookTraderImproved extends Agent {
                     }
 
                     mt.setReceivingBooks(shouldReceive);
-                    mt.setReceivingMoney(0.0);
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
+                    mt.setReceivingMoney(0);
 
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                    //the shard of the environment which keeps our state
+                    AID env = Utils.findEnvironment(myAgent, myAgent.getName());
 
                     ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
+                    transReq.addReceiver(env);
                     transReq.setLanguage(codec.getName());
                     transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                    //the environment answers when the other leg comes, or fails the leg after its match timeout
+                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + Environment.MATCH_TIMEOUT
+                            + Environment.EXPIRY_PERIOD + rtt.getTimeout(env)));
 
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
-                    addBehaviour(new SendBook(myAgent, transReq));
+                    getContentManager().fillContent(transReq, new Action(env, mt));
+
+                    SendBook sb = new SendBook(myAgent, transReq);
+                    sb.negotiation = negotiation;
+                    negotiation.setBehaviour(sb);
+                    addBehaviour(sb);
 
                 } catch (UngroundedException e) {
                     e.printStackTrace();
@@ -389,169 +731,79 @@ public class BookTraderImproved extends Agent {
                  The rest must be refused.                
                  */
 
-                Iterator it = responses.iterator();
-
-                //offer, which is currently best for me
-                Offer currentBestOffer = null;
-                //its utility
-                double currentBestOfferValue = Double.MIN_VALUE;
-                //and its index in responses.iterator() (when not couting "REFUSE" responses)
-                int currentBestOfferIndex = -1;
-
-                //all non "REFUSE" responses
-                List<ACLMessage> responseList = new ArrayList<>();
-
-                int index = -1;
-                while (it.hasNext()) {
-                    ACLMessage response = (ACLMessage) it.next();
+                //the sellers which did not reply before the deadline
+                HashSet<AID> missing = new HashSet<AID>();
+                Iterator receivers = cfp.getAllReceiver();
+                while (receivers.hasNext()) {
+                    missing.add((AID) receivers.next());
+                }
+                for (Object o : responses) {
+                    missing.remove(((ACLMessage) o).getSender());
+                }
+                for (AID seller : missing) {
+                    rtt.timeout(seller);
+                }
 
-                    ContentElement ce = null;
+                //decode all proposals (non "REFUSE" responses) once, the best offer is chosen by the scorer
+                scorer.reset();
+                for (Object o : responses) {
+                    ACLMessage response = (ACLMessage) o;
+                    if (response.getPerformative() == ACLMessage.REFUSE) {
+                        continue;
+                    }
                     try {
-                        if (response.getPerformative() == ACLMessage.REFUSE) {
-                            //System.out.println("Enemy refused");
-                            continue;
-                        }
-
-                        index++;
-                        responseList.add(response);
-
-                        ce = getContentManager().extractContent(response);
-
-                        ChooseFrom cf = (ChooseFrom) ce;
-
-                        ArrayList<Offer> offers = cf.getOffers();
-
-                        /*
-                         Foreach offer, check whether we can fulfill it(we have all requested books and enough money).
-                         And if we can, then compute its utility (how much would we gain, when accepting it).
-                         The best offer is than saved.
-                         */
-                        for (Offer o : offers) {
-                            //we must have enough money
-                            if (o.getMoney() > myMoney) {
-                                continue;
-                            }
-
-                            //and all requested books
-                            boolean foundAll = true;
-                            if (o.getBooks() != null) {
-                                for (BookInfo bi : o.getBooks()) {
-                                    String bn = bi.getBookName();
-                                    boolean found = false;
-                                    for (int j = 0; j < myBooks.size(); j++) {
-                                        if (myBooks.get(j).getBookName().equals(bn)) {
-                                            found = true;
-                                            bi.setBookID(myBooks.get(j).getBookID());
-                                            break;
-                                        }
-                                    }
-                                    if (!found) {
-                                        foundAll = false;
-                                        break;
-                                    }
-                                }
-                            }
-
-                            if (foundAll) {
-                                double offerUtility = getOfferUtility(o, cf.getWillSell());
-
-                                //if this offer is currently best for us, save it
-                                if (currentBestOffer == null || currentBestOfferValue < offerUtility) {
-                                    currentBestOffer = o;
-                                    currentBestOfferValue = offerUtility;
-                                    currentBestOfferIndex = index;
-                                }
-                            }
-                        }
+                        scorer.add(response, (ChooseFrom) cache.extract(response));
+                        continue;
                     } catch (Codec.CodecException e) {
                         e.printStackTrace();
                     } catch (OntologyException e) {
                         e.printStackTrace();
                     }
+                    //we do not understand the proposal
+                    ACLMessage reject = response.createReply();
+                    reject.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    acceptances.add(reject);
                 }
 
-                /* DEBUGGING best offer
-                 System.out.println("=============");
-                 System.out.println("Number of offers:" + index + " , current best offer index"
-                 + currentBestOfferIndex + "current best offer value:" + currentBestOfferValue);
-                 if (currentBestOffer != null) {
-                 System.out.println("This offer included: wanted money:" + currentBestOffer.getMoney());
-                 try {
-                 System.out.println("Wanted book:" + ((ChooseFrom) getContentManager().extractContent(responseList.get(currentBestOfferIndex))).getWillSell().get(0).getBookName());
-                 } catch (Codec.CodecException | OntologyException ex) {
-                 Logger.getLogger(BookTraderImproved.class.getName()).log(Level.SEVERE, null, ex);
-                 }
-                 if (currentBestOffer.getBooks() != null) {
-                 for (BookInfo book : currentBestOffer.getBooks()) {
-                 System.out.println("  requested book:" + book.getBookName());
-                 }
-                 }
-                 }
-                 System.out.println("-----------");
-                 */
-                //foreach non "REFUSE" proposal, we either accept it (when it's the best offer), or refuse it
-                for (int i = 0; i <= index; i++) {
-                    try {
-                        ACLMessage response = responseList.get(i);
+                TraderState state = toTraderState(myGoal, myBooks);
+                state.money = myMoney;
+                scorer.score(strategy, state, getSecondsFromStart());
 
-                        //when it is the best offer and we will not lose money on this offer
-                        if (i == currentBestOfferIndex && currentBestOfferValue > 0) {
+                //the best offer is accepted (if we do not lose money on it), all other proposals are refused
+                int best = scorer.getBestProposal();
+                for (int i = 0; i < scorer.getProposalCount(); i++) {
+                    ACLMessage response = scorer.getProposal(i);
+                    ACLMessage acc = response.createReply();
 
-                            ACLMessage acc = response.createReply();
-                            acc.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
+                    if (i == best) {
+                        acc.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
 
-                            Chosen ch = new Chosen();
-                            ch.setOffer(currentBestOffer);
+                        Chosen ch = new Chosen();
+                        ch.setOffer(scorer.getBestOffer(myBooks));
 
-                            ChooseFrom cf = (ChooseFrom) getContentManager().extractContent(response);
-                            c = ch;
-                            shouldReceive = cf.getWillSell();
+                        c = ch;
+                        shouldReceive = scorer.getBestWillSell();
 
-                            //System.out.println(myAgent.getName() + " buying for " + c.getOffer().getMoney() + " books: " + shouldReceive.get(0).getBookName());
+                        try {
                             getContentManager().fillContent(acc, ch);
-                            acceptances.add(acc);
-                        } else {
-                            ACLMessage acc = response.createReply();
+                        } catch (Codec.CodecException e) {
+                            e.printStackTrace();
+                            //the offer cannot be sent, the seller must not wait for our answer
+                            acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                            acc.setContent(null);
+                        } catch (OntologyException e) {
+                            e.printStackTrace();
                             acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
-                            acceptances.add(acc);
+                            acc.setContent(null);
                         }
-                    } catch (Codec.CodecException e) {
-                        e.printStackTrace();
-                    } catch (OntologyException e) {
-                        e.printStackTrace();
+                    } else {
+                        acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
                     }
+                    acceptances.add(acc);
                 }
             }
 
         }
-
-        /**
-         * Computes the money gain when making transaction with the given offer.
-         *
-         * @param offer offer to evaluate
-         * @param offeredBooks books that were offered to us
-         * @return utility computed as (myGain - myLoss)
-         */
-        private double getOfferUtility(Offer offer, List<BookInfo> offeredBooks) {
-            double requestedMoney = offer.getMoney();
-            List<BookInfo> requestedBooks = offer.getBooks();
-
-            double myLoss = requestedMoney;
-            if (requestedBooks != null) {
-                for (BookInfo requestedBook : requestedBooks) {
-                    myLoss += getBookValueSell(requestedBook, myGoal, myBooks);
-                }
-            }
-
-            double myGain = 0;
-            if (offeredBooks != null) {
-                for (BookInfo offeredBook : offeredBooks) {
-                    myGain += getBookValueBuy(offeredBook, myGoal, myBooks);
-                }
-            }
-            //System.out.println("Utility for " + offeredBooks.get(0).getBookName() + "is "  + (myGain - myLoss) );
-            return (myGain - myLoss);
-        }
     }
 
     //this behavior processes the selling of books
@@ -569,6 +821,9 @@ public class BookTraderImproved extends Agent {
 
     class SellBookResponder extends SSContractNetResponder {
 
+        //when we sent the proposal (or the deadline of the CFP, if later), for the round-trip time of the buyer
+        long proposed;
+
         public SellBookResponder(Agent a, ACLMessage cfp) {
             super(a, cfp);
         }
@@ -577,59 +832,26 @@ public class BookTraderImproved extends Agent {
         protected ACLMessage handleCfp(ACLMessage cfp) throws RefuseException, FailureException, NotUnderstoodException {
 
             try {
-                Action ac = (Action) getContentManager().extractContent(cfp);
+                Action ac = (Action) cache.extract(cfp);
 
                 SellMeBooks smb = (SellMeBooks) ac.getAction();
-                ArrayList<BookInfo> books = smb.getBooks();
-                ArrayList<BookInfo> sellBooks = new ArrayList<>();
-
-                //find out, if we have books the agent wants
-                for (int i = 0; i < books.size(); i++) {
-                    boolean found = false;
-                    for (int j = 0; j < myBooks.size(); j++) {
-                        if (myBooks.get(j).getBookName().equals(books.get(i).getBookName())) {
-                            sellBooks.add(myBooks.get(j));
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        throw new RefuseException("");
-                    }
-                }
-
-                ArrayList<Offer> offers = new ArrayList<>();
-                double sellPrice = 0;
-                for (BookInfo toSell : sellBooks) {
-                    sellPrice += getBookValueSell(toSell, myGoal, myBooks);
-                }
+                ChooseFrom cf = createOffers(strategy, smb.getBooks(), myGoal, myBooks);
 
-                //System.out.println(myAgent.getName() + " offering for " + sellPrice + " books: " + sellBooks.stream().map(Object::toString).collect(Collectors.joining(" ")));
-                Offer offer = new Offer();
-                offer.setMoney(sellPrice);
-                offers.add(offer);
-
-                // book-for-book, book+money offers
-                for (Goal g : getUnsatisfiedGoals(myGoal, myBooks)) {
-                    ArrayList<BookInfo> bis = new ArrayList<>();
-                    bis.add(g.getBook());
-
-                    Offer o = new Offer();
-                    o.setBooks(bis);
-                    double requiredMoney = Math.max(0, sellPrice - g.getValue());
-                    o.setMoney(requiredMoney);
-                    offers.add(o);
+                if (cf == null) {
+                    throw new RefuseException("");
                 }
-                ChooseFrom cf = new ChooseFrom();
-
-                cf.setWillSell(sellBooks);
-                cf.setOffers(offers);
 
                 //send the offers
                 ACLMessage reply = cfp.createReply();
                 reply.setPerformative(ACLMessage.PROPOSE);
-                reply.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
-                getContentManager().fillContent(reply, cf);
+                proposed = System.currentTimeMillis();
+                //the buyer answers after the deadline of its CFP (unless all the sellers answer sooner), the
+                //time of its answer is measured from then
+                if (cfp.getReplyByDate() != null) {
+                    proposed = Math.max(proposed, cfp.getReplyByDate().getTime());
+                }
+                reply.setReplyByDate(new Date(proposed + rtt.getTimeout(cfp.getSender())));
+                cache.fill(reply, cf);
 
                 return reply;
             } catch (UngroundedException e) {
@@ -647,14 +869,18 @@ public class BookTraderImproved extends Agent {
         @Override
         protected ACLMessage handleAcceptProposal(ACLMessage cfp, ACLMessage propose, ACLMessage accept) throws FailureException {
 
+            if (System.currentTimeMillis() >= proposed) {
+                rtt.sample(accept.getSender(), System.currentTimeMillis() - proposed);
+            }
+
             try {
-                ChooseFrom cf = (ChooseFrom) getContentManager().extractContent(propose);
+                ChooseFrom cf = (ChooseFrom) cache.extract(propose);
 
                 //prepare the transaction info and send it to the environment
                 MakeTransaction mt = new MakeTransaction();
 
                 mt.setSenderName(myAgent.getName());
-                mt.setReceiverName(cfp.getSender().getName());
+                mt.setReceiverName(Utils.getTraderName(cfp));
                 mt.setTradeConversationID(cfp.getConversationId());
 
                 if (cf.getWillSell() == null) {
@@ -662,9 +888,9 @@ public class BookTraderImproved extends Agent {
                 }
 
                 mt.setSendingBooks(cf.getWillSell());
-                mt.setSendingMoney(0.0);
+                mt.setSendingMoney(0);
 
-                Chosen c = (Chosen) getContentManager().extractContent(accept);
+                Chosen c = (Chosen) cache.extract(accept);
 
                 if (c.getOffer().getBooks() == null) {
                     c.getOffer().setBooks(new ArrayList<BookInfo>());
@@ -673,20 +899,18 @@ public class BookTraderImproved extends Agent {
                 mt.setReceivingBooks(c.getOffer().getBooks());
                 mt.setReceivingMoney(c.getOffer().getMoney());
 
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType("environment");
-                DFAgentDescription dfd = new DFAgentDescription();
-                dfd.addServices(sd);
-
-                DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+                //the shard of the environment which keeps our state
+                AID env = Utils.findEnvironment(myAgent, myAgent.getName());
 
                 ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                transReq.addReceiver(envs[0].getName());
+                transReq.addReceiver(env);
                 transReq.setLanguage(codec.getName());
                 transReq.setOntology(onto.getName());
-                transReq.setReplyByDate(new Date(System.currentTimeMillis() + 5000));
+                //the environment answers when the other leg comes, or fails the leg after its match timeout
+                transReq.setReplyByDate(new Date(System.currentTimeMillis() + Environment.MATCH_TIMEOUT
+                        + Environment.EXPIRY_PERIOD + rtt.getTimeout(env)));
 
-                getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
+                getContentManager().fillContent(transReq, new Action(env, mt));
 
                 addBehaviour(new SendBook(myAgent, transReq));
 
@@ -706,38 +930,42 @@ public class BookTraderImproved extends Agent {
 
             throw new FailureException("");
         }
+
+        @Override
+        protected void handleRejectProposal(ACLMessage cfp, ACLMessage propose, ACLMessage reject) {
+            if (System.currentTimeMillis() >= proposed) {
+                rtt.sample(reject.getSender(), System.currentTimeMillis() - proposed);
+            }
+        }
     }
 
     //after the transaction is complete (the environment returned an INFORM), we update our information
     class SendBook extends AchieveREInitiator {
 
+        //the negotiation the transaction belongs to (null when we are the seller)
+        NegotiationScheduler.Negotiation negotiation;
+
+        //the environment answers only after the other leg comes (or the leg expires), so the time of its reply is not a
+        //round trip and is not sampled
         public SendBook(Agent a, ACLMessage msg) {
             super(a, msg);
         }
 
+        @Override
+        public int onEnd() {
+            if (negotiation != null && negotiation.isCurrent(this)) {
+                scheduler.release(negotiation);
+            }
+            return super.onEnd();
+        }
+
         @Override
         protected void handleInform(ACLMessage inform) {
 
             try {
-                ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                getMyInfo.setLanguage(codec.getName());
-                getMyInfo.setOntology(onto.getName());
-
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType("environment");
-                DFAgentDescription dfd = new DFAgentDescription();
-                dfd.addServices(sd);
-
-                DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                getMyInfo.addReceiver(envs[0].getName());
-                getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
-
-                ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
-
-                Result res = (Result) getContentManager().extractContent(myInfo);
-
-                AgentInfo ai = (AgentInfo) res.getValue();
+                //our new state, from a replica of the environment if there is one (the state has to include
+                //this transaction)
+                AgentInfo ai = Utils.getMyInfo(myAgent, myAgent.getName(), Utils.getStateVersion(inform));
 
                 myBooks = ai.getBooks();
                 myGoal = ai.getGoals();
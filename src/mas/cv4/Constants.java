@@ -1,5 +1,6 @@
 package mas.cv4;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -8,12 +9,15 @@ import java.util.Set;
  */
 public class Constants {
 
-    static HashMap<String, Double> bookPrices;
+    static final HashMap<String, Double> bookPrices = new HashMap<String, Double>();
 
+    //books sorted by name, the index in this array is used as the ID of the title
+    static final String[] titles;
+    static final HashMap<String, Integer> titleIndex = new HashMap<String, Integer>();
 
-    //list of books which can be traded and their default prices
-    private static void fillPrices() {
-        bookPrices = new HashMap<String, Double>();
+    //list of books which can be traded and their default prices, filled when the class is initialized (the JVM makes it
+    //visible to all threads, the MarketKernels of the Tournament use it concurrently)
+    static {
         bookPrices.put("The Goldfinch", 50.0);
         bookPrices.put("The Rosie Project", 80.0);
         bookPrices.put("Sycamore Row", 120.0);
@@ -21,27 +25,39 @@ public class Constants {
         bookPrices.put("The Husband's Secretes", 90.0);
         bookPrices.put("Grain Brain", 150.0);
         bookPrices.put("Shadow Spell", 40.0);
-    }
-
-    public static double getPrice(String bookName) {
 
-        if (bookPrices == null) {
-            fillPrices();
+        titles = bookPrices.keySet().toArray(new String[0]);
+        Arrays.sort(titles);
+        for (int i = 0; i < titles.length; i++) {
+            titleIndex.put(titles[i], i);
         }
+    }
 
+    public static double getPrice(String bookName) {
         if (!bookPrices.containsKey(bookName))
             return Double.NaN;
         return bookPrices.get(bookName);
-
     }
 
     public static Set<String> getBooknames() {
+        return bookPrices.keySet();
+    }
 
-        if (bookPrices == null) {
-            fillPrices();
-        }
+    public static int getBookCount() {
+        return titles.length;
+    }
 
-        return bookPrices.keySet();
+    //returns the ID of the title, or -1 for unknown books
+    public static int getBookIndex(String bookName) {
+        Integer idx = titleIndex.get(bookName);
+        return idx == null ? -1 : idx;
+    }
+
+    public static String getBookName(int bookIndex) {
+        return titles[bookIndex];
+    }
 
+    public static double getPrice(int bookIndex) {
+        return getPrice(getBookName(bookIndex));
     }
 }
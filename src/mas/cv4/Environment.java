@@ -1,5 +1,6 @@
 package mas.cv4;
 
+import jade.content.Concept;
 import jade.content.ContentElement;
 import jade.content.lang.Codec;
 import jade.content.lang.sl.SLCodec;
@@ -7,17 +8,24 @@ import jade.content.onto.Ontology;
 import jade.content.onto.OntologyException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
+import jade.core.ServiceException;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.SimpleBehaviour;
 import jade.core.behaviours.TickerBehaviour;
+import jade.core.messaging.TopicManagementHelper;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.proto.AchieveREInitiator;
+import mas.cv4.market.MarketKernel;
 import mas.cv4.onto.*;
 import mas.cv4.onto.BookInfo;
 import mas.cv4.onto.BookOntology;
@@ -32,18 +40,77 @@ import java.util.*;
  */
 public class Environment extends Agent {
 
+    //a leg waits for the other leg (or the other shard) at most MATCH_TIMEOUT, the expired legs are failed every
+    //EXPIRY_PERIOD - the traders have to wait for the answer to their leg at least that long
+    public static final long MATCH_TIMEOUT = 5000;
+    public static final long EXPIRY_PERIOD = 1000;
+
     ArrayList<String> agents = new ArrayList<String>();
-    HashMap<String, AgentInfo> agentBooks = new HashMap<String, AgentInfo>();
-    HashMap<String, TransactionInfo> unfinishedTransaction = new HashMap<String, TransactionInfo>();
+    //the money, goals and books of the traders (the AgentInfo is created only for the messages)
+    AgentStateStore agentStates = new AgentStateStore();
+    //pending legs expire after 5 s, the finished transactions are remembered for a minute to answer repeated legs
+    TransactionTable transactions = new TransactionTable(MATCH_TIMEOUT, 60000);
     Codec codec = new SLCodec();
     Ontology onto = BookOntology.getInstance();
-    Random rnd = new Random();
-
+    Random rnd;
+    TraceRecorder recorder;
+
+    //the time the StartTrading messages were sent and whether a trade was settled since then
+    long tradingStarted;
+    boolean traded = false;
+    //notified about the start of the trading and the first trade (when started by the StartupBenchmark)
+    StartupBenchmark.Probe probe;
+
+    //the environment can be split into shards (argument shard=i/n), each of them keeps the state of the traders whose
+    //name hashes to it (Utils.getShard), the transactions between the shards are settled by ShardSettlement
+    int shard = 0;
+    int shards = 1;
+    HashMap<Integer, AID> shardAgents = new HashMap<Integer, AID>();
+    ShardSettlement settlement;
+
+    //the version of the state, increased with each change of the traders' states, and the replicas which get the changes
+    //(see EnvironmentReplica)
+    long stateVersion = 0;
+    ArrayList<AID> replicas = new ArrayList<AID>();
+
+    //the leaderboard and the prices for the GetLeaderboard and GetMarketStats queries
+    MarketView market = new MarketView(1000);
+    //the traders which own each book, for the WhoHas queries
+    OwnershipIndex ownership = new OwnershipIndex();
+    //the topic the prices of the transactions are published to, null if the topic service does not run
+    AID marketTopic;
 
     @Override
     protected void setup() {
         super.setup();
 
+        //the random generator is seeded, so that the competition can be replayed
+        rnd = Utils.createRandom(this);
+        recorder = TraceRecorder.getInstance();
+
+        if (getArguments() != null) {
+            for (Object arg : getArguments()) {
+                if (arg instanceof StartupBenchmark.Probe) {
+                    probe = (StartupBenchmark.Probe) arg;
+                }
+            }
+        }
+
+        String shardArg = Utils.getArgument(this, "shard");
+        if (shardArg != null) {
+            String[] parts = shardArg.split("/");
+            shard = Integer.parseInt(parts[0]);
+            shards = Integer.parseInt(parts[1]);
+        }
+        settlement = new ShardSettlement(this, MATCH_TIMEOUT, 30000, 60000);
+
+        try {
+            TopicManagementHelper topics = (TopicManagementHelper) getHelper(TopicManagementHelper.SERVICE_NAME);
+            marketTopic = topics.createTopic(MarketData.TOPIC);
+        } catch (ServiceException e) {
+            System.err.println("The topic service is not running, the market data will not be published");
+        }
+
         //register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
         this.getContentManager().registerOntology(onto);
@@ -52,6 +119,8 @@ public class Environment extends Agent {
         ServiceDescription sd = new ServiceDescription();
         sd.setType("environment");
         sd.setName("env");
+        sd.addProperties(new Property(Utils.SHARD_PROPERTY, String.valueOf(shard)));
+        sd.addProperties(new Property(Utils.SHARDS_PROPERTY, String.valueOf(shards)));
 
         //describe this agents and the services it provides
         DFAgentDescription dfd = new DFAgentDescription();
@@ -73,12 +142,21 @@ public class Environment extends Agent {
         addBehaviour(new MessageDispatcherBehavior());
         //periodically remove all transactions which were not completed in time
         addBehaviour(new UnfinishedTransactionsRemoverBehavior(this));
+        if (shards > 1) {
+            //process the messages from the other shards
+            addBehaviour(new ShardMessagesBehaviour());
+        }
+        //keep the replicas of the state up to date
+        addBehaviour(new ReplicaSubscriptionBehaviour());
+        addBehaviour(new ReplicaHeartbeatBehaviour(this));
 
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
+        System.out.println(transactions);
+        System.out.println(agentStates);
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -86,69 +164,428 @@ public class Environment extends Agent {
         }
     }
 
+    //record all messages delivered to the environment (if recording is on)
+    @Override
+    public void postMessage(ACLMessage msg) {
+        if (recorder != null) {
+            recorder.recordMessage(getName(), msg);
+        }
+        super.postMessage(msg);
+    }
+
+    //whether the state of the trader is kept by this shard
+    boolean owns(String traderName) {
+        return Utils.getShard(traderName, shards) == shard;
+    }
+
+    //the agent of the shard with the given index, null if it is not registered
+    AID getShardAgent(int index) {
+
+        AID agent = shardAgents.get(index);
+        if (agent != null)
+            return agent;
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        try {
+            for (DFAgentDescription env : DFService.search(this, dfd, all)) {
+                shardAgents.put(Utils.getIntProperty(env, Utils.SHARD_PROPERTY, 0), env.getName());
+            }
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+        return shardAgents.get(index);
+    }
+
+    //checks the trader can send what it wants to send in the transaction (with the books and money reserved by the
+    //transactions with the other shards), returns the reason of the failure or null
+    String checkLeg(MakeTransaction leg) {
+
+        String agentName = leg.getSenderName();
+        int agent = agentStates.getId(agentName);
+        if (agent == AgentStateStore.NONE)
+            return agentName + " not found";
+
+        ArrayList<BookInfo> missingBooks = getMissingBooks(agent, leg.getSendingBooks());
+        if (missingBooks.size() > 0)
+            return agentName + " does not have " + missingBooks;
+
+        if (agentStates.getMoney(agent) - settlement.getReservedMoney(agentName) < leg.getSendingMoney())
+            return agentName + " does not have enough money";
+
+        return null;
+    }
+
+    //finds the books the agent wants to send but does not own (or they are reserved by another transaction)
+    ArrayList<BookInfo> getMissingBooks(int agent, ArrayList<BookInfo> books) {
+        ArrayList<BookInfo> missing = new ArrayList<BookInfo>();
+        if (books == null)
+            return missing;
+        for (BookInfo bi : books) {
+            if (!agentStates.owns(agent, bi.getBookID()) || settlement.isReserved(bi.getBookID())) {
+                missing.add(bi);
+            }
+        }
+        return missing;
+    }
+
+    //check the list of sent and expected books and the amount of money match
+    static boolean legsMatch(MakeTransaction sendOrder1, MakeTransaction sendOrder2) {
+        return MarketKernel.legsMatch(getBookIDs(sendOrder1.getSendingBooks()), sendOrder1.getSendingMoney(),
+                getBookIDs(sendOrder1.getReceivingBooks()), sendOrder1.getReceivingMoney(),
+                getBookIDs(sendOrder2.getSendingBooks()), sendOrder2.getSendingMoney(),
+                getBookIDs(sendOrder2.getReceivingBooks()), sendOrder2.getReceivingMoney());
+    }
+
+    //the IDs of the books in the order
+    static int[] getBookIDs(ArrayList<BookInfo> books) {
+        if (books == null)
+            return new int[0];
+        int[] ids = new int[books.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = books.get(i).getBookID();
+        }
+        return ids;
+    }
+
+    //applies one side of a transaction settled with another shard - the trader sends and receives its books and money
+    void applyLeg(MakeTransaction leg) {
+
+        int agent = agentStates.getId(leg.getSenderName());
+
+        //the sent books leave this shard, the received ones come from the other shard
+        if (leg.getSendingBooks() != null) {
+            for (BookInfo bi : leg.getSendingBooks()) {
+                agentStates.removeBook(bi.getBookID());
+            }
+        }
+        if (leg.getReceivingBooks() != null) {
+            for (BookInfo bi : leg.getReceivingBooks()) {
+                agentStates.addBook(agent, bi.getBookID(), bi.getBookName());
+            }
+        }
+
+        agentStates.addMoney(agent, leg.getReceivingMoney() - leg.getSendingMoney());
+        System.out.println(leg.getSenderName() + " " + agentStates.toAgentInfo(agent).toString());
+
+        publishState(Collections.singletonList(leg.getSenderName()));
+    }
+
+    //a transaction was settled
+    void settled(MakeTransaction leg) {
+
+        System.out.println("Transaction: " + leg);
+        market.recordTrade(leg);
+
+        //a transaction between the shards is published by the coordinator only
+        if (marketTopic != null && (owns(leg.getReceiverName()) || ShardSettlement.isCoordinator(leg))) {
+            String tick = MarketData.getTick(leg, System.currentTimeMillis());
+            if (tick != null) {
+                ACLMessage data = new ACLMessage(ACLMessage.INFORM);
+                data.addReceiver(marketTopic);
+                data.setContent(tick);
+                send(data);
+            }
+        }
+
+        if (!traded) {
+            traded = true;
+            System.out.println("First trade " + (System.currentTimeMillis() - tradingStarted) + " ms after the start of trading");
+            if (probe != null) {
+                probe.firstTrade();
+            }
+        }
+    }
+
+    //the states of the traders changed, tell the replicas
+    void publishState(Collection<String> agentNames) {
+        stateVersion++;
+        for (String name : agentNames) {
+            int id = agentStates.getId(name);
+            AgentInfo ai = agentStates.toAgentInfo(id);
+            market.agentChanged(id, name, ai);
+            ownership.setBooks(id, name, ai.getBooks());
+        }
+        sendStateUpdate(replicas, agentNames);
+    }
+
+    void sendStateUpdate(Collection<AID> receivers, Collection<String> agentNames) {
+
+        if (receivers.isEmpty())
+            return;
+
+        ArrayList<AgentState> states = new ArrayList<AgentState>();
+        for (String name : agentNames) {
+            AgentState as = new AgentState();
+            as.setAgentName(name);
+            as.setAgentInfo(agentStates.toAgentInfo(agentStates.getId(name)));
+            states.add(as);
+        }
+
+        StateUpdate su = new StateUpdate();
+        su.setVersion(stateVersion);
+        su.setStates(states);
+
+        ACLMessage update = new ACLMessage(ACLMessage.INFORM);
+        update.setProtocol(EnvironmentReplica.PROTOCOL);
+        update.setLanguage(codec.getName());
+        update.setOntology(onto.getName());
+        for (AID replica : receivers) {
+            update.addReceiver(replica);
+        }
+
+        try {
+            getContentManager().fillContent(update, su);
+            send(update);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //tell the trader its transaction was done, with the version of the state which includes it
+    void replyDone(ACLMessage request) {
+        replyDone(new TransactionTable.ReplyInfo(request));
+    }
+
+    void replyDone(TransactionTable.ReplyInfo request) {
+        ACLMessage reply = request.createReply(ACLMessage.INFORM, "done");
+        reply.addUserDefinedParameter(Utils.STATE_VERSION_PARAMETER, String.valueOf(stateVersion));
+        send(reply);
+    }
+
+    void replyFailure(TransactionTable.ReplyInfo request, String text) {
+        send(request.createReply(ACLMessage.FAILURE, text));
+    }
+
+    //answers GetLeaderboard or GetMarketStats from the snapshot of the market, the same query on the same snapshot is
+    //encoded only once
+    void answerQuery(ACLMessage request, Concept query) {
+
+        MarketView.Snapshot s = market.getSnapshot(System.currentTimeMillis());
+
+        String key;
+        Object value;
+        if (query instanceof GetLeaderboard) {
+            Integer limit = ((GetLeaderboard) query).getLimit();
+            key = "leaderboard " + limit;
+            value = s.getLeaderboard(limit);
+        } else {
+            String bookName = ((GetMarketStats) query).getBookName();
+            key = "stats " + bookName;
+            value = s.getMarketStats(bookName);
+        }
+
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+
+        String content = s.getContent(key);
+        if (content != null) {
+            reply.setContent(content);
+        } else {
+            try {
+                getContentManager().fillContent(reply, new Result(query, value));
+                s.putContent(key, reply.getContent());
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+        send(reply);
+    }
+
+    void answerWhoHas(ACLMessage request, WhoHas whoHas) {
+
+        BookOwners bo = new BookOwners();
+        bo.setBookName(whoHas.getBookName());
+        bo.setOwners(ownership.getOwners(whoHas.getBookName()));
+
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        try {
+            getContentManager().fillContent(reply, new Result(whoHas, bo));
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        send(reply);
+    }
+
+    //generates the books, goals and money of the traders, keeps those of this shard
+    void createTraders(List<String> traderNames) {
+
+        ArrayList<String> booksNames = new ArrayList<String>();
+        booksNames.addAll(Constants.getBooknames());
+        //the book IDs of each shard are the numbers with the remainder shard (mod shards), so the books of
+        //different shards never get the same ID, even if the shards found different traders
+        int bID = 0;
+
+        //generate goals and books for each agent
+        for (String tr : traderNames) {
+
+            Collections.shuffle(booksNames,rnd);
+
+            //the goals are generated for all traders (the same in all shards which found the same traders), each
+            //shard keeps its own
+            int agent = owns(tr) ? agentStates.add(tr, MarketKernel.INITIAL_MONEY) : AgentStateStore.NONE;
+
+            for (int i = 0; i < 4; i++) {
+                int id = bID++ * shards + shard;
+                if (agent != AgentStateStore.NONE) {
+                    agentStates.addBook(agent, id, booksNames.get(i));
+                }
+            }
+
+            for (int i = 4; i < booksNames.size(); i++) {
+                int id = bID++ * shards + shard;
+                double value = Constants.getPrice(booksNames.get(i))+rnd.nextInt(40)-20;
+                if (agent != AgentStateStore.NONE) {
+                    agentStates.setGoal(agent, Constants.getBookIndex(booksNames.get(i)), id, value);
+                }
+            }
+
+            if (agent == AgentStateStore.NONE)
+                continue;
+
+            System.out.println("Created goals for: " + tr);
+            System.out.println("\t" + agentStates.toAgentInfo(agent).toString());
+        }
+        System.out.println(agentStates);
+
+        publishState(agentStates.getNames());
+    }
+
     //send the info about the start of trading, generate goals for agents
-    private class StartTradingBehavior extends OneShotBehaviour {
+    //each trader gets its own StartTrading with its initial books, goals and money, so it can start trading at once
+    private class StartTradingBehavior extends SimpleBehaviour {
+
+        boolean started = false;
 
         @Override
         public void action() {
 
+            //when replaying a trace, the names of the traders are given and no trader actually runs
+            String replayTraders = Utils.getArgument(myAgent, "traders");
+            //the number of traders to wait for (when the traders are started together with the environment)
+            String expect = Utils.getArgument(myAgent, "expect");
+
             //find all traders
             ServiceDescription sd = new ServiceDescription();
             sd.setType("book-trader");
             DFAgentDescription dfd = new DFAgentDescription();
             dfd.addServices(sd);
 
+            SearchConstraints all = new SearchConstraints();
+            all.setMaxResults(-1L);
+
             try {
-                DFAgentDescription[] traders = DFService.search(myAgent, dfd);
+                ArrayList<String> traderNames = new ArrayList<String>();
+                //the agent which receives the StartTrading of the trader with the same index, and the ID of the logical
+                //trader in it (-1 for normal traders)
+                ArrayList<AID> receivers = new ArrayList<AID>();
+                ArrayList<Integer> logicalIDs = new ArrayList<Integer>();
+                if (replayTraders != null) {
+                    traderNames.addAll(Arrays.asList(replayTraders.split(";")));
+                } else {
+                    for (DFAgentDescription tr : DFService.search(myAgent, dfd, all)) {
+                        //trader hosts run several logical traders, each of them gets its own goals
+                        int count = Utils.getLogicalTraderCount(tr);
+                        if (count > 0) {
+                            for (int i = 0; i < count; i++) {
+                                traderNames.add(Utils.getLogicalTraderName(tr.getName(), i));
+                                receivers.add(tr.getName());
+                                logicalIDs.add(i);
+                            }
+                        } else {
+                            traderNames.add(tr.getName().getName());
+                            receivers.add(tr.getName());
+                            logicalIDs.add(-1);
+                        }
+                    }
 
-                ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
-                startMsg.setOntology(onto.getName());
-                startMsg.setLanguage(codec.getName());
+                    if (expect != null && traderNames.size() < Integer.parseInt(expect)) {
+                        block(100);
+                        return;
+                    }
+                }
 
-                ArrayList<String> booksNames = new ArrayList<String>();
-                booksNames.addAll(Constants.getBooknames());
-                int bID = 0;
+                started = true;
 
-                //generate goals and books for each agent
-                for (DFAgentDescription tr : traders) {
+                //the traders are sorted by name, so the goals do not depend on the order the DF returned them in
+                final ArrayList<String> names = traderNames;
+                ArrayList<Integer> order = new ArrayList<Integer>();
+                for (int i = 0; i < names.size(); i++) {
+                    order.add(i);
+                }
+                Collections.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return names.get(o1).compareTo(names.get(o2));
+                    }
+                });
+                traderNames = new ArrayList<String>();
+                ArrayList<AID> sortedReceivers = new ArrayList<AID>();
+                ArrayList<Integer> sortedLogicalIDs = new ArrayList<Integer>();
+                for (int i : order) {
+                    traderNames.add(names.get(i));
+                    if (replayTraders == null) {
+                        sortedReceivers.add(receivers.get(i));
+                        sortedLogicalIDs.add(logicalIDs.get(i));
+                    }
+                }
+                receivers = sortedReceivers;
+                logicalIDs = sortedLogicalIDs;
 
-                    Collections.shuffle(booksNames,rnd);
-                    AgentInfo ai = new AgentInfo();
-                    ArrayList<BookInfo> books = new ArrayList<BookInfo>();
-                    ArrayList<Goal> goal = new ArrayList<Goal>();
+                createTraders(traderNames);
 
+                if (recorder != null) {
+                    recorder.recordTraders(getName(), traderNames);
+                }
 
-                    for (int i = 0; i < 4; i++) {
-                        BookInfo bi = new BookInfo();
-                        bi.setBookID(bID++);
-                        bi.setBookName(booksNames.get(i));
-                        books.add(bi);
-                    }
+                if (replayTraders != null) {
+                    return;
+                }
 
-                    for (int i = 4; i < booksNames.size(); i++) {
-                        BookInfo bi = new BookInfo();
-                        bi.setBookID(bID++);
-                        bi.setBookName(booksNames.get(i));
-                        Goal g = new Goal();
-                        g.setBook(bi);
-                        g.setValue(Constants.getPrice(booksNames.get(i))+rnd.nextInt(40)-20);
-                        goal.add(g);
+                //the personalized StartTrading messages, the logical traders of a host are told apart by the X-Trader
+                final Vector<ACLMessage> startMsgs = new Vector<ACLMessage>();
+                for (int i = 0; i < traderNames.size(); i++) {
+                    if (!owns(traderNames.get(i)))
+                        continue;
+
+                    ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
+                    startMsg.setOntology(onto.getName());
+                    startMsg.setLanguage(codec.getName());
+                    startMsg.addReceiver(receivers.get(i));
+                    if (logicalIDs.get(i) >= 0) {
+                        startMsg.addUserDefinedParameter(Utils.TRADER_PARAMETER, String.valueOf(logicalIDs.get(i)));
                     }
 
-                    ai.setBooks(books);
-                    ai.setGoals(goal);
-                    ai.setMoney(400);
-
-                    System.out.println("Created goals for: " + tr.getName().getName());
-                    System.out.println("\t" + ai.toString());
-                    agentBooks.put(tr.getName().getName(), ai);
-                    startMsg.addReceiver(tr.getName());
+                    StartTrading st = new StartTrading();
+                    st.setAgentInfo(agentStates.toAgentInfo(agentStates.getId(traderNames.get(i))));
+                    getContentManager().fillContent(startMsg, new Action(myAgent.getAID(), st));
+                    startMsgs.add(startMsg);
                 }
 
+                tradingStarted = System.currentTimeMillis();
+                if (probe != null) {
+                    probe.tradingStarted(startMsgs.size());
+                }
 
-                getContentManager().fillContent(startMsg, new Action(myAgent.getAID(), new StartTrading()));
-
-                addBehaviour(new AchieveREInitiator(myAgent, startMsg));
+                addBehaviour(new AchieveREInitiator(myAgent, null) {
+                    @Override
+                    protected Vector prepareRequests(ACLMessage request) {
+                        return startMsgs;
+                    }
+                });
 
             } catch (FIPAException e) {
                 e.printStackTrace();
@@ -159,6 +596,11 @@ public class Environment extends Agent {
             }
 
         }
+
+        @Override
+        public boolean done() {
+            return started;
+        }
     }
 
     //print the utility of all agents every 15 seconds
@@ -191,11 +633,11 @@ public class Environment extends Agent {
 
             ArrayList<AgentUtil> utils = new ArrayList<AgentUtil>();
 
-            for (String aid : agentBooks.keySet()) {
-                AgentInfo ai = agentBooks.get(aid);
+            for (int id = 0; id < agentStates.size(); id++) {
+                AgentInfo ai = agentStates.toAgentInfo(id);
                 double util = Utils.computeUtility(ai);
                 boolean allGoals = Utils.hasAllBooks(ai);
-                utils.add(new AgentUtil(aid, util, allGoals));
+                utils.add(new AgentUtil(agentStates.getName(id), util, allGoals));
             }
 
             Collections.sort(utils);
@@ -205,40 +647,25 @@ public class Environment extends Agent {
             for (int i = utils.size() - 1; i >=0; i--) {
                 AgentUtil au = utils.get(i);
                 System.out.printf("%50s  %13f %5s \n", au.agent, au.util, au.goalMet ? "YES" : "NO");
-                System.out.println(agentBooks.get(au.agent));
+                System.out.println(agentStates.toAgentInfo(agentStates.getId(au.agent)));
             }
             System.out.println();
 
         }
     }
 
-    //remove unmatched transactions older than 5 seconds every 5 seconds
+    //expire unmatched transactions older than 5 seconds and forget the old finished ones, every second
     private class UnfinishedTransactionsRemoverBehavior extends TickerBehaviour {
 
         public UnfinishedTransactionsRemoverBehavior(Agent myAgent) {
-            super(myAgent, 5000);
+            super(myAgent, EXPIRY_PERIOD);
         }
 
         @Override
         protected void onTick() {
-
-            ArrayList<String> remove = new ArrayList<String>();
-
-            long time = System.currentTimeMillis();
-            for (TransactionInfo ti : unfinishedTransaction.values()) {
-                if (ti.getTimeReceived()-time > 5000)
-                    remove.add(ti.getSendOrder().getTradeConversationID());
+            for (TransactionTable.ReplyInfo ri : transactions.expire(System.currentTimeMillis())) {
+                replyFailure(ri, "transaction not matched in time");
             }
-
-            for (String s : remove) {
-
-                ACLMessage fail = unfinishedTransaction.get(s).getSenderMessage().createReply();
-                fail.setPerformative(ACLMessage.FAILURE);
-                fail.setContent("transaction not matched in time");
-                send(fail);
-                unfinishedTransaction.remove(s);
-            }
-
         }
     }
 
@@ -270,9 +697,29 @@ public class Environment extends Agent {
 
             Action aa = (Action)ce;
 
-            //add behavior for MakeTransaction
+            //add behavior for MakeTransaction, the transactions with the traders of other shards are settled with them
             if (aa.getAction() instanceof MakeTransaction) {
-                myAgent.addBehaviour(new HandleSendBehaviour(myAgent, (MakeTransaction)aa.getAction(), received));
+                MakeTransaction mt = (MakeTransaction)aa.getAction();
+                if (!owns(mt.getSenderName())) {
+                    ACLMessage reply = received.createReply();
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent(mt.getSenderName() + " belongs to another shard");
+                    send(reply);
+                } else if (!owns(mt.getReceiverName())) {
+                    settlement.handleLeg(mt, received, System.currentTimeMillis());
+                } else {
+                    myAgent.addBehaviour(new HandleSendBehaviour(myAgent, mt, received));
+                }
+            }
+
+            //the queries about the market are answered at once from its snapshot
+            if (aa.getAction() instanceof GetLeaderboard || aa.getAction() instanceof GetMarketStats) {
+                answerQuery(received, aa.getAction());
+            }
+
+            //the owners of a book are answered at once from the index
+            if (aa.getAction() instanceof WhoHas) {
+                answerWhoHas(received, (WhoHas) aa.getAction());
             }
 
             //add behavior for GetMyInfo
@@ -283,6 +730,68 @@ public class Environment extends Agent {
         }
     }
 
+    //process the messages of the settlement between the shards and fail the settlements which take too long
+    private class ShardMessagesBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.MatchProtocol(ShardSettlement.PROTOCOL);
+        long lastExpire = System.currentTimeMillis();
+
+        @Override
+        public void action() {
+
+            long now = System.currentTimeMillis();
+            if (now - lastExpire > EXPIRY_PERIOD) {
+                settlement.expire(now);
+                lastExpire = now;
+            }
+
+            ACLMessage received = myAgent.receive(template);
+            if (received == null) {
+                block(1000);
+                return;
+            }
+            settlement.handleMessage(received, now);
+        }
+    }
+
+    //the replicas subscribe to the changes of the state, they get the whole state first
+    private class ReplicaSubscriptionBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.and(MessageTemplate.MatchProtocol(EnvironmentReplica.PROTOCOL),
+                MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
+                        MessageTemplate.MatchPerformative(ACLMessage.CANCEL)));
+
+        @Override
+        public void action() {
+
+            ACLMessage received = myAgent.receive(template);
+            if (received == null) {
+                block();
+                return;
+            }
+
+            AID replica = received.getSender();
+            replicas.remove(replica);
+            if (received.getPerformative() == ACLMessage.SUBSCRIBE) {
+                replicas.add(replica);
+                sendStateUpdate(Collections.singletonList(replica), agentStates.getNames());
+            }
+        }
+    }
+
+    //the replicas get the version every second even if nothing changes, so they know how old their state is
+    private class ReplicaHeartbeatBehaviour extends TickerBehaviour {
+
+        public ReplicaHeartbeatBehaviour(Agent myAgent) {
+            super(myAgent, EnvironmentReplica.HEARTBEAT_PERIOD);
+        }
+
+        @Override
+        protected void onTick() {
+            sendStateUpdate(replicas, Collections.<String>emptyList());
+        }
+    }
+
     //sends the info about the agent who requests it
     private class HandleInfoBehaviour extends OneShotBehaviour {
 
@@ -303,12 +812,12 @@ public class Environment extends Agent {
 
             ACLMessage reply = request.createReply();
 
-            String agentName = request.getSender().getName();
+            String agentName = Utils.getTraderName(request);
 
             //get the information
-            AgentInfo ai = agentBooks.get(agentName);
+            int agent = agentStates.getId(agentName);
 
-            if (ai == null) {
+            if (agent == AgentStateStore.NONE) {
                 reply.setPerformative(ACLMessage.FAILURE);
                 reply.setContent("agent not found");
                 send(reply);
@@ -317,8 +826,9 @@ public class Environment extends Agent {
 
             //send it to the agent
             reply.setPerformative(ACLMessage.INFORM);
+            reply.addUserDefinedParameter(Utils.STATE_VERSION_PARAMETER, String.valueOf(stateVersion));
             try {
-                getContentManager().fillContent(reply, new Result(gmi, ai));
+                getContentManager().fillContent(reply, new Result(gmi, agentStates.toAgentInfo(agent)));
             } catch (Codec.CodecException e) {
                 e.printStackTrace();
             } catch (OntologyException e) {
@@ -346,19 +856,43 @@ public class Environment extends Agent {
         public void action() {
 
             String transactionID = sendMsgContent.getTradeConversationID();
+            long now = System.currentTimeMillis();
+            long fingerprint = TransactionTable.fingerprint(sendMsgContent);
 
+            TransactionTable.Entry transaction = transactions.get(transactionID);
 
             //we got request from one agent, remember the transaction
-            if (!unfinishedTransaction.containsKey(transactionID)) { //this is the first time we know about transaction
-                unfinishedTransaction.put(transactionID, new TransactionInfo(sendMsgContent, sendMsg, System.currentTimeMillis()));
+            if (transaction == null) { //this is the first time we know about transaction
+                transactions.addPending(sendMsgContent, sendMsg, now);
+                return;
+            }
+
+            //the same leg again (the agent retried), only the latest request is answered
+            if (transaction.getState() == TransactionTable.State.PENDING_ONE_LEG && fingerprint == transaction.getFingerprint()) {
+                transactions.retry(transaction, sendMsg);
+                return;
+            }
+
+            //the transaction is finished, its legs get the same answer again, other legs cannot join it
+            if (transaction.getState() != TransactionTable.State.PENDING_ONE_LEG) {
+                TransactionTable.ReplyInfo reply = new TransactionTable.ReplyInfo(sendMsg);
+                if (!transaction.isLeg(fingerprint)) {
+                    replyFailure(reply, "transaction already finished");
+                } else if (transaction.getState() == TransactionTable.State.SETTLED) {
+                    transactions.repeated();
+                    replyDone(reply);
+                } else {
+                    transactions.repeated();
+                    replyFailure(reply, transaction.getResult());
+                }
                 return;
             }
 
             //we got request from the other agent
-            ACLMessage sendMsg1 = unfinishedTransaction.get(transactionID).getSenderMessage();
-            ACLMessage sendMsg2 = sendMsg;
+            TransactionTable.ReplyInfo sendMsg1 = transaction.getReply();
+            TransactionTable.ReplyInfo sendMsg2 = new TransactionTable.ReplyInfo(sendMsg);
 
-            MakeTransaction sendOrder1 = unfinishedTransaction.get(transactionID).getSendOrder();
+            MakeTransaction sendOrder1 = transaction.getLeg();
             MakeTransaction sendOrder2 = sendMsgContent;
 
 
@@ -366,170 +900,69 @@ public class Environment extends Agent {
             if (!sendOrder1.getReceiverName().equals(sendOrder2.getSenderName()) ||
                     !sendOrder1.getSenderName().equals(sendOrder2.getReceiverName())) {
 
-                sendFailure(sendMsg1, sendMsg2, "sender and receiver do not match");
+                sendFailure(transaction, sendMsg1, sendMsg2, fingerprint, "sender and receiver do not match");
+                return;
             }
 
             String agentName1 = sendOrder1.getSenderName();
             String agentName2 = sendOrder2.getSenderName();
 
-            AgentInfo agentInfo1 = agentBooks.get(agentName1);
-            AgentInfo agentInfo2 = agentBooks.get(agentName2);
-
-            //check the agents have all the books they want to send
-            ArrayList<BookInfo> ag1MissingBooks = getMissingBooks(agentInfo1, sendOrder1.getSendingBooks());
-            if (ag1MissingBooks.size() > 0) {
-                sendFailure(sendMsg1, sendMsg2, agentName1 + " does not have " + ag1MissingBooks);
-                return;
-            }
-
-            ArrayList<BookInfo> ag2MissingBooks = getMissingBooks(agentInfo2, sendOrder2.getSendingBooks());
-            if (ag2MissingBooks.size() > 0) {
-                sendFailure(sendMsg1, sendMsg2, agentName2 + " does not have " + ag2MissingBooks);
-                return;
-            }
-
-            //check the agent have enough money
-            if (agentInfo1.getMoney() < sendOrder1.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, agentName1 + " does not have enough money");
-                return;
-            }
-
-            if (agentInfo2.getMoney() < sendOrder2.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, agentName2 + " does not have enough money");
-                return;
-            }
-
-            //check the list of sent and expected books match
-            if (sendOrder1.getSendingBooks() != null && sendOrder2.getReceivingBooks() != null)
-                if (sendOrder1.getSendingBooks().size() != sendOrder2.getReceivingBooks().size()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
-
-            if (sendOrder2.getSendingBooks() != null && sendOrder1.getReceivingBooks() != null)
-                if (sendOrder1.getReceivingBooks().size() != sendOrder2.getSendingBooks().size()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
+            int agent1 = agentStates.getId(agentName1);
+            int agent2 = agentStates.getId(agentName2);
 
-            for (int i = 0; i < sendOrder1.getSendingBooks().size(); i++) {
-                if (sendOrder1.getSendingBooks().get(i).getBookID() != sendOrder2.getReceivingBooks().get(i).getBookID()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
+            //check the agents have all the books and the money they want to send
+            String reason = checkLeg(sendOrder1);
+            if (reason == null) {
+                reason = checkLeg(sendOrder2);
             }
-
-            for (int i = 0; i < sendOrder2.getSendingBooks().size(); i++) {
-                if (sendOrder2.getSendingBooks().get(i).getBookID() != sendOrder1.getReceivingBooks().get(i).getBookID()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
-            }
-
-            //check the amount of money matches
-            if (sendOrder1.getSendingMoney() != sendOrder2.getReceivingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, "orders do not match");
+            if (reason != null) {
+                sendFailure(transaction, sendMsg1, sendMsg2, fingerprint, reason);
                 return;
             }
 
-            if (sendOrder1.getReceivingMoney() != sendOrder2.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, "orders do not match");
+            //check the list of sent and expected books and the amount of money match (the fingerprints first, they
+            //differ for almost all legs which do not match)
+            if (fingerprint != transaction.getMatchFingerprint() || !legsMatch(sendOrder1, sendOrder2)) {
+                sendFailure(transaction, sendMsg1, sendMsg2, fingerprint, "orders do not match");
                 return;
             }
 
-            //remove the books the agent sends
-            ArrayList<BookInfo> books = agentInfo1.getBooks();
-            ArrayList<BookInfo> removeBooks = sendOrder1.getSendingBooks();
-            for (int i = 0; i < removeBooks.size(); i++) {
-                for (int j = 0; j < books.size(); j++) {
-                    if (books.get(j).getBookID() == removeBooks.get(i).getBookID()) {
-                        books.remove(j);
-                        break;
-                    }
-                }
-            }
-
-            //the same for the other agent
-            books = agentInfo2.getBooks();
-            removeBooks = sendOrder2.getSendingBooks();
-            for (int i = 0; i < removeBooks.size(); i++) {
-                for (int j = 0; j < books.size(); j++) {
-                    if (books.get(j).getBookID() == removeBooks.get(i).getBookID()) {
-                        books.remove(j);
-                        break;
-                    }
-                }
+            //move the books the agents send to the other one
+            for (BookInfo bi : sendOrder1.getSendingBooks()) {
+                agentStates.addBook(agent2, bi.getBookID(), bi.getBookName());
             }
-
-            //add books the agent receives
-            books = agentInfo1.getBooks();
-            ArrayList<BookInfo> addBooks = sendOrder2.getSendingBooks();
-            for (int i = 0; i < addBooks.size(); i++) {
-                books.add(addBooks.get(i));
+            for (BookInfo bi : sendOrder2.getSendingBooks()) {
+                agentStates.addBook(agent1, bi.getBookID(), bi.getBookName());
             }
 
-            //the same for the other one
-            books = agentInfo2.getBooks();
-            addBooks = sendOrder1.getSendingBooks();
-            for (int i = 0; i < addBooks.size(); i++) {
-                books.add(addBooks.get(i));
-            }
-
-            System.out.println("Transaction: " + sendOrder1);
+            settled(sendOrder1);
 
 
             //transfer money between agents
-            agentInfo1.setMoney(agentInfo1.getMoney()-sendOrder1.getSendingMoney());
-            agentInfo1.setMoney(agentInfo1.getMoney()+sendOrder2.getSendingMoney());
+            agentStates.addMoney(agent1, sendOrder2.getSendingMoney() - sendOrder1.getSendingMoney());
+            agentStates.addMoney(agent2, sendOrder1.getSendingMoney() - sendOrder2.getSendingMoney());
 
-            agentInfo2.setMoney(agentInfo2.getMoney()-sendOrder2.getSendingMoney());
-            agentInfo2.setMoney(agentInfo2.getMoney()+sendOrder1.getSendingMoney());
+            publishState(Arrays.asList(agentName1, agentName2));
+            transactions.finish(transaction, TransactionTable.State.SETTLED, "done", fingerprint, now);
 
             //send both agent an INFORM - the trade was successful
-            ACLMessage reply1 = sendMsg1.createReply();
-            ACLMessage reply2 = sendMsg2.createReply();
-            reply1.setPerformative(ACLMessage.INFORM);
-            reply2.setPerformative(ACLMessage.INFORM);
-            reply1.setContent("done");
-            reply2.setContent("done");
-            send(reply1);
-            send(reply2);
+            replyDone(sendMsg1);
+            replyDone(sendMsg2);
 
-            System.out.println(agentName1 + " " + agentInfo1.toString());
-            System.out.println(agentName2 + " " + agentInfo2.toString());
+            System.out.println(agentName1 + " " + agentStates.toAgentInfo(agent1).toString());
+            System.out.println(agentName2 + " " + agentStates.toAgentInfo(agent2).toString());
 
         }
 
         //send FAILURE to both agent, the failure is described as text, only performative is important
-        void sendFailure(ACLMessage msg1, ACLMessage msg2, String text) {
-            ACLMessage reply1 = msg1.createReply();
-            ACLMessage reply2 = msg2.createReply();
-            reply1.setPerformative(ACLMessage.FAILURE);
-            reply2.setPerformative(ACLMessage.FAILURE);
-            reply1.setContent(text);
-            reply2.setContent(text);
-            send(reply1);
-            send(reply2);
-        }
-
-
-        //finds the books the agent wants to send but does not own
-        ArrayList<BookInfo> getMissingBooks(AgentInfo agent, ArrayList<BookInfo> books) {
-            ArrayList<BookInfo> missing = new ArrayList<BookInfo>();
-            for (BookInfo bi : books) {
-                boolean found = false;
-                for (int i = 0; i < agent.getBooks().size(); i++) {
-                    if (agent.getBooks().get(i).getBookID() == bi.getBookID()) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    missing.add(bi);
-                }
-            }
-            return missing;
+        //the transaction failed, the repeated legs get the same answer
+        void sendFailure(TransactionTable.Entry transaction, TransactionTable.ReplyInfo msg1, TransactionTable.ReplyInfo msg2,
+                         long fingerprint2, String text) {
+            transactions.finish(transaction, TransactionTable.State.FAILED, text, fingerprint2, System.currentTimeMillis());
+            replyFailure(msg1, text);
+            replyFailure(msg2, text);
         }
+
     }
 
 }
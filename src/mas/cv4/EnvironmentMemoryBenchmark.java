@@ -0,0 +1,124 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures the memory the environment needs for a large number of traders. The traders are created the same way as at
+ * the start of the trading (Environment.createTraders - the AgentStateStore, the MarketView and the OwnershipIndex),
+ * then random trades move books and money between them. Prints the heap taken per trader (the names of the traders are
+ * counted separately) and the time of a full GC, and the same for the states kept as a map of AgentInfo objects, as the
+ * environment kept them before.
+ *
+ * Arguments: number of traders (default 1000000), number of trades (default 100000). The heap has to be large enough
+ * for both, e.g. -Xmx3g.
+ */
+public class EnvironmentMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int traders = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int trades = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        long start = usedMemory();
+        ArrayList<String> names = new ArrayList<String>(traders);
+        for (int i = 0; i < traders; i++) {
+            names.add(String.format("trader%07d@192.168.1.1:1099/JADE", i));
+        }
+        long withNames = usedMemory();
+
+        Environment env = new Environment();
+        env.rnd = new Random(42);
+
+        //the environment prints the goals of each trader
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        long created;
+        try {
+            long t = System.nanoTime();
+            env.createTraders(names);
+            created = System.nanoTime() - t;
+        } finally {
+            System.setOut(out);
+        }
+
+        long traded = trade(env, trades, new Random(42));
+        env.market.getSnapshot(System.currentTimeMillis());
+
+        long withEnvironment = usedMemory();
+        long gc = fullGcTime();
+
+        System.out.printf("%d traders, names: %d B per trader\n", traders, (withNames - start) / traders);
+        System.out.printf("environment: %d B per trader, created in %d ms, %d trades in %d ms, full GC %d ms\n",
+                (withEnvironment - withNames) / traders, created / 1000000, trades, traded / 1000000, gc);
+        System.out.println("\t" + env.agentStates);
+        System.out.println("\t" + env.ownership);
+
+        //the same states as AgentInfo objects
+        HashMap<String, AgentInfo> agentBooks = new HashMap<String, AgentInfo>();
+        for (int id = 0; id < env.agentStates.size(); id++) {
+            agentBooks.put(env.agentStates.getName(id), env.agentStates.toAgentInfo(id));
+        }
+        long withMap = usedMemory();
+        gc = fullGcTime();
+
+        System.out.printf("map of AgentInfo (without the indexes): %d B per trader, full GC %d ms\n",
+                (withMap - withEnvironment) / traders, gc);
+
+        //keep everything reachable until the end of the measurements
+        System.out.println(names.size() + agentBooks.size() + env.agentStates.size() + " states");
+    }
+
+    //moves a random book of one trader to another for money, the way the settlement does
+    static long trade(Environment env, int trades, Random rnd) {
+
+        AgentStateStore states = env.agentStates;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < trades; i++) {
+            int seller = rnd.nextInt(states.size());
+            int buyer = rnd.nextInt(states.size());
+            if (seller == buyer)
+                continue;
+
+            ArrayList<BookInfo> books = states.toAgentInfo(seller).getBooks();
+            if (books.isEmpty())
+                continue;
+
+            BookInfo bi = books.get(rnd.nextInt(books.size()));
+            long price = 100 * (1 + rnd.nextInt(100));
+            states.addBook(buyer, bi.getBookID(), bi.getBookName());
+            states.addMoney(buyer, -price);
+            states.addMoney(seller, price);
+            env.publishState(Arrays.asList(states.getName(seller), states.getName(buyer)));
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    static long usedMemory() throws InterruptedException {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    static long fullGcTime() {
+        long start = System.nanoTime();
+        System.gc();
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
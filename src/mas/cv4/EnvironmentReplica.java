@@ -0,0 +1,334 @@
+package mas.cv4;
+
+import jade.content.ContentElement;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.content.onto.basic.Result;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import mas.cv4.onto.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A read-only copy of the state of the environment (of one shard of it) which answers the GetMyInfo requests of the
+ * traders, so that the environment spends its time on the transactions.
+ *
+ * The replica subscribes to the environment and gets the states of the traders changed by each transaction together
+ * with the version of the state (and the version every second even if nothing changes). Each answer contains the
+ * version it comes from (the X-State-Version parameter). The staleness of the answers is bounded:
+ *  - the replica answers only if it heard from the environment in the last maxStaleness ms, otherwise it sends FAILURE
+ *  - the trader can ask for a minimal version (e.g. the version from the INFORM about its transaction), the request
+ *    then waits until the replica gets the version, or it fails after maxStaleness ms
+ * The traders ask the environment itself when the replica fails.
+ *
+ * Arguments: shard=i (the shard of the environment to follow, 0 by default), maxStaleness=ms (2000 by default).
+ */
+public class EnvironmentReplica extends Agent {
+
+    //the protocol of the messages between the environment and its replicas
+    public static final String PROTOCOL = "environment-replication";
+    //how often the environment sends its version to the replicas
+    public static final long HEARTBEAT_PERIOD = 1000;
+
+    Codec codec = new SLCodec();
+    Ontology onto = BookOntology.getInstance();
+
+    int shard = 0;
+    long maxStaleness = 2000;
+
+    AID environment;
+    HashMap<String, AgentInfo> agentBooks = new HashMap<String, AgentInfo>();
+    long version = -1;
+    //the time of the last message from the environment
+    long lastUpdate = 0;
+
+    //the requests waiting for a newer version
+    ArrayList<ACLMessage> waiting = new ArrayList<ACLMessage>();
+    ArrayList<Long> waitingSince = new ArrayList<Long>();
+
+    long answered = 0;
+    long delayed = 0;
+    long failed = 0;
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        String arg = Utils.getArgument(this, "shard");
+        if (arg != null) {
+            shard = Integer.parseInt(arg);
+        }
+        arg = Utils.getArgument(this, "maxStaleness");
+        if (arg != null) {
+            maxStaleness = Long.parseLong(arg);
+        }
+
+        this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerOntology(onto);
+
+        //subscribe to the environment, then answer the requests
+        addBehaviour(new SubscribeBehaviour(this));
+        addBehaviour(new UpdateBehaviour());
+        addBehaviour(new RequestBehaviour());
+        addBehaviour(new WaitingRequestsBehaviour(this));
+    }
+
+    @Override
+    protected void takeDown() {
+        super.takeDown();
+
+        if (environment != null) {
+            ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+            cancel.setProtocol(PROTOCOL);
+            cancel.addReceiver(environment);
+            send(cancel);
+
+            try {
+                DFService.deregister(this);
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println(getLocalName() + ": " + answered + " requests answered (" + delayed + " waited for a newer version), "
+                + failed + " failed");
+    }
+
+    //registers the replica with the DF, the traders find the replicas of their shard there
+    void register(int shards) {
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment-replica");
+        sd.setName("env-replica");
+        sd.addProperties(new Property(Utils.SHARD_PROPERTY, String.valueOf(shard)));
+        sd.addProperties(new Property(Utils.SHARDS_PROPERTY, String.valueOf(shards)));
+
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(getAID());
+        dfd.addServices(sd);
+
+        try {
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //whether the state is recent enough to answer from it
+    boolean isFresh(long now) {
+        return version >= 0 && now - lastUpdate <= maxStaleness;
+    }
+
+    void answer(ACLMessage request) {
+
+        ACLMessage reply = request.createReply();
+
+        AgentInfo ai = agentBooks.get(Utils.getTraderName(request));
+        if (ai == null) {
+            reply.setPerformative(ACLMessage.FAILURE);
+            reply.setContent("agent not found");
+            send(reply);
+            failed++;
+            return;
+        }
+
+        try {
+            Action a = (Action) getContentManager().extractContent(request);
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.addUserDefinedParameter(Utils.STATE_VERSION_PARAMETER, String.valueOf(version));
+            getContentManager().fillContent(reply, new Result(a.getAction(), ai));
+            send(reply);
+            answered++;
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void fail(ACLMessage request, String reason) {
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.FAILURE);
+        reply.setContent(reason);
+        send(reply);
+        failed++;
+    }
+
+    //looks for the environment shard until it finds it
+    private class SubscribeBehaviour extends TickerBehaviour {
+
+        public SubscribeBehaviour(Agent a) {
+            super(a, 1000);
+        }
+
+        @Override
+        protected void onTick() {
+
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType("environment");
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.addServices(sd);
+
+            SearchConstraints all = new SearchConstraints();
+            all.setMaxResults(-1L);
+
+            try {
+                for (DFAgentDescription env : DFService.search(myAgent, dfd, all)) {
+                    if (Utils.getIntProperty(env, Utils.SHARD_PROPERTY, 0) != shard)
+                        continue;
+
+                    environment = env.getName();
+
+                    ACLMessage subscribe = new ACLMessage(ACLMessage.SUBSCRIBE);
+                    subscribe.setProtocol(PROTOCOL);
+                    subscribe.addReceiver(environment);
+                    send(subscribe);
+
+                    register(Utils.getIntProperty(env, Utils.SHARDS_PROPERTY, 1));
+                    stop();
+                    return;
+                }
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //applies the changes sent by the environment
+    private class UpdateBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.and(MessageTemplate.MatchProtocol(PROTOCOL),
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM));
+
+        @Override
+        public void action() {
+
+            ACLMessage msg = myAgent.receive(template);
+            if (msg == null) {
+                block();
+                return;
+            }
+
+            try {
+                ContentElement ce = getContentManager().extractContent(msg);
+                if (!(ce instanceof StateUpdate))
+                    return;
+
+                //the messages from the environment come in the order they were sent, the versions only grow
+                StateUpdate su = (StateUpdate) ce;
+                for (AgentState as : su.getStates()) {
+                    agentBooks.put(as.getAgentName(), as.getAgentInfo());
+                }
+                version = su.getVersion();
+                lastUpdate = System.currentTimeMillis();
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+
+            //some of the waiting requests may have their version now
+            Iterator<ACLMessage> it = waiting.iterator();
+            Iterator<Long> since = waitingSince.iterator();
+            while (it.hasNext()) {
+                ACLMessage request = it.next();
+                since.next();
+                if (Utils.getStateVersion(request) <= version) {
+                    answer(request);
+                    it.remove();
+                    since.remove();
+                }
+            }
+        }
+    }
+
+    //answers GetMyInfo, other requests are not understood
+    private class RequestBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.MatchPerformative(ACLMessage.REQUEST);
+
+        @Override
+        public void action() {
+
+            ACLMessage request = myAgent.receive(template);
+            if (request == null) {
+                block();
+                return;
+            }
+
+            Object action = null;
+            try {
+                ContentElement ce = getContentManager().extractContent(request);
+                if (ce instanceof Action) {
+                    action = ((Action) ce).getAction();
+                }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+
+            if (!(action instanceof GetMyInfo)) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                send(reply);
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (!isFresh(now)) {
+                fail(request, "replica is stale");
+                return;
+            }
+
+            if (Utils.getStateVersion(request) > version) {
+                waiting.add(request);
+                waitingSince.add(now);
+                delayed++;
+                return;
+            }
+
+            answer(request);
+        }
+    }
+
+    //fails the requests which waited for a newer version too long
+    private class WaitingRequestsBehaviour extends TickerBehaviour {
+
+        public WaitingRequestsBehaviour(Agent a) {
+            super(a, HEARTBEAT_PERIOD);
+        }
+
+        @Override
+        protected void onTick() {
+
+            long now = System.currentTimeMillis();
+            Iterator<ACLMessage> it = waiting.iterator();
+            Iterator<Long> since = waitingSince.iterator();
+            while (it.hasNext()) {
+                ACLMessage request = it.next();
+                if (now - since.next() > maxStaleness) {
+                    fail(request, "replica is behind");
+                    it.remove();
+                    since.remove();
+                }
+            }
+        }
+    }
+}
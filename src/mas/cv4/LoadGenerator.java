@@ -0,0 +1,399 @@
+package mas.cv4;
+
+import jade.content.AgentAction;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.SimpleBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.BookOntology;
+import mas.cv4.onto.GetMyInfo;
+import mas.cv4.onto.MakeTransaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Sends synthetic requests to the environment at a fixed (open loop) rate, to find out how much load it can take.
+ *
+ * The requests are paired MakeTransaction legs between two random traders (the legs send nothing, so the state of the
+ * traders does not change, but they go through the whole settlement) and GetMyInfo requests of random traders. They
+ * are sent on behalf of the traders registered in the DF, the replies are redirected to this agent (reply-to).
+ *
+ * The rate does not depend on the replies - the requests are due at fixed times, and a request sent late (because the
+ * agent was busy) is measured from the time it was due. So the latencies include the time the requests waited, and
+ * are not hidden by the sender slowing down with the environment (coordinated omission). The latencies measured from
+ * the actual send are reported too.
+ *
+ * The rate is increased in steps, the report shows the achieved throughput and the latencies for each offered rate.
+ *
+ * Arguments: rates=comma separated requests/s (default 50,100,200,400,800), step=ms per rate (default 10000),
+ * mix=fraction of the requests which are MakeTransaction legs (default 0.5), drain=ms to wait for the replies after the
+ * last step (default 5000), seed=random seed.
+ */
+public class LoadGenerator extends Agent {
+
+    static final String REPLY_PREFIX = "load-";
+
+    //a request which was sent
+    static class Request {
+        final int step;
+        final long due;
+        final long sent;
+        final boolean transaction;
+        boolean answered = false;
+
+        Request(int step, long due, long sent, boolean transaction) {
+            this.step = step;
+            this.due = due;
+            this.sent = sent;
+            this.transaction = transaction;
+        }
+    }
+
+    //the results of one rate
+    static class Step {
+        final int rate;
+        int sent = 0;
+        int informs = 0;
+        int failures = 0;
+        //the replies which came during the step, whichever step sent the request
+        int repliesInStep = 0;
+        ArrayList<Long> latencies = new ArrayList<Long>();
+        ArrayList<Long> serviceTimes = new ArrayList<Long>();
+        ArrayList<Long> transactionLatencies = new ArrayList<Long>();
+
+        Step(int rate) {
+            this.rate = rate;
+        }
+    }
+
+    Codec codec = new SLCodec();
+    Ontology onto = BookOntology.getInstance();
+    Random rnd;
+
+    long stepLength;
+    long drain;
+    //the probability that a free slot starts a transaction (the next slot is its second leg)
+    double transactionProbability;
+
+    ArrayList<String> traders = new ArrayList<String>();
+    HashMap<String, AID> environments = new HashMap<String, AID>();
+
+    ArrayList<Step> steps = new ArrayList<Step>();
+    ArrayList<Request> requests = new ArrayList<Request>();
+
+    long started;
+    long finished;
+    long lastReply;
+    int transactions = 0;
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerOntology(onto);
+
+        rnd = Utils.createRandom(this);
+
+        String arg = Utils.getArgument(this, "rates");
+        for (String rate : (arg == null ? "50,100,200,400,800" : arg).split(",")) {
+            steps.add(new Step(Integer.parseInt(rate.trim())));
+        }
+        arg = Utils.getArgument(this, "step");
+        stepLength = (arg == null ? 10000 : Long.parseLong(arg)) * 1000000L;
+        arg = Utils.getArgument(this, "drain");
+        drain = (arg == null ? 5000 : Long.parseLong(arg)) * 1000000L;
+
+        //a transaction takes two slots, so with the probability p the fraction of legs is 2p / (1 + p)
+        arg = Utils.getArgument(this, "mix");
+        double mix = arg == null ? 0.5 : Double.parseDouble(arg);
+        transactionProbability = Math.max(0, Math.min(1, mix / (2 - mix)));
+
+        try {
+            findTraders();
+        } catch (FIPAException e) {
+            e.printStackTrace();
+            doDelete();
+            return;
+        }
+
+        if (traders.size() < 2 || environments.isEmpty()) {
+            System.err.println("The load generator needs the environment and at least two registered traders");
+            doDelete();
+            return;
+        }
+
+        System.out.println("Generating load for " + traders.size() + " traders, " + steps.size() + " steps of "
+                + stepLength / 1000000 + " ms");
+
+        addBehaviour(new GenerateBehaviour());
+        addBehaviour(new CollectRepliesBehaviour());
+    }
+
+    //the traders registered in the DF and the environment shard of each of them
+    void findTraders() throws FIPAException {
+
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+        DFAgentDescription[] envs = DFService.search(this, dfd, all);
+
+        sd = new ServiceDescription();
+        sd.setType("book-trader");
+        dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        for (DFAgentDescription tr : DFService.search(this, dfd, all)) {
+            int count = Utils.getLogicalTraderCount(tr);
+            if (count > 0) {
+                for (int i = 0; i < count; i++) {
+                    traders.add(Utils.getLogicalTraderName(tr.getName(), i));
+                }
+            } else {
+                traders.add(tr.getName().getName());
+            }
+        }
+
+        //the same choice as Utils.findEnvironment, without searching the DF for each request
+        for (String trader : traders) {
+            for (DFAgentDescription env : envs) {
+                int shards = Utils.getIntProperty(env, Utils.SHARDS_PROPERTY, 1);
+                if (Utils.getIntProperty(env, Utils.SHARD_PROPERTY, 0) == Utils.getShard(trader, shards)) {
+                    environments.put(trader, env.getName());
+                }
+            }
+            if (!environments.containsKey(trader) && envs.length > 0) {
+                environments.put(trader, envs[0].getName());
+            }
+        }
+    }
+
+    //a request of the trader, sent on its behalf (for the logical traders the host is the sender)
+    ACLMessage createRequest(String trader) {
+
+        AID env = environments.get(trader);
+
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setSender(Utils.getTraderAID(trader));
+        int i = trader.lastIndexOf('#');
+        if (i >= 0) {
+            msg.addUserDefinedParameter(Utils.TRADER_PARAMETER, trader.substring(i + 1));
+        }
+        msg.addReceiver(env);
+        msg.addReplyTo(getAID());
+        msg.setLanguage(codec.getName());
+        msg.setOntology(onto.getName());
+        msg.setReplyWith(REPLY_PREFIX + requests.size());
+        return msg;
+    }
+
+    //a leg which sends nothing and receives nothing
+    MakeTransaction createLeg(String sender, String receiver, String id) {
+        MakeTransaction mt = new MakeTransaction();
+        mt.setSenderName(sender);
+        mt.setReceiverName(receiver);
+        mt.setTradeConversationID(id);
+        mt.setSendingBooks(new ArrayList<BookInfo>());
+        mt.setReceivingBooks(new ArrayList<BookInfo>());
+        mt.setSendingMoney(0);
+        mt.setReceivingMoney(0);
+        return mt;
+    }
+
+    void sendRequest(int step, long due, String trader, AgentAction action, boolean transaction)
+            throws Codec.CodecException, OntologyException {
+
+        ACLMessage msg = createRequest(trader);
+        getContentManager().fillContent(msg, new Action(environments.get(trader), action));
+
+        long sent = System.nanoTime();
+        requests.add(new Request(step, due, sent, transaction));
+        steps.get(step).sent++;
+        send(msg);
+    }
+
+    //sends the requests at their due times, the requests which are late are sent at once
+    private class GenerateBehaviour extends SimpleBehaviour {
+
+        int step = 0;
+        long slot = 0;
+        long interval;
+        long stepStart;
+
+        //the second leg of the transaction, sent in the next slot
+        MakeTransaction secondLeg;
+
+        @Override
+        public void onStart() {
+            started = System.nanoTime();
+            stepStart = started;
+            interval = 1000000000L / steps.get(0).rate;
+        }
+
+        @Override
+        public void action() {
+
+            long now = System.nanoTime();
+
+            while (step < steps.size()) {
+
+                long due = stepStart + slot * interval;
+                if (due >= stepStart + stepLength) {
+                    //next rate
+                    step++;
+                    stepStart += stepLength;
+                    slot = 0;
+                    if (step < steps.size()) {
+                        interval = 1000000000L / steps.get(step).rate;
+                    }
+                    continue;
+                }
+
+                if (due > now) {
+                    block(Math.max(1, (due - now) / 1000000));
+                    return;
+                }
+
+                try {
+                    if (secondLeg != null) {
+                        sendRequest(step, due, secondLeg.getSenderName(), secondLeg, true);
+                        secondLeg = null;
+                    } else if (rnd.nextDouble() < transactionProbability) {
+                        String trader1 = traders.get(rnd.nextInt(traders.size()));
+                        String trader2 = trader1;
+                        while (trader2.equals(trader1)) {
+                            trader2 = traders.get(rnd.nextInt(traders.size()));
+                        }
+                        String id = getName() + "-" + transactions++;
+                        sendRequest(step, due, trader1, createLeg(trader1, trader2, id), true);
+                        secondLeg = createLeg(trader2, trader1, id);
+                    } else {
+                        String trader = traders.get(rnd.nextInt(traders.size()));
+                        sendRequest(step, due, trader, new GetMyInfo(), false);
+                    }
+                } catch (Codec.CodecException e) {
+                    e.printStackTrace();
+                } catch (OntologyException e) {
+                    e.printStackTrace();
+                }
+
+                slot++;
+            }
+
+            finished = System.nanoTime();
+        }
+
+        @Override
+        public boolean done() {
+            return step >= steps.size();
+        }
+    }
+
+    //collects the replies, prints the report when the replies stop coming after the last step
+    private class CollectRepliesBehaviour extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+
+            ACLMessage reply = myAgent.receive();
+
+            if (reply == null) {
+                long now = System.nanoTime();
+                if (finished != 0 && now - Math.max(finished, lastReply) > drain) {
+                    printReport();
+                    myAgent.doDelete();
+                    return;
+                }
+                block(100);
+                return;
+            }
+
+            lastReply = System.nanoTime();
+
+            String inReplyTo = reply.getInReplyTo();
+            if (inReplyTo == null || !inReplyTo.startsWith(REPLY_PREFIX))
+                return;
+
+            Request r = requests.get(Integer.parseInt(inReplyTo.substring(REPLY_PREFIX.length())));
+            if (r.answered)
+                return;
+            r.answered = true;
+
+            Step s = steps.get(r.step);
+            s.latencies.add(lastReply - r.due);
+            s.serviceTimes.add(lastReply - r.sent);
+            if (r.transaction) {
+                s.transactionLatencies.add(lastReply - r.due);
+            }
+
+            if (reply.getPerformative() == ACLMessage.INFORM) {
+                s.informs++;
+            } else {
+                s.failures++;
+            }
+
+            int replyStep = (int) ((lastReply - started) / stepLength);
+            if (replyStep < steps.size()) {
+                steps.get(replyStep).repliesInStep++;
+            }
+        }
+    }
+
+    //the throughput-latency curve, one line per offered rate (the latencies in ms)
+    void printReport() {
+
+        double seconds = stepLength / 1e9;
+
+        System.out.println();
+        System.out.println("Load generator finished, latencies corrected for coordinated omission (from the due time)");
+        System.out.printf("%10s %10s %8s %8s %8s %6s %9s %9s %9s %9s %9s %11s %11s\n", "offered/s", "achieved/s",
+                "sent", "informs", "failures", "lost", "p50", "p90", "p99", "p99.9", "max", "legs p99", "service p99");
+
+        for (Step s : steps) {
+            long[] latencies = sort(s.latencies);
+            long[] transactionLatencies = sort(s.transactionLatencies);
+            long[] serviceTimes = sort(s.serviceTimes);
+            System.out.printf("%10d %10.1f %8d %8d %8d %6d %9s %9s %9s %9s %9s %11s %11s\n", s.rate,
+                    s.repliesInStep / seconds, s.sent, s.informs, s.failures, s.sent - s.latencies.size(),
+                    format(latencies, 0.5), format(latencies, 0.9), format(latencies, 0.99),
+                    format(latencies, 0.999), format(latencies, 1), format(transactionLatencies, 0.99),
+                    format(serviceTimes, 0.99));
+        }
+
+        System.out.println();
+    }
+
+    static long[] sort(ArrayList<Long> values) {
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    static String format(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return "-";
+        return String.format("%.3f", TraceReplayer.percentile(sorted, p) / 1e6);
+    }
+}
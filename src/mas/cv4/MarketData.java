@@ -0,0 +1,149 @@
+package mas.cv4;
+
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.Money;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The market data feed - the environment publishes the prices of the settled transactions to the TOPIC, the traders
+ * keep the last price and the average price weighted by the volume (VWAP) of each book over the last window ms.
+ *
+ * The messages are compact, one tick per line: "titleID price volume time" (the title ID is the index of the book in
+ * Constants, the price is in cents). Only the transactions in which one book was bought for money alone have a price.
+ * The prices returned by the methods are in whole units, as the values of the strategies.
+ */
+public class MarketData {
+
+    public static final String TOPIC = "book-market-data";
+
+    static class Tick {
+        final long price;
+        final long volume;
+        final long time;
+
+        Tick(long price, long volume, long time) {
+            this.price = price;
+            this.volume = volume;
+            this.time = time;
+        }
+    }
+
+    long window;
+    double tolerance;
+
+    //the ticks of each title in the window, the newest last
+    ArrayList<ArrayDeque<Tick>> ticks = new ArrayList<ArrayDeque<Tick>>();
+
+    long received = 0;
+    long skipped = 0;
+
+    public MarketData(long window, double tolerance) {
+        this.window = window;
+        this.tolerance = tolerance;
+        for (int i = 0; i < Constants.getBookCount(); i++) {
+            ticks.add(new ArrayDeque<Tick>());
+        }
+    }
+
+    /**
+     * Returns the tick of the transaction (the leg of one of the traders), null if the transaction has no price.
+     */
+    public static String getTick(MakeTransaction leg, long time) {
+
+        ArrayList<BookInfo> sent = leg.getSendingBooks() == null ? new ArrayList<BookInfo>() : leg.getSendingBooks();
+        ArrayList<BookInfo> received = leg.getReceivingBooks() == null ? new ArrayList<BookInfo>() : leg.getReceivingBooks();
+
+        if (sent.isEmpty() && received.size() == 1 && leg.getReceivingMoney() == 0) {
+            return encode(received.get(0).getBookName(), leg.getSendingMoney(), time);
+        }
+        if (received.isEmpty() && sent.size() == 1 && leg.getSendingMoney() == 0) {
+            return encode(sent.get(0).getBookName(), leg.getReceivingMoney(), time);
+        }
+        return null;
+    }
+
+    static String encode(String bookName, long price, long time) {
+        int title = Constants.getBookIndex(bookName);
+        if (title < 0)
+            return null;
+        return title + " " + price + " " + 1 + " " + time;
+    }
+
+    //a message from the topic
+    public void update(String content) {
+
+        if (content == null)
+            return;
+
+        for (String line : content.split("\n")) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 4)
+                continue;
+            try {
+                int title = Integer.parseInt(parts[0]);
+                if (title < 0 || title >= ticks.size())
+                    continue;
+                ticks.get(title).addLast(new Tick(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                received++;
+            } catch (NumberFormatException e) {
+                //not a tick
+            }
+        }
+    }
+
+    //the ticks of the title in the window
+    ArrayDeque<Tick> getTicks(int title, long now) {
+        ArrayDeque<Tick> t = ticks.get(title);
+        Iterator<Tick> it = t.iterator();
+        while (it.hasNext() && now - it.next().time > window) {
+            it.remove();
+        }
+        return t;
+    }
+
+    /**
+     * Returns the last price of the book in the window, NaN if it was not traded.
+     */
+    public double getLastPrice(int title, long now) {
+        ArrayDeque<Tick> t = getTicks(title, now);
+        return t.isEmpty() ? Double.NaN : Money.toDouble(t.getLast().price);
+    }
+
+    /**
+     * Returns the average price of the book weighted by the volume in the window, NaN if it was not traded.
+     */
+    public double getVwap(int title, long now) {
+        long paid = 0;
+        long volume = 0;
+        for (Tick tick : getTicks(title, now)) {
+            paid += tick.price * tick.volume;
+            volume += tick.volume;
+        }
+        return volume == 0 ? Double.NaN : Money.toDouble(paid) / volume;
+    }
+
+    /**
+     * Whether to ask the sellers for the book - not if the market price is higher than the price we would pay (by more
+     * than the tolerance), they would hardly sell it to us. Without recent trades we always ask.
+     */
+    public boolean isWorthAsking(String bookName, double maxPrice, long now) {
+        int title = Constants.getBookIndex(bookName);
+        if (title < 0)
+            return true;
+
+        double vwap = getVwap(title, now);
+        if (Double.isNaN(vwap) || vwap <= maxPrice * (1 + tolerance))
+            return true;
+
+        skipped++;
+        return false;
+    }
+
+    public String toString() {
+        return "market data: " + received + " ticks, " + skipped + " CFPs skipped";
+    }
+}
@@ -0,0 +1,145 @@
+package mas.cv4;
+
+import jade.content.AgentAction;
+import jade.content.ContentElement;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.content.onto.basic.Result;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import mas.cv4.onto.*;
+
+/**
+ * Periodically asks the environment (all its shards) for the leaderboard and the market statistics and prints them.
+ *
+ * Arguments: period=ms (5000 by default), limit=n (the number of agents in the leaderboard, 10 by default),
+ * book=name (print the statistics of this book only).
+ */
+public class MarketMonitor extends Agent {
+
+    Codec codec = new SLCodec();
+    Ontology onto = BookOntology.getInstance();
+
+    int limit = 10;
+    String bookName;
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        long period = 5000;
+        String arg = Utils.getArgument(this, "period");
+        if (arg != null) {
+            period = Long.parseLong(arg);
+        }
+        arg = Utils.getArgument(this, "limit");
+        if (arg != null) {
+            limit = Integer.parseInt(arg);
+        }
+        bookName = Utils.getArgument(this, "book");
+
+        this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerOntology(onto);
+
+        addBehaviour(new QueryBehaviour(this, period));
+        addBehaviour(new PrintBehaviour());
+    }
+
+    void query(AID env, AgentAction action) throws Codec.CodecException, OntologyException {
+        ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+        request.setLanguage(codec.getName());
+        request.setOntology(onto.getName());
+        request.addReceiver(env);
+        getContentManager().fillContent(request, new Action(env, action));
+        send(request);
+    }
+
+    private class QueryBehaviour extends TickerBehaviour {
+
+        public QueryBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType("environment");
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.addServices(sd);
+
+            SearchConstraints all = new SearchConstraints();
+            all.setMaxResults(-1L);
+
+            try {
+                for (DFAgentDescription env : DFService.search(myAgent, dfd, all)) {
+                    GetLeaderboard gl = new GetLeaderboard();
+                    gl.setLimit(limit);
+                    query(env.getName(), gl);
+
+                    GetMarketStats gms = new GetMarketStats();
+                    gms.setBookName(bookName);
+                    query(env.getName(), gms);
+                }
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class PrintBehaviour extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+
+            ACLMessage msg = myAgent.receive(MessageTemplate.MatchPerformative(ACLMessage.INFORM));
+            if (msg == null) {
+                block();
+                return;
+            }
+
+            try {
+                ContentElement ce = getContentManager().extractContent(msg);
+                if (!(ce instanceof Result))
+                    return;
+
+                Object value = ((Result) ce).getValue();
+                String env = msg.getSender().getLocalName();
+                if (value instanceof Leaderboard) {
+                    Leaderboard lb = (Leaderboard) value;
+                    System.out.println(env + " leaderboard (version " + lb.getVersion() + "):");
+                    for (LeaderboardEntry e : lb.getEntries()) {
+                        System.out.printf("%50s  %13f %5s \n", e.getAgentName(), e.getUtility(), e.isAllGoals() ? "YES" : "NO");
+                    }
+                }
+                if (value instanceof MarketStats) {
+                    MarketStats ms = (MarketStats) value;
+                    System.out.println(env + " market (version " + ms.getVersion() + "): " + ms.getTrades() + " transactions");
+                    for (TitleStats ts : ms.getTitles()) {
+                        System.out.println("\t" + ts);
+                    }
+                }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package mas.cv4;
+
+import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.Leaderboard;
+import mas.cv4.onto.LeaderboardEntry;
+import mas.cv4.onto.MakeTransaction;
+import mas.cv4.onto.MarketStats;
+import mas.cv4.onto.Money;
+import mas.cv4.onto.TitleStats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * The leaderboard and the market statistics of the environment, for the GetLeaderboard and GetMarketStats queries.
+ *
+ * The settlement only updates the entries of the traders and books it changed (a constant amount of work per trade).
+ * The queries are answered from an immutable snapshot, which is rebuilt from the entries at most once per
+ * minPublishInterval, so the queries never look at the state of the environment, and polling them often does not
+ * cost more than that. The replies are encoded once per snapshot and query, the later queries only copy the content.
+ *
+ * The utilities of the traders are kept in columns by the IDs of the traders in the AgentStateStore, the entries of the
+ * leaderboard are created only for the traders in the replies.
+ *
+ * The settlement and the queries both run in the environment's thread, so nothing here is synchronized.
+ */
+public class MarketView {
+
+    //an immutable view of the market, the lists are never changed after the snapshot is published
+    public static class Snapshot {
+
+        final long version;
+        final long time;
+        final long trades;
+        //the utilities of the traders (copied when the snapshot is created), the names never change
+        final int traders;
+        final String[] names;
+        final double[] utility;
+        final BitSet allGoals;
+        final ArrayList<TitleStats> titles;
+
+        //the encoded replies to the queries on this snapshot, by the query
+        final HashMap<String, String> contents = new HashMap<String, String>();
+
+        Snapshot(long version, long time, long trades, int traders, String[] names, double[] utility, BitSet allGoals,
+                 ArrayList<TitleStats> titles) {
+            this.version = version;
+            this.time = time;
+            this.trades = trades;
+            this.traders = traders;
+            this.names = names;
+            this.utility = utility;
+            this.allGoals = allGoals;
+            this.titles = titles;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        //the best limit agents (all for a null limit)
+        public Leaderboard getLeaderboard(Integer limit) {
+            Leaderboard lb = new Leaderboard();
+            lb.setVersion(version);
+            int n = limit == null ? traders : Math.max(0, Math.min(limit, traders));
+
+            ArrayList<LeaderboardEntry> entries = new ArrayList<LeaderboardEntry>(n);
+            for (int id : getBest(n)) {
+                LeaderboardEntry e = new LeaderboardEntry();
+                e.setAgentName(names[id]);
+                e.setUtility(utility[id]);
+                e.setAllGoals(allGoals.get(id));
+                entries.add(e);
+            }
+            lb.setEntries(entries);
+            return lb;
+        }
+
+        //the IDs of the n traders with the highest utility, the best first
+        int[] getBest(int n) {
+
+            if (n == 0)
+                return new int[0];
+
+            //the worst of the best traders is at the head of the queue
+            PriorityQueue<Integer> best = new PriorityQueue<Integer>(n, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    int c = Double.compare(utility[o1], utility[o2]);
+                    return c != 0 ? c : Integer.compare(o2, o1);
+                }
+            });
+            for (int id = 0; id < traders; id++) {
+                if (best.size() < n) {
+                    best.add(id);
+                } else if (best.comparator().compare(id, best.peek()) > 0) {
+                    best.poll();
+                    best.add(id);
+                }
+            }
+
+            int[] ids = new int[best.size()];
+            for (int i = ids.length - 1; i >= 0; i--) {
+                ids[i] = best.poll();
+            }
+            return ids;
+        }
+
+        //the statistics of all books (or of the book with the given name)
+        public MarketStats getMarketStats(String bookName) {
+            MarketStats ms = new MarketStats();
+            ms.setVersion(version);
+            ms.setTrades(trades);
+            ArrayList<TitleStats> selected = new ArrayList<TitleStats>();
+            for (TitleStats ts : titles) {
+                if (bookName == null || bookName.equals(ts.getBookName())) {
+                    selected.add(ts);
+                }
+            }
+            ms.setTitles(selected);
+            return ms;
+        }
+
+        public String getContent(String query) {
+            return contents.get(query);
+        }
+
+        public void putContent(String query, String content) {
+            contents.put(query, content);
+        }
+    }
+
+    //the statistics of one book, changed by the settlement (the money in cents)
+    static class TitleEntry {
+        long volume;
+        long lastPrice;
+        //the money paid and the number of copies bought for money alone
+        long paid;
+        long paidVolume;
+    }
+
+    long minPublishInterval;
+
+    //the entries changed by the settlement - the traders by their IDs, and the books
+    int traders = 0;
+    String[] names = new String[16];
+    double[] utility = new double[16];
+    BitSet allGoals = new BitSet();
+    TreeMap<String, TitleEntry> titles = new TreeMap<String, TitleEntry>();
+    long trades = 0;
+    long version = 0;
+    long publishedVersion = -1;
+
+    Snapshot snapshot = new Snapshot(0, 0, 0, 0, new String[0], new double[0], new BitSet(), new ArrayList<TitleStats>());
+
+    public MarketView(long minPublishInterval) {
+        this.minPublishInterval = minPublishInterval;
+    }
+
+    //the state of the agent changed
+    public void agentChanged(int agentId, String agentName, AgentInfo ai) {
+        if (agentId >= names.length) {
+            int capacity = Math.max(names.length * 2, agentId + 1);
+            names = Arrays.copyOf(names, capacity);
+            utility = Arrays.copyOf(utility, capacity);
+        }
+        traders = Math.max(traders, agentId + 1);
+        names[agentId] = agentName;
+        utility[agentId] = Utils.computeUtility(ai);
+        allGoals.set(agentId, Utils.hasAllBooks(ai));
+        version++;
+    }
+
+    //a transaction was settled, the leg is the leg of one of the traders
+    public void recordTrade(MakeTransaction leg) {
+
+        trades++;
+        version++;
+
+        ArrayList<BookInfo> sent = leg.getSendingBooks() == null ? new ArrayList<BookInfo>() : leg.getSendingBooks();
+        ArrayList<BookInfo> received = leg.getReceivingBooks() == null ? new ArrayList<BookInfo>() : leg.getReceivingBooks();
+
+        for (BookInfo bi : sent) {
+            getTitle(bi.getBookName()).volume++;
+        }
+        for (BookInfo bi : received) {
+            getTitle(bi.getBookName()).volume++;
+        }
+
+        //a single book bought for money has a price, the other trades are exchanges of books
+        if (sent.isEmpty() && received.size() == 1 && leg.getReceivingMoney() == 0) {
+            recordPrice(received.get(0).getBookName(), leg.getSendingMoney());
+        } else if (received.isEmpty() && sent.size() == 1 && leg.getSendingMoney() == 0) {
+            recordPrice(sent.get(0).getBookName(), leg.getReceivingMoney());
+        }
+    }
+
+    void recordPrice(String bookName, long price) {
+        TitleEntry t = getTitle(bookName);
+        t.lastPrice = price;
+        t.paid += price;
+        t.paidVolume++;
+    }
+
+    TitleEntry getTitle(String bookName) {
+        TitleEntry t = titles.get(bookName);
+        if (t == null) {
+            t = new TitleEntry();
+            titles.put(bookName, t);
+        }
+        return t;
+    }
+
+    /**
+     * Returns the snapshot for the queries, a new one is published if anything changed and the last one is older than
+     * minPublishInterval.
+     */
+    public Snapshot getSnapshot(long now) {
+
+        Snapshot s = snapshot;
+        if (publishedVersion == version || now - s.time < minPublishInterval)
+            return s;
+
+        ArrayList<TitleStats> titleStats = new ArrayList<TitleStats>(titles.size());
+        for (String bookName : titles.keySet()) {
+            TitleEntry t = titles.get(bookName);
+            TitleStats ts = new TitleStats();
+            ts.setBookName(bookName);
+            ts.setVolume(t.volume);
+            ts.setLastPrice(Money.toDouble(t.lastPrice));
+            ts.setAveragePrice(t.paidVolume == 0 ? 0 : Money.toDouble(t.paid) / t.paidVolume);
+            titleStats.add(ts);
+        }
+
+        s = new Snapshot(version, now, trades, traders, names, Arrays.copyOf(utility, traders), (BitSet) allGoals.clone(),
+                titleStats);
+        snapshot = s;
+        publishedVersion = version;
+        return s;
+    }
+}
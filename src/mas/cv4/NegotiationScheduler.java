@@ -0,0 +1,182 @@
+package mas.cv4;
+
+import jade.core.Agent;
+import jade.core.behaviours.Behaviour;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the negotiations (buying of books) of a trader, so that there is at most one negotiation for each
+ * title and at most maxConcurrent negotiations at the same time.
+ *
+ * The titles the trader wants to buy are queued by request(), the negotiations are started for the titles returned by
+ * next() and have to be released when they end. A negotiation which runs longer than staleAfter ms is considered lost
+ * (e.g. the seller never answered) - its behaviour is removed and the title can be negotiated again.
+ *
+ * The scheduler is used only from the agent's thread, so it is not synchronized.
+ */
+public class NegotiationScheduler {
+
+    /**
+     * A running negotiation. The behaviour is the current phase of the negotiation (the contract net, then the
+     * transaction), it is removed from the agent when the negotiation is superseded.
+     */
+    public static class Negotiation {
+
+        final String title;
+        final long started;
+        Behaviour behaviour;
+        boolean finished = false;
+
+        Negotiation(String title, long started) {
+            this.title = title;
+            this.started = started;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public void setBehaviour(Behaviour behaviour) {
+            this.behaviour = behaviour;
+        }
+
+        public boolean isCurrent(Behaviour b) {
+            return !finished && behaviour == b;
+        }
+    }
+
+    Agent agent;
+    int maxConcurrent;
+    long staleAfter;
+
+    HashMap<String, Negotiation> running = new HashMap<String, Negotiation>();
+    //the titles waiting for a negotiation and the time they were requested
+    LinkedHashMap<String, Long> waiting = new LinkedHashMap<String, Long>();
+
+    //statistics
+    int requested = 0;
+    int deduplicated = 0;
+    int started = 0;
+    int finished = 0;
+    int superseded = 0;
+    int dropped = 0;
+    int maxWaiting = 0;
+    long totalWaitMillis = 0;
+
+    public NegotiationScheduler(Agent agent, int maxConcurrent, long staleAfter) {
+        this.agent = agent;
+        this.maxConcurrent = maxConcurrent;
+        this.staleAfter = staleAfter;
+    }
+
+    /**
+     * Asks for a negotiation for the title. Nothing happens when the title is already negotiated or waiting.
+     */
+    public void request(String title, long now) {
+
+        requested++;
+
+        Negotiation n = running.get(title);
+        if (n != null && now - n.started > staleAfter) {
+            supersede(n);
+            n = null;
+        }
+
+        if (n != null || waiting.containsKey(title)) {
+            deduplicated++;
+            return;
+        }
+
+        waiting.put(title, now);
+        maxWaiting = Math.max(maxWaiting, waiting.size());
+    }
+
+    /**
+     * Returns the next title to negotiate, or null if there is none or too many negotiations are running. The caller
+     * must start the negotiation by start().
+     */
+    public String next(long now) {
+
+        //the stale negotiations do not count to the running ones
+        Iterator<Negotiation> it = running.values().iterator();
+        while (it.hasNext()) {
+            Negotiation n = it.next();
+            if (now - n.started > staleAfter) {
+                it.remove();
+                cancel(n);
+            }
+        }
+
+        if (running.size() >= maxConcurrent || waiting.isEmpty())
+            return null;
+
+        Iterator<Map.Entry<String, Long>> first = waiting.entrySet().iterator();
+        Map.Entry<String, Long> e = first.next();
+        first.remove();
+        totalWaitMillis += now - e.getValue();
+        return e.getKey();
+    }
+
+    /**
+     * Records the start of the negotiation for the title (returned by next()).
+     */
+    public Negotiation start(String title, Behaviour behaviour, long now) {
+        Negotiation n = new Negotiation(title, now);
+        n.behaviour = behaviour;
+        running.put(title, n);
+        started++;
+        return n;
+    }
+
+    /**
+     * The title returned by next() is not negotiated after all (e.g. we got the book in the meantime).
+     */
+    public void drop(String title) {
+        dropped++;
+    }
+
+    /**
+     * The negotiation ended (successfully or not), the title can be negotiated again.
+     */
+    public void release(Negotiation n) {
+        if (n.finished)
+            return;
+        n.finished = true;
+        if (running.get(n.title) == n) {
+            running.remove(n.title);
+        }
+        finished++;
+    }
+
+    void supersede(Negotiation n) {
+        running.remove(n.title);
+        cancel(n);
+    }
+
+    void cancel(Negotiation n) {
+        n.finished = true;
+        if (n.behaviour != null) {
+            agent.removeBehaviour(n.behaviour);
+        }
+        superseded++;
+    }
+
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    public String toString() {
+        return "negotiations: requested=" + requested + ", deduplicated=" + deduplicated + ", started=" + started
+                + ", finished=" + finished + ", superseded=" + superseded + ", dropped=" + dropped
+                + ", running=" + running.size() + ", waiting=" + waiting.size() + ", maxWaiting=" + maxWaiting
+                + ", avgWait=" + (started + dropped == 0 ? 0 : totalWaitMillis / (started + dropped)) + " ms";
+    }
+}
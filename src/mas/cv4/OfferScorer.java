@@ -0,0 +1,290 @@
+package mas.cv4;
+
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.market.TraderState;
+import mas.cv4.market.TradingStrategy;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.ChooseFrom;
+import mas.cv4.onto.Money;
+import mas.cv4.onto.Offer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Chooses the best of the offers received in a contract net.
+ *
+ * Each proposal is decoded only once, its offers are stored in flat arrays - the money and the IDs of the requested
+ * and offered titles (as in Constants). The values of all titles are computed once per decision, so scoring an offer
+ * is only a sum over the arrays. When there are many offers, they are scored in parallel in the fork/join pool.
+ *
+ * The scorer is reused by the agent for all its negotiations (reset() clears it), so the arrays are allocated only
+ * when they need to grow.
+ */
+public class OfferScorer {
+
+    //the number of offers from which the scoring is split into parallel tasks
+    static final int PARALLEL_THRESHOLD = 512;
+    //the smallest number of offers scored by a single task
+    static final int TASK_SIZE = 128;
+
+    //the title is not known to Constants
+    static final int UNKNOWN_TITLE = -1;
+
+    //decoded proposals
+    int proposalCount;
+    ACLMessage[] proposals = new ACLMessage[16];
+    ChooseFrom[] contents = new ChooseFrom[16];
+    //the offered titles of proposal i are offeredTitles[offeredStart[i] .. offeredStart[i + 1])
+    int[] offeredStart = new int[17];
+    int[] offeredTitles = new int[16];
+
+    //decoded offers
+    int offerCount;
+    int[] offerProposal = new int[16];
+    long[] offerMoney = new long[16];
+    Offer[] offers = new Offer[16];
+    //the requested titles of offer i are requestedTitles[requestedStart[i] .. requestedStart[i + 1])
+    int[] requestedStart = new int[17];
+    int[] requestedTitles = new int[16];
+
+    //the values of the titles for us, computed once per decision
+    double[] sellValue = new double[Constants.getBookCount()];
+    double[] buyValue = new double[Constants.getBookCount()];
+    int[] owned;
+    long money;
+
+    int bestOffer;
+    double bestUtility;
+
+    public void reset() {
+        for (int i = 0; i < proposalCount; i++) {
+            proposals[i] = null;
+            contents[i] = null;
+        }
+        for (int i = 0; i < offerCount; i++) {
+            offers[i] = null;
+        }
+        proposalCount = 0;
+        offerCount = 0;
+        offeredStart[0] = 0;
+        requestedStart[0] = 0;
+        bestOffer = -1;
+        bestUtility = 0;
+    }
+
+    /**
+     * Decodes the proposal and adds its offers.
+     */
+    public void add(ContentManager cm, ACLMessage proposal) throws Codec.CodecException, OntologyException {
+        add(proposal, (ChooseFrom) cm.extractContent(proposal));
+    }
+
+    public void add(ACLMessage proposal, ChooseFrom cf) {
+
+        if (proposalCount == proposals.length) {
+            proposals = Arrays.copyOf(proposals, 2 * proposalCount);
+            contents = Arrays.copyOf(contents, 2 * proposalCount);
+            offeredStart = Arrays.copyOf(offeredStart, 2 * proposalCount + 1);
+        }
+
+        int p = proposalCount++;
+        proposals[p] = proposal;
+        contents[p] = cf;
+
+        int end = offeredStart[p];
+        List<BookInfo> willSell = cf.getWillSell();
+        if (willSell != null) {
+            offeredTitles = ensureCapacity(offeredTitles, end + willSell.size());
+            for (BookInfo bi : willSell) {
+                offeredTitles[end++] = Constants.getBookIndex(bi.getBookName());
+            }
+        }
+        offeredStart[p + 1] = end;
+
+        if (cf.getOffers() == null)
+            return;
+
+        for (Offer o : cf.getOffers()) {
+
+            if (offerCount == offers.length) {
+                offerProposal = Arrays.copyOf(offerProposal, 2 * offerCount);
+                offerMoney = Arrays.copyOf(offerMoney, 2 * offerCount);
+                offers = Arrays.copyOf(offers, 2 * offerCount);
+                requestedStart = Arrays.copyOf(requestedStart, 2 * offerCount + 1);
+            }
+
+            int i = offerCount++;
+            offerProposal[i] = p;
+            offerMoney[i] = o.getMoney();
+            offers[i] = o;
+
+            end = requestedStart[i];
+            if (o.getBooks() != null) {
+                requestedTitles = ensureCapacity(requestedTitles, end + o.getBooks().size());
+                for (BookInfo bi : o.getBooks()) {
+                    requestedTitles[end++] = Constants.getBookIndex(bi.getBookName());
+                }
+            }
+            requestedStart[i + 1] = end;
+        }
+    }
+
+    static int[] ensureCapacity(int[] a, int size) {
+        if (size <= a.length)
+            return a;
+        return Arrays.copyOf(a, Math.max(size, 2 * a.length));
+    }
+
+    /**
+     * Finds the offer with the highest utility among the offers we can fulfill (we have enough money and all the
+     * requested books). The utility is the same as BookTraderImproved.getOfferUtility.
+     *
+     * @return the utility of the best offer, or 0 if there is no offer with a positive utility
+     */
+    public double score(TradingStrategy strategy, TraderState state, long seconds) {
+
+        for (int t = 0; t < sellValue.length; t++) {
+            sellValue[t] = strategy.getSellValue(state, t, seconds);
+            buyValue[t] = strategy.getBuyValue(state, t, seconds);
+        }
+        owned = state.owned;
+        money = state.money;
+
+        int best;
+        if (offerCount >= PARALLEL_THRESHOLD) {
+            best = ForkJoinPool.commonPool().invoke(new ScoreTask(0, offerCount));
+        } else {
+            best = scoreRange(0, offerCount);
+        }
+
+        bestOffer = best;
+        bestUtility = bestOffer == -1 ? 0 : utility(bestOffer);
+        return bestUtility;
+    }
+
+    //returns the index of the best offer in the range with a positive utility (the first one on ties), or -1
+    int scoreRange(int from, int to) {
+        int best = -1;
+        double bestValue = 0;
+        for (int i = from; i < to; i++) {
+            if (offerMoney[i] > money)
+                continue;
+            double u = utility(i);
+            if (u > bestValue) {
+                best = i;
+                bestValue = u;
+            }
+        }
+        return best;
+    }
+
+    //the utility of the offer, -infinity if we cannot fulfill it
+    double utility(int offer) {
+
+        double loss = Money.toDouble(offerMoney[offer]);
+        for (int j = requestedStart[offer]; j < requestedStart[offer + 1]; j++) {
+            int t = requestedTitles[j];
+            if (t == UNKNOWN_TITLE || owned[t] == 0)
+                return Double.NEGATIVE_INFINITY;
+            loss += sellValue[t];
+        }
+
+        double gain = 0;
+        int p = offerProposal[offer];
+        for (int j = offeredStart[p]; j < offeredStart[p + 1]; j++) {
+            int t = offeredTitles[j];
+            if (t == UNKNOWN_TITLE)
+                return Double.NEGATIVE_INFINITY;
+            gain += buyValue[t];
+        }
+
+        return gain - loss;
+    }
+
+    //scores a range of the offers, splits it in halves while it is large
+    class ScoreTask extends RecursiveTask<Integer> {
+
+        final int from;
+        final int to;
+
+        ScoreTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= TASK_SIZE) {
+                return scoreRange(from, to);
+            }
+
+            int mid = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(from, mid);
+            left.fork();
+            int right = new ScoreTask(mid, to).compute();
+            int l = left.join();
+
+            if (l == -1)
+                return right;
+            if (right == -1)
+                return l;
+            //the first offer wins on ties, as in the sequential pass
+            return utility(right) > utility(l) ? right : l;
+        }
+    }
+
+    public int getProposalCount() {
+        return proposalCount;
+    }
+
+    public ACLMessage getProposal(int proposal) {
+        return proposals[proposal];
+    }
+
+    public boolean hasBestOffer() {
+        return bestOffer != -1;
+    }
+
+    //the proposal containing the best offer, or -1
+    public int getBestProposal() {
+        return bestOffer == -1 ? -1 : offerProposal[bestOffer];
+    }
+
+    public double getBestUtility() {
+        return bestUtility;
+    }
+
+    /**
+     * Returns the best offer with the IDs of the requested books set to the IDs of our books, so that it can be sent
+     * in the ACCEPT and used in the transaction.
+     */
+    public Offer getBestOffer(List<BookInfo> myBooks) {
+        if (bestOffer == -1)
+            return null;
+
+        Offer o = offers[bestOffer];
+        if (o.getBooks() != null) {
+            for (BookInfo bi : o.getBooks()) {
+                for (BookInfo mine : myBooks) {
+                    if (mine.getBookName().equals(bi.getBookName())) {
+                        bi.setBookID(mine.getBookID());
+                        break;
+                    }
+                }
+            }
+        }
+        return o;
+    }
+
+    //the books offered to us in the proposal of the best offer
+    public ArrayList<BookInfo> getBestWillSell() {
+        return bestOffer == -1 ? null : contents[offerProposal[bestOffer]].getWillSell();
+    }
+}
@@ -0,0 +1,72 @@
+package mas.cv4;
+
+import mas.cv4.onto.BookInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+//the traders which own each book (title -> the IDs of the traders in the AgentStateStore), for the WhoHas queries
+//
+//the index is updated with the books of each trader whose state changed (the bits of the trader are set for the titles
+//it has and cleared for the others), so a transaction costs only the work with the books of its two traders. The
+//owners of a title are a bit set over the dense IDs of the traders, so the index takes a few bits per trader and title
+//(and the reference to its name) instead of the sets of names. The books with unknown titles are not indexed.
+public class OwnershipIndex {
+
+    BitSet[] owners = new BitSet[Constants.getBookCount()];
+    //the names of the traders by their IDs
+    String[] names = new String[16];
+    int traders = 0;
+
+    public OwnershipIndex() {
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = new BitSet();
+        }
+    }
+
+    public void setBooks(int traderId, String traderName, ArrayList<BookInfo> books) {
+
+        if (traderId >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, traderId + 1));
+        }
+        names[traderId] = traderName;
+        traders = Math.max(traders, traderId + 1);
+
+        for (BitSet o : owners) {
+            o.clear(traderId);
+        }
+        if (books != null) {
+            for (BookInfo bi : books) {
+                int title = Constants.getBookIndex(bi.getBookName());
+                if (title >= 0) {
+                    owners[title].set(traderId);
+                }
+            }
+        }
+    }
+
+    //the names of the traders which own the book (in the order of their IDs, i.e. by name for the traders created at
+    //the start of the trading)
+    public ArrayList<String> getOwners(String title) {
+
+        ArrayList<String> result = new ArrayList<String>();
+        int t = Constants.getBookIndex(title);
+        if (t < 0)
+            return result;
+
+        BitSet o = owners[t];
+        for (int id = o.nextSetBit(0); id >= 0; id = o.nextSetBit(id + 1)) {
+            result.add(names[id]);
+        }
+        return result;
+    }
+
+    public String toString() {
+        int indexed = 0;
+        for (BitSet o : owners) {
+            indexed += o.isEmpty() ? 0 : 1;
+        }
+        return "ownership index: " + indexed + " titles, " + traders + " traders";
+    }
+}
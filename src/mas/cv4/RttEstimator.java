@@ -0,0 +1,138 @@
+package mas.cv4;
+
+import jade.core.AID;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Estimates the round-trip time of the requests to each counterparty (the time until its reply) and the deadline for
+ * its replies, the same way TCP computes its retransmission timeout: the smoothed RTT and its variation are updated
+ * with each reply and the deadline is SRTT + 4 * RTTVAR. Until the first reply of a counterparty the initial timeout is
+ * used, each missed deadline doubles the timeout of the counterparty (until its next reply). The timeouts are kept
+ * between the minimum and the maximum.
+ *
+ * The last samples of all counterparties are kept for the statistics (toString), to tune the limits.
+ */
+public class RttEstimator {
+
+    static final double ALPHA = 0.125;
+    static final double BETA = 0.25;
+    static final int K = 4;
+    static final int MAX_BACKOFF = 6;
+
+    static class Estimate {
+        double srtt;
+        double rttvar;
+        long samples = 0;
+        long timeouts = 0;
+        int backoff = 0;
+    }
+
+    long initialTimeout;
+    long minTimeout;
+    long maxTimeout;
+
+    HashMap<String, Estimate> estimates = new HashMap<String, Estimate>();
+
+    //the last samples of all counterparties (a ring buffer)
+    long[] recent;
+    long samples = 0;
+    long timeouts = 0;
+
+    public RttEstimator(long initialTimeout, long minTimeout, long maxTimeout, int history) {
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.recent = new long[history];
+    }
+
+    Estimate getEstimate(AID counterparty) {
+        Estimate e = estimates.get(counterparty.getName());
+        if (e == null) {
+            e = new Estimate();
+            estimates.put(counterparty.getName(), e);
+        }
+        return e;
+    }
+
+    //the counterparty replied after rtt ms
+    public void sample(AID counterparty, long rtt) {
+
+        Estimate e = getEstimate(counterparty);
+        if (e.samples == 0) {
+            e.srtt = rtt;
+            e.rttvar = rtt / 2.0;
+        } else {
+            e.rttvar = (1 - BETA) * e.rttvar + BETA * Math.abs(e.srtt - rtt);
+            e.srtt = (1 - ALPHA) * e.srtt + ALPHA * rtt;
+        }
+        e.samples++;
+        e.backoff = 0;
+
+        recent[(int) (samples % recent.length)] = rtt;
+        samples++;
+    }
+
+    //the counterparty did not reply before the deadline
+    public void timeout(AID counterparty) {
+        Estimate e = getEstimate(counterparty);
+        e.timeouts++;
+        e.backoff = Math.min(e.backoff + 1, MAX_BACKOFF);
+        timeouts++;
+    }
+
+    //the time to wait for the reply of the counterparty
+    public long getTimeout(AID counterparty) {
+
+        Estimate e = estimates.get(counterparty.getName());
+        if (e == null)
+            return initialTimeout;
+
+        long timeout = e.samples == 0 ? initialTimeout : (long) Math.ceil(e.srtt + Math.max(1, K * e.rttvar));
+        timeout <<= e.backoff;
+        return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    //the time to wait for the replies of all the counterparties
+    public long getTimeout(Collection<AID> counterparties) {
+
+        if (counterparties.isEmpty())
+            return initialTimeout;
+
+        long timeout = 0;
+        for (AID counterparty : counterparties) {
+            timeout = Math.max(timeout, getTimeout(counterparty));
+        }
+        return timeout;
+    }
+
+    //the p-th percentile of the last samples, -1 if there are none
+    public long getPercentile(double p) {
+
+        int n = (int) Math.min(samples, recent.length);
+        if (n == 0)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(recent, n);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(p * n) - 1;
+        return sorted[Math.max(0, Math.min(idx, n - 1))];
+    }
+
+    public String toString() {
+
+        long[] current = new long[estimates.size()];
+        int i = 0;
+        for (Estimate e : estimates.values()) {
+            current[i++] = e.samples == 0 ? initialTimeout : (long) Math.ceil(e.srtt + Math.max(1, K * e.rttvar));
+        }
+        Arrays.sort(current);
+
+        return "rtt: " + samples + " replies (p50 " + getPercentile(0.5) + " ms, p90 " + getPercentile(0.9)
+                + " ms, p99 " + getPercentile(0.99) + " ms), " + timeouts + " timeouts, " + estimates.size()
+                + " counterparties (timeout median " + (current.length == 0 ? "-" : current[current.length / 2])
+                + " ms, max " + (current.length == 0 ? "-" : current[current.length - 1]) + " ms)";
+    }
+}
@@ -0,0 +1,461 @@
+package mas.cv4;
+
+import jade.content.ContentElement;
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.MakeTransaction;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Settles the transactions between traders whose states are kept by different shards of the environment (a two-phase
+ * commit between the two shards).
+ *
+ * Each trader sends its leg of the transaction to its own shard. The shard of the trader with the smaller name is the
+ * coordinator. The other shard (the participant) checks the leg of its trader, reserves the books and the money and
+ * sends the leg to the coordinator (PROPOSE), or refuses the transaction (REFUSE) if the leg cannot be fulfilled. The
+ * coordinator checks its own leg and that the legs match, applies its side of the transaction and tells the
+ * participant to apply the other side (CONFIRM), or to release the reservation (DISCONFIRM). Each shard answers its
+ * own trader.
+ *
+ * A participant which voted PROPOSE keeps the reservation until the decision comes, it never decides on its own. If it
+ * does not hear from the coordinator for preparedTimeout, it asks for the decision again (QUERY_IF). The coordinator
+ * keeps its decisions for the retention time (longer than preparedTimeout) and answers the query with the same
+ * CONFIRM or DISCONFIRM. A transaction the coordinator does not know is presumed aborted - it was never decided (the
+ * vote did not come) or was aborted long ago, so it answers DISCONFIRM and remembers the abort.
+ *
+ * Both shards remember the outcome of their leg for the retention time, so a leg sent again by its trader (e.g. after
+ * a lost reply) gets the same answer as before, as in the TransactionTable. A leg sent again while the transaction is
+ * in progress only replaces the request to be answered.
+ */
+public class ShardSettlement {
+
+    //the protocol of the messages between the shards
+    public static final String PROTOCOL = "environment-2pc";
+
+    static class Pending {
+
+        MakeTransaction leg;
+        //the request of the trader (local legs), or the message from the other shard (votes, prepared legs)
+        ACLMessage msg;
+        //why the participant refused the transaction (votes only)
+        String refused;
+        long time;
+
+        Pending(MakeTransaction leg, ACLMessage msg, String refused, long time) {
+            this.leg = leg;
+            this.msg = msg;
+            this.refused = refused;
+            this.time = time;
+        }
+    }
+
+    //the outcome of a finished transaction, for the legs and votes sent again
+    static class Outcome {
+
+        boolean done;
+        String result;
+        //the fingerprint of the leg of our trader, the coordinator can fail the transaction before the leg came
+        boolean hasLeg;
+        long fingerprint;
+        long time;
+
+        Outcome(boolean done, String result, MakeTransaction leg, long time) {
+            this.done = done;
+            this.result = result;
+            this.hasLeg = leg != null;
+            this.fingerprint = leg == null ? 0 : TransactionTable.fingerprint(leg);
+            this.time = time;
+        }
+    }
+
+    Environment env;
+    long timeout;
+    long preparedTimeout;
+    long retention;
+
+    //coordinator - the legs of our traders waiting for the vote, and the votes waiting for the leg of our trader
+    HashMap<String, Pending> localLegs = new HashMap<String, Pending>();
+    HashMap<String, Pending> votes = new HashMap<String, Pending>();
+    //participant - the reserved legs waiting for the decision
+    HashMap<String, Pending> prepared = new HashMap<String, Pending>();
+    //both - the transactions finished in the retention time
+    HashMap<String, Outcome> finished = new HashMap<String, Outcome>();
+
+    //the books and money reserved by the prepared legs, they cannot be used by other transactions
+    HashSet<Integer> reservedBooks = new HashSet<Integer>();
+    HashMap<String, Long> reservedMoney = new HashMap<String, Long>();
+
+    long committed = 0;
+    long failed = 0;
+    long repeated = 0;
+
+    public ShardSettlement(Environment env, long timeout, long preparedTimeout, long retention) {
+        this.env = env;
+        this.timeout = timeout;
+        this.preparedTimeout = preparedTimeout;
+        this.retention = retention;
+    }
+
+    static boolean isCoordinator(MakeTransaction leg) {
+        return leg.getSenderName().compareTo(leg.getReceiverName()) < 0;
+    }
+
+    public boolean isReserved(int bookID) {
+        return reservedBooks.contains(bookID);
+    }
+
+    public long getReservedMoney(String traderName) {
+        Long money = reservedMoney.get(traderName);
+        return money == null ? 0 : money;
+    }
+
+    //a leg from our trader, whose counterparty is kept by another shard
+    public void handleLeg(MakeTransaction leg, ACLMessage request, long now) {
+
+        String id = leg.getTradeConversationID();
+
+        Outcome outcome = finished.get(id);
+        if (outcome != null) {
+            answerAgain(outcome, leg, request);
+            return;
+        }
+
+        if (isCoordinator(leg)) {
+            Pending waiting = localLegs.get(id);
+            if (waiting != null) {
+                retry(waiting, leg, request);
+                return;
+            }
+            Pending local = new Pending(leg, request, null, now);
+            Pending vote = votes.remove(id);
+            if (vote == null) {
+                localLegs.put(id, local);
+            } else {
+                decide(local, vote);
+            }
+            return;
+        }
+
+        //we are the participant, vote
+        Pending waiting = prepared.get(id);
+        if (waiting != null) {
+            retry(waiting, leg, request);
+            return;
+        }
+
+        AID coordinator = env.getShardAgent(Utils.getShard(leg.getReceiverName(), env.shards));
+        if (coordinator == null) {
+            reply(request, ACLMessage.FAILURE, "the shard of " + leg.getReceiverName() + " not found");
+            return;
+        }
+
+        String reason = env.checkLeg(leg);
+        if (reason != null) {
+            reply(request, ACLMessage.FAILURE, reason);
+            failed++;
+            finished.put(id, new Outcome(false, reason, leg, now));
+
+            ACLMessage refuse = new ACLMessage(ACLMessage.REFUSE);
+            refuse.addReceiver(coordinator);
+            refuse.setProtocol(PROTOCOL);
+            refuse.setConversationId(id);
+            refuse.setContent(reason);
+            env.send(refuse);
+            return;
+        }
+
+        try {
+            ACLMessage propose = new ACLMessage(ACLMessage.PROPOSE);
+            propose.addReceiver(coordinator);
+            propose.setProtocol(PROTOCOL);
+            propose.setConversationId(id);
+            propose.setLanguage(env.codec.getName());
+            propose.setOntology(env.onto.getName());
+            env.getContentManager().fillContent(propose, new Action(coordinator, leg));
+
+            reserve(leg);
+            prepared.put(id, new Pending(leg, request, null, now));
+            env.send(propose);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+            reply(request, ACLMessage.FAILURE, "internal error");
+        } catch (OntologyException e) {
+            e.printStackTrace();
+            reply(request, ACLMessage.FAILURE, "internal error");
+        }
+    }
+
+    //the leg of a transaction in progress was sent again, only the latest request is answered
+    void retry(Pending waiting, MakeTransaction leg, ACLMessage request) {
+        if (TransactionTable.fingerprint(leg) != TransactionTable.fingerprint(waiting.leg)) {
+            reply(request, ACLMessage.FAILURE, "duplicate transaction");
+            return;
+        }
+        waiting.msg = request;
+        repeated++;
+    }
+
+    //the leg of a finished transaction gets the same answer again, other legs cannot join it
+    void answerAgain(Outcome outcome, MakeTransaction leg, ACLMessage request) {
+
+        long fingerprint = TransactionTable.fingerprint(leg);
+        if (!outcome.hasLeg) {
+            //the coordinator failed the transaction before the leg of its trader came
+            outcome.hasLeg = true;
+            outcome.fingerprint = fingerprint;
+        } else if (fingerprint != outcome.fingerprint) {
+            reply(request, ACLMessage.FAILURE, "transaction already finished");
+            return;
+        } else {
+            repeated++;
+        }
+
+        if (outcome.done) {
+            env.replyDone(request);
+        } else {
+            reply(request, ACLMessage.FAILURE, outcome.result);
+        }
+    }
+
+    //a message from another shard
+    public void handleMessage(ACLMessage msg, long now) {
+
+        String id = msg.getConversationId();
+
+        switch (msg.getPerformative()) {
+            case ACLMessage.PROPOSE:
+            case ACLMessage.REFUSE: {
+                Pending vote;
+                if (msg.getPerformative() == ACLMessage.PROPOSE) {
+                    MakeTransaction leg = decodeLeg(msg);
+                    if (leg == null) {
+                        reply(msg, ACLMessage.DISCONFIRM, "not understood");
+                        return;
+                    }
+                    vote = new Pending(leg, msg, null, now);
+                } else {
+                    vote = new Pending(null, msg, msg.getContent(), now);
+                }
+
+                Outcome outcome = finished.get(id);
+                if (outcome != null) {
+                    if (vote.leg != null) {
+                        sendDecision(msg, outcome);
+                    }
+                    return;
+                }
+
+                Pending local = localLegs.remove(id);
+                if (local == null) {
+                    votes.put(id, vote);
+                } else {
+                    decide(local, vote);
+                }
+                return;
+            }
+            case ACLMessage.QUERY_IF: {
+                //the participant asks for the decision
+                Outcome outcome = finished.get(id);
+                if (outcome != null) {
+                    sendDecision(msg, outcome);
+                    return;
+                }
+                if (votes.containsKey(id)) {
+                    //the vote waits for our leg, the decision is sent when it comes or the vote expires
+                    return;
+                }
+                //the vote never came (or the transaction was forgotten long ago) - presumed abort
+                outcome = new Outcome(false, "transaction not matched in time", null, now);
+                Pending local = localLegs.remove(id);
+                if (local != null) {
+                    outcome = new Outcome(false, outcome.result, local.leg, now);
+                    failed++;
+                    reply(local.msg, ACLMessage.FAILURE, outcome.result);
+                }
+                finished.put(id, outcome);
+                sendDecision(msg, outcome);
+                return;
+            }
+            case ACLMessage.CONFIRM: {
+                Pending p = prepared.remove(id);
+                if (p == null)
+                    return;
+                release(p.leg);
+                env.applyLeg(p.leg);
+                env.settled(p.leg);
+                committed++;
+                finished.put(id, new Outcome(true, "done", p.leg, now));
+                env.replyDone(p.msg);
+                return;
+            }
+            case ACLMessage.DISCONFIRM: {
+                Pending p = prepared.remove(id);
+                if (p == null)
+                    return;
+                release(p.leg);
+                failed++;
+                finished.put(id, new Outcome(false, msg.getContent(), p.leg, now));
+                reply(p.msg, ACLMessage.FAILURE, msg.getContent());
+                return;
+            }
+        }
+    }
+
+    //the decision of the coordinator, as the answer to the vote or the query of the participant
+    void sendDecision(ACLMessage msg, Outcome outcome) {
+        if (outcome.done) {
+            reply(msg, ACLMessage.CONFIRM, "done");
+        } else {
+            reply(msg, ACLMessage.DISCONFIRM, outcome.result);
+        }
+    }
+
+    //the coordinator has both legs (or the refusal)
+    void decide(Pending local, Pending vote) {
+
+        String id = local.leg.getTradeConversationID();
+        long now = System.currentTimeMillis();
+
+        if (vote.leg == null) {
+            failed++;
+            finished.put(id, new Outcome(false, vote.refused, local.leg, now));
+            reply(local.msg, ACLMessage.FAILURE, vote.refused);
+            return;
+        }
+
+        String reason = null;
+        if (!local.leg.getReceiverName().equals(vote.leg.getSenderName()) ||
+                !local.leg.getSenderName().equals(vote.leg.getReceiverName())) {
+            reason = "sender and receiver do not match";
+        } else {
+            reason = env.checkLeg(local.leg);
+        }
+        if (reason == null && !Environment.legsMatch(local.leg, vote.leg)) {
+            reason = "orders do not match";
+        }
+
+        if (reason != null) {
+            failed++;
+            finished.put(id, new Outcome(false, reason, local.leg, now));
+            reply(local.msg, ACLMessage.FAILURE, reason);
+            reply(vote.msg, ACLMessage.DISCONFIRM, reason);
+            return;
+        }
+
+        env.applyLeg(local.leg);
+        env.settled(local.leg);
+        committed++;
+        finished.put(id, new Outcome(true, "done", local.leg, now));
+        reply(vote.msg, ACLMessage.CONFIRM, "done");
+        env.replyDone(local.msg);
+    }
+
+    //fails the transactions which were not matched in time (coordinator), asks again for the decisions which take too
+    //long (participant) and forgets the old outcomes
+    public void expire(long now) {
+
+        Iterator<Map.Entry<String, Pending>> it = localLegs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Pending> e = it.next();
+            if (now - e.getValue().time > timeout) {
+                failed++;
+                reply(e.getValue().msg, ACLMessage.FAILURE, "transaction not matched in time");
+                finished.put(e.getKey(), new Outcome(false, "transaction not matched in time", e.getValue().leg, now));
+                it.remove();
+            }
+        }
+
+        it = votes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Pending> e = it.next();
+            if (now - e.getValue().time > timeout) {
+                Outcome outcome = new Outcome(false, "transaction not matched in time", null, now);
+                if (e.getValue().leg != null) {
+                    sendDecision(e.getValue().msg, outcome);
+                }
+                finished.put(e.getKey(), outcome);
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<String, Pending> e : prepared.entrySet()) {
+            Pending p = e.getValue();
+            if (now - p.time > preparedTimeout) {
+                AID coordinator = env.getShardAgent(Utils.getShard(p.leg.getReceiverName(), env.shards));
+                System.err.println("No decision about transaction " + e.getKey() + " yet, asking " + coordinator);
+                p.time = now;
+                if (coordinator == null)
+                    continue;
+                ACLMessage query = new ACLMessage(ACLMessage.QUERY_IF);
+                query.addReceiver(coordinator);
+                query.setProtocol(PROTOCOL);
+                query.setConversationId(e.getKey());
+                env.send(query);
+            }
+        }
+
+        Iterator<Map.Entry<String, Outcome>> oit = finished.entrySet().iterator();
+        while (oit.hasNext()) {
+            if (now - oit.next().getValue().time > retention) {
+                oit.remove();
+            }
+        }
+    }
+
+    void reserve(MakeTransaction leg) {
+        if (leg.getSendingBooks() != null) {
+            for (BookInfo bi : leg.getSendingBooks()) {
+                reservedBooks.add(bi.getBookID());
+            }
+        }
+        reservedMoney.put(leg.getSenderName(), getReservedMoney(leg.getSenderName()) + leg.getSendingMoney());
+    }
+
+    void release(MakeTransaction leg) {
+        if (leg.getSendingBooks() != null) {
+            for (BookInfo bi : leg.getSendingBooks()) {
+                reservedBooks.remove(bi.getBookID());
+            }
+        }
+        long money = getReservedMoney(leg.getSenderName()) - leg.getSendingMoney();
+        if (money <= 0) {
+            reservedMoney.remove(leg.getSenderName());
+        } else {
+            reservedMoney.put(leg.getSenderName(), money);
+        }
+    }
+
+    MakeTransaction decodeLeg(ACLMessage msg) {
+        try {
+            ContentElement ce = env.getContentManager().extractContent(msg);
+            if (ce instanceof Action && ((Action) ce).getAction() instanceof MakeTransaction) {
+                return (MakeTransaction) ((Action) ce).getAction();
+            }
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    void reply(ACLMessage msg, int performative, String content) {
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(performative);
+        reply.setContent(content);
+        env.send(reply);
+    }
+
+    public String toString() {
+        return "cross-shard transactions: " + committed + " committed, " + failed + " failed, " + repeated
+                + " repeated legs, " + prepared.size() + " prepared, " + localLegs.size() + " waiting";
+    }
+}
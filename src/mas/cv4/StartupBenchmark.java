@@ -0,0 +1,115 @@
+package mas.cv4;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes from the start of the competition to the first settled trade, for different numbers of
+ * traders. The report shows the time to start the agents and send the StartTrading messages (setup), the time from
+ * the StartTrading to the first trade and the total.
+ *
+ * Each size runs on its own platform: the traders are started, the Environment waits until all of them are
+ * registered, sends the StartTrading messages and reports the first trade to the Probe.
+ *
+ * Arguments: sizes=comma separated numbers of traders (default 10,100,1000,10000), perHost=number of logical traders
+ * per TraderHost (default 100, 0 starts a BookTraderImproved agent for each trader), timeout=s to wait for the first
+ * trade (default 60), port=port of the first platform (default 1099).
+ */
+public class StartupBenchmark {
+
+    /**
+     * Passed to the Environment as an argument, the environment reports the start of trading and the first trade.
+     */
+    public static class Probe {
+
+        final long created = System.nanoTime();
+        final CountDownLatch firstTrade = new CountDownLatch(1);
+        volatile long tradingStarted;
+        volatile long firstTraded;
+        volatile int traders;
+
+        void tradingStarted(int traders) {
+            this.traders = traders;
+            tradingStarted = System.nanoTime();
+        }
+
+        void firstTrade() {
+            firstTraded = System.nanoTime();
+            firstTrade.countDown();
+        }
+    }
+
+    static String getArgument(String[] args, String key, String defaultValue) {
+        for (String a : args) {
+            if (a.startsWith(key + "=")) {
+                return a.substring(key.length() + 1);
+            }
+        }
+        return defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String[] sizes = getArgument(args, "sizes", "10,100,1000,10000").split(",");
+        int perHost = Integer.parseInt(getArgument(args, "perHost", "100"));
+        int timeout = Integer.parseInt(getArgument(args, "timeout", "60"));
+        int port = Integer.parseInt(getArgument(args, "port", "1099"));
+
+        Runtime rt = Runtime.instance();
+        rt.setCloseVM(false);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%10s %12s %14s %14s\n", "traders", "setup [ms]", "to trade [ms]", "total [ms]"));
+
+        for (int run = 0; run < sizes.length; run++) {
+
+            int size = Integer.parseInt(sizes[run].trim());
+
+            Profile p = new ProfileImpl();
+            p.setParameter(Profile.MAIN_PORT, String.valueOf(port + run));
+            p.setParameter(Profile.GUI, "false");
+            AgentContainer container = rt.createMainContainer(p);
+
+            Probe probe = new Probe();
+
+            if (perHost > 0) {
+                for (int i = 0; i * perHost < size; i++) {
+                    int traders = Math.min(perHost, size - i * perHost);
+                    container.createNewAgent("host" + i, TraderHost.class.getName(),
+                            new Object[] {"traders=" + traders, "seed=" + i}).start();
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    container.createNewAgent("trader" + i, BookTraderImproved.class.getName(),
+                            new Object[] {"seed=" + i}).start();
+                }
+            }
+
+            container.createNewAgent("environment", Environment.class.getName(),
+                    new Object[] {"expect=" + size, "seed=42", probe}).start();
+
+            boolean traded = probe.firstTrade.await(timeout, TimeUnit.SECONDS);
+
+            if (traded) {
+                report.append(String.format("%10d %12.1f %14.1f %14.1f\n", size,
+                        (probe.tradingStarted - probe.created) / 1e6,
+                        (probe.firstTraded - probe.tradingStarted) / 1e6,
+                        (probe.firstTraded - probe.created) / 1e6));
+            } else {
+                report.append(String.format("%10d %12s %14s %14s\n", size, "-", "-", "timeout"));
+            }
+
+            container.kill();
+        }
+
+        System.out.println();
+        System.out.print(report);
+
+        rt.shutDown();
+    }
+}
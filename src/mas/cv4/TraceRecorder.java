@@ -0,0 +1,304 @@
+package mas.cv4;
+
+import jade.lang.acl.ACLMessage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the traffic of a competition into a compact binary trace file, so that the same workload can be replayed
+ * later by the TraceReplayer.
+ *
+ * The recorder is switched on by the system property "mas.trace" (the name of the trace file) and is shared by all
+ * agents running in the JVM. The file is a gzipped stream of records, each record starts with its type and the time
+ * (in microseconds) since the recording started. Strings (agent names, ontology, language, ...) are stored in a string
+ * table - the first occurrence writes the string itself, all later occurrences write only its index.
+ */
+public class TraceRecorder {
+
+    public static final int MAGIC = 0x4A425454; // "JBTT"
+    public static final int VERSION = 2;
+
+    //the seed of the random generator of an agent
+    public static final int RECORD_SEED = 1;
+    //a message delivered to an agent
+    public static final int RECORD_MESSAGE = 2;
+    //the list of traders the environment generated the goals for (in the order of generation)
+    public static final int RECORD_TRADERS = 3;
+
+    private static TraceRecorder theInstance = null;
+    private static boolean initialized = false;
+
+    private DataOutputStream out;
+    private long startNanos;
+    private HashMap<String, Integer> strings = new HashMap<String, Integer>();
+
+    private TraceRecorder(String fileName) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(fileName))));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+
+        //the trace is flushed when the platform is shut down
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Returns the recorder of this JVM, or null if the recording is switched off.
+     */
+    public static synchronized TraceRecorder getInstance() {
+        if (!initialized) {
+            initialized = true;
+            String fileName = System.getProperty("mas.trace");
+            if (fileName != null) {
+                try {
+                    theInstance = new TraceRecorder(fileName);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return theInstance;
+    }
+
+    public synchronized void recordSeed(String agentName, long seed) {
+        try {
+            writeHeader(RECORD_SEED);
+            writeString(agentName);
+            out.writeLong(seed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void recordTraders(String environmentName, ArrayList<String> traders) {
+        try {
+            writeHeader(RECORD_TRADERS);
+            writeString(environmentName);
+            writeVarInt(traders.size());
+            for (String trader : traders) {
+                writeString(trader);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void recordMessage(String receiverName, ACLMessage msg) {
+        try {
+            writeHeader(RECORD_MESSAGE);
+            writeString(receiverName);
+            writeVarInt(msg.getPerformative() + 1);
+            writeString(msg.getSender() == null ? null : msg.getSender().getName());
+            writeString(msg.getOntology());
+            writeString(msg.getLanguage());
+            writeString(msg.getProtocol());
+            writeString(msg.getConversationId());
+            writeString(msg.getReplyWith());
+            writeString(msg.getInReplyTo());
+            writeString(msg.getUserDefinedParameter(Utils.TRADER_PARAMETER));
+            writeBytes(msg.getContent());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    private void writeHeader(int type) throws IOException {
+        if (out == null)
+            throw new IOException("trace already closed");
+        out.writeByte(type);
+        writeVarLong((System.nanoTime() - startNanos) / 1000);
+    }
+
+    //strings are written as an index into the string table (0 is null), new strings are followed by their content
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer idx = strings.get(s);
+        if (idx != null) {
+            writeVarInt(idx);
+            return;
+        }
+        idx = strings.size() + 1;
+        strings.put(s, idx);
+        writeVarInt(idx);
+        writeBytes(s);
+    }
+
+    private void writeBytes(String s) throws IOException {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(b.length + 1);
+        out.write(b);
+    }
+
+    private void writeVarInt(int v) throws IOException {
+        writeVarLong(v & 0xFFFFFFFFL);
+    }
+
+    private void writeVarLong(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * A single record read from the trace file.
+     */
+    public static class Record {
+
+        public int type;
+        public long timeMicros;
+        public String agentName;
+
+        //RECORD_SEED
+        public long seed;
+
+        //RECORD_TRADERS
+        public ArrayList<String> traders;
+
+        //RECORD_MESSAGE
+        public int performative;
+        public String sender;
+        public String ontology;
+        public String language;
+        public String protocol;
+        public String conversationId;
+        public String replyWith;
+        public String inReplyTo;
+        public String trader;
+        public String content;
+    }
+
+    /**
+     * Reads the records written by the TraceRecorder.
+     */
+    public static class Reader implements Closeable {
+
+        private DataInputStream in;
+        private ArrayList<String> strings = new ArrayList<String>();
+        private long recordingStarted;
+
+        public Reader(String fileName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(fileName))));
+            if (in.readInt() != MAGIC)
+                throw new IOException(fileName + " is not a trace file");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported trace version " + version);
+            recordingStarted = in.readLong();
+        }
+
+        public long getRecordingStarted() {
+            return recordingStarted;
+        }
+
+        /**
+         * Returns the next record, or null at the end of the trace.
+         */
+        public Record next() throws IOException {
+            int type = in.read();
+            if (type == -1)
+                return null;
+
+            Record r = new Record();
+            r.type = type;
+            r.timeMicros = readVarLong();
+            r.agentName = readString();
+
+            switch (type) {
+                case RECORD_SEED:
+                    r.seed = in.readLong();
+                    break;
+                case RECORD_TRADERS:
+                    int n = (int) readVarLong();
+                    r.traders = new ArrayList<String>(n);
+                    for (int i = 0; i < n; i++) {
+                        r.traders.add(readString());
+                    }
+                    break;
+                case RECORD_MESSAGE:
+                    r.performative = (int) readVarLong() - 1;
+                    r.sender = readString();
+                    r.ontology = readString();
+                    r.language = readString();
+                    r.protocol = readString();
+                    r.conversationId = readString();
+                    r.replyWith = readString();
+                    r.inReplyTo = readString();
+                    r.trader = readString();
+                    r.content = readBytes();
+                    break;
+                default:
+                    throw new IOException("unknown record type " + type);
+            }
+
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private String readString() throws IOException {
+            int idx = (int) readVarLong();
+            if (idx == 0)
+                return null;
+            if (idx <= strings.size())
+                return strings.get(idx - 1);
+            String s = readBytes();
+            strings.add(s);
+            return s;
+        }
+
+        private String readBytes() throws IOException {
+            int len = (int) readVarLong();
+            if (len == 0)
+                return null;
+            byte[] b = new byte[len - 1];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package mas.cv4;
+
+import jade.content.ContentElement;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.SimpleBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.wrapper.AgentController;
+import jade.wrapper.StaleProxyException;
+import mas.cv4.onto.BookOntology;
+import mas.cv4.onto.MakeTransaction;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Replays the requests recorded by the TraceRecorder against a fresh environment and reports the settlement
+ * throughput and latency.
+ *
+ * Arguments: trace=file (mandatory), speed=original|max (default original), env=name of the new environment (default
+ * environment-replay). The new environment is created with the recorded seed and list of traders, so it generates the
+ * same goals as the recorded one. The requests are sent on behalf of the original senders, the replies are redirected
+ * to this agent (reply-to).
+ */
+public class TraceReplayer extends Agent {
+
+    Codec codec = new SLCodec();
+    Ontology onto = BookOntology.getInstance();
+
+    AID environment;
+    boolean maxSpeed;
+
+    //the requests to replay, their recorded times and whether they are transactions
+    ArrayList<ACLMessage> requests = new ArrayList<ACLMessage>();
+    ArrayList<Long> requestTimes = new ArrayList<Long>();
+    ArrayList<Boolean> isTransaction = new ArrayList<Boolean>();
+
+    long[] sentAt;
+    long replayStarted;
+    long lastReply;
+
+    int informs = 0;
+    int failures = 0;
+    int settledLegs = 0;
+    ArrayList<Long> latencies = new ArrayList<Long>();
+    ArrayList<Long> settlementLatencies = new ArrayList<Long>();
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        //register the codec and the ontology with the content manager
+        this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerOntology(onto);
+
+        String traceFile = Utils.getArgument(this, "trace");
+        if (traceFile == null) {
+            System.err.println("No trace given, use trace=<file>");
+            doDelete();
+            return;
+        }
+
+        maxSpeed = "max".equals(Utils.getArgument(this, "speed"));
+        String envName = Utils.getArgument(this, "env");
+        if (envName == null) {
+            envName = "environment-replay";
+        }
+
+        try {
+            loadTrace(traceFile, envName);
+        } catch (IOException e) {
+            e.printStackTrace();
+            doDelete();
+            return;
+        } catch (StaleProxyException e) {
+            e.printStackTrace();
+            doDelete();
+            return;
+        }
+
+        System.out.println("Replaying " + requests.size() + " requests from " + traceFile);
+
+        sentAt = new long[requests.size()];
+
+        addBehaviour(new ReplayBehaviour());
+        addBehaviour(new CollectRepliesBehaviour());
+    }
+
+    //reads the trace, starts the new environment and prepares the requests sent to it
+    void loadTrace(String traceFile, String envName) throws IOException, StaleProxyException {
+
+        TraceRecorder.Reader reader = new TraceRecorder.Reader(traceFile);
+
+        ArrayList<TraceRecorder.Record> messages = new ArrayList<TraceRecorder.Record>();
+        HashMap<String, Long> seeds = new HashMap<String, Long>();
+        TraceRecorder.Record traders = null;
+
+        try {
+            TraceRecorder.Record r;
+            while ((r = reader.next()) != null) {
+                switch (r.type) {
+                    case TraceRecorder.RECORD_SEED:
+                        seeds.put(r.agentName, r.seed);
+                        break;
+                    case TraceRecorder.RECORD_TRADERS:
+                        traders = r;
+                        break;
+                    case TraceRecorder.RECORD_MESSAGE:
+                        messages.add(r);
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (traders == null)
+            throw new IOException("the trace does not contain the environment");
+
+        //start the environment with the same seed and traders as the recorded one
+        StringBuilder traderNames = new StringBuilder();
+        for (String t : traders.traders) {
+            if (traderNames.length() > 0)
+                traderNames.append(";");
+            traderNames.append(t);
+        }
+
+        Object[] args = new Object[] {"seed=" + seeds.get(traders.agentName), "traders=" + traderNames};
+        AgentController env = getContainerController().createNewAgent(envName, Environment.class.getName(), args);
+        env.start();
+        environment = new AID(envName, AID.ISLOCALNAME);
+
+        //only the requests the recorded environment received are replayed
+        for (TraceRecorder.Record r : messages) {
+            if (!r.agentName.equals(traders.agentName) || r.performative != ACLMessage.REQUEST)
+                continue;
+
+            ACLMessage msg = new ACLMessage(r.performative);
+            msg.setSender(new AID(r.sender, AID.ISGUID));
+            msg.addReceiver(environment);
+            msg.addReplyTo(getAID());
+            msg.setOntology(r.ontology);
+            msg.setLanguage(r.language);
+            msg.setProtocol(r.protocol);
+            msg.setConversationId(r.conversationId);
+            msg.setReplyWith("replay-" + requests.size());
+            if (r.trader != null) {
+                msg.addUserDefinedParameter(Utils.TRADER_PARAMETER, r.trader);
+            }
+            msg.setContent(r.content);
+
+            requests.add(msg);
+            requestTimes.add(r.timeMicros);
+            isTransaction.add(isTransaction(msg));
+        }
+    }
+
+    boolean isTransaction(ACLMessage msg) {
+        try {
+            ContentElement ce = getContentManager().extractContent(msg);
+            return ce instanceof Action && ((Action) ce).getAction() instanceof MakeTransaction;
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    //sends the requests either at their original times, or as fast as possible
+    private class ReplayBehaviour extends SimpleBehaviour {
+
+        int next = 0;
+
+        @Override
+        public void onStart() {
+            replayStarted = System.nanoTime();
+            lastReply = replayStarted;
+        }
+
+        @Override
+        public void action() {
+
+            while (next < requests.size()) {
+
+                long elapsed = (System.nanoTime() - replayStarted) / 1000;
+                long due = requestTimes.get(next) - requestTimes.get(0);
+
+                if (!maxSpeed && due > elapsed) {
+                    block(Math.max(1, (due - elapsed) / 1000));
+                    return;
+                }
+
+                sentAt[next] = System.nanoTime();
+                send(requests.get(next));
+                next++;
+            }
+        }
+
+        @Override
+        public boolean done() {
+            return next >= requests.size();
+        }
+    }
+
+    //collects the replies of the environment, prints the report when there was no reply for 5 seconds
+    private class CollectRepliesBehaviour extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+
+            ACLMessage reply = myAgent.receive();
+
+            if (reply == null) {
+                if (sentAll() && System.nanoTime() - lastReply > 5000000000L) {
+                    printReport();
+                    myAgent.doDelete();
+                    return;
+                }
+                block(1000);
+                return;
+            }
+
+            lastReply = System.nanoTime();
+
+            String inReplyTo = reply.getInReplyTo();
+            if (inReplyTo == null || !inReplyTo.startsWith("replay-"))
+                return;
+
+            int idx = Integer.parseInt(inReplyTo.substring("replay-".length()));
+            long latency = lastReply - sentAt[idx];
+            latencies.add(latency);
+
+            if (reply.getPerformative() == ACLMessage.INFORM) {
+                informs++;
+                if (isTransaction.get(idx)) {
+                    settledLegs++;
+                    settlementLatencies.add(latency);
+                }
+            } else {
+                failures++;
+            }
+        }
+
+        boolean sentAll() {
+            return requests.size() == 0 || sentAt[requests.size() - 1] != 0;
+        }
+    }
+
+    void printReport() {
+
+        double seconds = (lastReply - replayStarted) / 1e9;
+
+        System.out.println();
+        System.out.println("Replay finished (" + (maxSpeed ? "max" : "original") + " speed)");
+        System.out.printf("%20s %d\n", "requests:", requests.size());
+        System.out.printf("%20s %d\n", "replies:", latencies.size());
+        System.out.printf("%20s %d\n", "informs:", informs);
+        System.out.printf("%20s %d\n", "failures:", failures);
+        System.out.printf("%20s %d\n", "settlements:", settledLegs / 2);
+        System.out.printf("%20s %.3f s\n", "duration:", seconds);
+        System.out.printf("%20s %.1f /s\n", "throughput:", seconds > 0 ? settledLegs / 2 / seconds : 0);
+        printLatencies("request latency:", latencies);
+        printLatencies("settlement latency:", settlementLatencies);
+        System.out.println();
+    }
+
+    static void printLatencies(String title, ArrayList<Long> values) {
+
+        if (values.isEmpty()) {
+            System.out.printf("%20s -\n", title);
+            return;
+        }
+
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+
+        System.out.printf("%20s p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms\n", title,
+                percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.9) / 1e6, percentile(sorted, 0.99) / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,877 @@
+package mas.cv4;
+
+import jade.content.AgentAction;
+import jade.content.ContentElement;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.content.onto.basic.Result;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.domain.FIPANames;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.market.ImprovedStrategy;
+import mas.cv4.market.StrategyParameters;
+import mas.cv4.market.TraderState;
+import mas.cv4.market.TradingStrategy;
+import mas.cv4.onto.*;
+
+import java.util.*;
+
+/**
+ * An agent which runs many logical traders inside of a single JADE agent.
+ *
+ * The logical traders use the same strategy as BookTraderImproved, but they are not agents - they are plain objects
+ * scheduled cooperatively by the host, and they share the codec, the ontology and the message queue of the host. The
+ * host registers a single book-trader service with the number of logical traders (the environment generates goals for
+ * each of them). Messages sent by a logical trader carry its ID in the X-Trader parameter, the replies are routed back
+ * by their conversation ID.
+ *
+ * The deadlines of the replies follow the same rules as in BookTraderImproved, from the round-trip times of the
+ * counterparties measured by an RttEstimator shared by the logical traders.
+ *
+ * Arguments: traders=number of logical traders (default 100), rttInitial, rttMin, rttMax=the initial, minimal and
+ * maximal reply timeout in ms (default 5000, 200, 20000), and the StrategyParameters (e.g. period=ms between two
+ * buying rounds of a trader).
+ */
+public class TraderHost extends Agent {
+
+    //maximal number of logical traders which run in one scheduling slice
+    static final int SLICE_BUDGET = 200;
+
+    Codec codec = new SLCodec();
+    Ontology onto = BookOntology.getInstance();
+
+    Random rnd;
+    TraceRecorder recorder;
+
+    LogicalTrader[] traders;
+    long period;
+
+    //all logical traders use the same pricing, its constants are given by the agent arguments
+    TradingStrategy strategy;
+    //chooses the best offers, shared by the logical traders (they all run in the agent's thread)
+    OfferScorer scorer = new OfferScorer();
+    //the round-trip times of the other hosts and the environment, shared by the logical traders
+    RttEstimator rtt;
+
+    //conversations started by a logical trader (CFPs)
+    HashMap<String, LogicalTrader> initiated = new HashMap<String, LogicalTrader>();
+    //requests of the logical traders to the environment (or its replicas), by conversation ID
+    HashMap<String, Request> requests = new HashMap<String, Request>();
+    //conversations in which a logical trader responds to a CFP (our proposals waiting for the buyer's decision)
+    HashMap<String, Proposal> responding = new HashMap<String, Proposal>();
+
+    //the shards of the environment, and the one which started the trading (if there are none in the DF)
+    DFAgentDescription[] environments = new DFAgentDescription[0];
+    AID environment;
+    boolean tradingStarted = false;
+    ArrayList<AID> otherTraders = new ArrayList<AID>();
+    //the replicas of the environment (shards), the logical traders ask them for their state
+    DFAgentDescription[] replicas = new DFAgentDescription[0];
+    int nextSeller = 0;
+    long conversationCounter = 0;
+
+    @Override
+    protected void setup() {
+        super.setup();
+
+        rnd = Utils.createRandom(this);
+        recorder = TraceRecorder.getInstance();
+
+        //register the codec and the ontology with the content manager, they are shared by all logical traders
+        this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerOntology(onto);
+
+        strategy = new ImprovedStrategy(StrategyParameters.parse(getArguments()));
+
+        String rttInitial = Utils.getArgument(this, "rttInitial");
+        String rttMin = Utils.getArgument(this, "rttMin");
+        String rttMax = Utils.getArgument(this, "rttMax");
+        rtt = new RttEstimator(rttInitial == null ? 5000 : Long.parseLong(rttInitial),
+                rttMin == null ? 200 : Long.parseLong(rttMin), rttMax == null ? 20000 : Long.parseLong(rttMax), 1024);
+
+        String count = Utils.getArgument(this, "traders");
+        traders = new LogicalTrader[count == null ? 100 : Integer.parseInt(count)];
+        period = strategy.getPeriod();
+
+        for (int i = 0; i < traders.length; i++) {
+            traders[i] = new LogicalTrader(i);
+        }
+
+        //book-trader service description, with the number of logical traders
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("book-trader");
+        sd.setName("book-trader");
+        sd.addProperties(new Property(Utils.TRADERS_PROPERTY, String.valueOf(traders.length)));
+
+        //description of this agent and the services it provides
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(this.getAID());
+        dfd.addServices(sd);
+
+        //register to DF
+        try {
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+
+        addBehaviour(new DispatcherBehaviour());
+    }
+
+    //record all messages delivered to the agent (if recording is on)
+    @Override
+    public void postMessage(ACLMessage msg) {
+        if (recorder != null) {
+            recorder.recordMessage(getName(), msg);
+        }
+        super.postMessage(msg);
+    }
+
+    @Override
+    protected void takeDown() {
+        super.takeDown();
+        System.out.println(getName() + " " + rtt);
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //finds the environment and the other traders, the results are shared by all logical traders
+    void refreshDirectory() throws FIPAException {
+
+        //all results, the DF returns only 100 by default
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        environments = DFService.search(this, dfd, all);
+
+        sd = new ServiceDescription();
+        sd.setType("book-trader");
+        dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        ArrayList<AID> found = new ArrayList<AID>();
+        for (DFAgentDescription tr : DFService.search(this, dfd, all)) {
+            found.add(tr.getName());
+        }
+        otherTraders = found;
+
+        sd = new ServiceDescription();
+        sd.setType("environment-replica");
+        dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        replicas = DFService.search(this, dfd, all);
+    }
+
+    String newConversationId(LogicalTrader trader) {
+        return trader.name + "-" + (conversationCounter++);
+    }
+
+    //sends the message on behalf of the logical trader
+    void send(LogicalTrader trader, ACLMessage msg) {
+        msg.addUserDefinedParameter(Utils.TRADER_PARAMETER, String.valueOf(trader.id));
+        send(msg);
+    }
+
+    //receives all messages and passes them to the logical traders
+    private class DispatcherBehaviour extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+
+            ACLMessage msg = myAgent.receive();
+            if (msg == null) {
+                block();
+                return;
+            }
+
+            //drain the whole queue, the logical traders only do a small amount of work per message
+            while (msg != null) {
+                dispatch(msg);
+                msg = myAgent.receive();
+            }
+        }
+
+        void dispatch(ACLMessage msg) {
+
+            String conversationId = msg.getConversationId();
+
+            switch (msg.getPerformative()) {
+                case ACLMessage.CFP:
+                    handleCfp(msg);
+                    return;
+                case ACLMessage.ACCEPT_PROPOSAL:
+                case ACLMessage.REJECT_PROPOSAL:
+                    Proposal proposal = responding.remove(conversationId);
+                    if (proposal != null) {
+                        proposal.trader.handleDecision(msg, proposal);
+                    }
+                    return;
+                case ACLMessage.REQUEST:
+                    if (conversationId == null || !initiated.containsKey(conversationId)) {
+                        handleStartTrading(msg);
+                        return;
+                    }
+            }
+
+            Request request = requests.remove(conversationId);
+            if (request != null) {
+                request.trader.handleRequestReply(msg, request);
+                return;
+            }
+
+            LogicalTrader trader = initiated.get(conversationId);
+            if (trader != null) {
+                trader.handleReply(msg);
+            } else if (msg.getPerformative() == ACLMessage.PROPOSE) {
+                //a proposal for a negotiation which is already over, the seller should not wait for our decision
+                ACLMessage reply = msg.createReply();
+                reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                send(reply);
+            }
+        }
+    }
+
+    //the environment asks us to start trading, each logical trader gets its own StartTrading with its goals (older
+    //environments send only one for the whole host, the traders then ask for their goals)
+    void handleStartTrading(ACLMessage request) {
+
+        ACLMessage reply = request.createReply();
+
+        try {
+            ContentElement ce = getContentManager().extractContent(request);
+            if (!(ce instanceof Action) || !(((Action) ce).getAction() instanceof StartTrading)) {
+                reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                send(reply);
+                return;
+            }
+
+            if (!tradingStarted) {
+                tradingStarted = true;
+                refreshDirectory();
+                environment = request.getSender();
+
+                BookTraderImproved.dateStarted = System.currentTimeMillis() / 1000;
+
+                //all logical traders are scheduled by one behaviour
+                addBehaviour(new SchedulerBehaviour(this));
+            }
+
+            AgentInfo ai = ((StartTrading) ((Action) ce).getAction()).getAgentInfo();
+            String logicalID = request.getUserDefinedParameter(Utils.TRADER_PARAMETER);
+
+            if (ai != null && logicalID != null) {
+                LogicalTrader t = traders[Integer.parseInt(logicalID)];
+                t.myEnvironment = request.getSender();
+                t.myReplica = Utils.chooseReplica(replicas, t.name);
+                t.myBooks = ai.getBooks();
+                t.myGoal = ai.getGoals();
+                t.myMoney = ai.getMoney();
+            } else {
+                for (LogicalTrader t : traders) {
+                    t.requestInfo();
+                }
+            }
+
+            reply.setPerformative(ACLMessage.INFORM);
+            send(reply);
+
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //a CFP for the host is answered by one of the logical traders which own the books
+    void handleCfp(ACLMessage cfp) {
+
+        try {
+            Action ac = (Action) getContentManager().extractContent(cfp);
+            SellMeBooks smb = (SellMeBooks) ac.getAction();
+
+            //the CFP may come from one of our own logical traders
+            String buyer = Utils.getTraderName(cfp);
+
+            for (int i = 0; i < traders.length; i++) {
+                LogicalTrader t = traders[(nextSeller + i) % traders.length];
+                if (t.name.equals(buyer) || t.myBooks == null)
+                    continue;
+
+                ChooseFrom cf = BookTraderImproved.createOffers(strategy, smb.getBooks(), t.myGoal, t.myBooks);
+                if (cf != null) {
+                    nextSeller = (nextSeller + i + 1) % traders.length;
+                    t.propose(cfp, cf);
+                    return;
+                }
+            }
+
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+
+        ACLMessage refuse = cfp.createReply();
+        refuse.setPerformative(ACLMessage.REFUSE);
+        send(refuse);
+    }
+
+    //cooperative scheduler of the logical traders, each slice runs a limited number of traders
+    private class SchedulerBehaviour extends TickerBehaviour {
+
+        int cursor = 0;
+        long lastRefresh = System.currentTimeMillis();
+        long lastSweep = System.currentTimeMillis();
+
+        public SchedulerBehaviour(Agent a) {
+            super(a, 50);
+        }
+
+        @Override
+        protected void onTick() {
+
+            long now = System.currentTimeMillis();
+
+            if (now - lastRefresh > 10000) {
+                lastRefresh = now;
+                try {
+                    refreshDirectory();
+                } catch (FIPAException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (now - lastSweep > Environment.EXPIRY_PERIOD) {
+                lastSweep = now;
+                sweep(now);
+            }
+
+            for (int i = 0; i < Math.min(SLICE_BUDGET, traders.length); i++) {
+                traders[cursor].step(now);
+                cursor = (cursor + 1) % traders.length;
+            }
+        }
+
+        //forgets the requests and proposals which were not answered before their deadline
+        void sweep(long now) {
+
+            ArrayList<Request> expired = new ArrayList<Request>();
+            Iterator<Map.Entry<String, Request>> it = requests.entrySet().iterator();
+            while (it.hasNext()) {
+                Request r = it.next().getValue();
+                if (r.deadline <= now) {
+                    expired.add(r);
+                    it.remove();
+                }
+            }
+            for (Request r : expired) {
+                r.trader.requestExpired(r);
+            }
+
+            Iterator<Map.Entry<String, Proposal>> pit = responding.entrySet().iterator();
+            while (pit.hasNext()) {
+                Proposal p = pit.next().getValue();
+                if (p.deadline <= now) {
+                    rtt.timeout(p.buyer);
+                    pit.remove();
+                }
+            }
+        }
+    }
+
+    //a running negotiation about buying a book
+    static class Negotiation {
+
+        //the title we want to buy
+        String title;
+        //the deadline of the proposals, then (after an offer is accepted) of the seller's INFORM
+        long deadline;
+        int expectedResponses;
+        ArrayList<ACLMessage> proposals = new ArrayList<ACLMessage>();
+        int responses = 0;
+        //when the CFP was sent and the hosts which did not answer it yet, for their round-trip times
+        long sent;
+        HashSet<AID> waiting;
+
+        //set when an offer is accepted, with the seller and the time of the ACCEPT
+        Offer accepted;
+        ArrayList<BookInfo> shouldReceive;
+        AID seller;
+        long acceptedAt;
+    }
+
+    //a proposal of a logical trader (the seller), the buyer answers it after the deadline of its CFP
+    static class Proposal {
+
+        LogicalTrader trader;
+        AID buyer;
+        ChooseFrom offers;
+        long proposed;
+        long deadline;
+
+        Proposal(LogicalTrader trader, AID buyer, ChooseFrom offers, long proposed, long deadline) {
+            this.trader = trader;
+            this.buyer = buyer;
+            this.offers = offers;
+            this.proposed = proposed;
+            this.deadline = deadline;
+        }
+    }
+
+    //a request of a logical trader to the environment or a replica
+    static class Request {
+
+        LogicalTrader trader;
+        AID receiver;
+        long sent;
+        long deadline;
+        //the environment answers a MakeTransaction only after the other leg, it is not a round trip
+        boolean settlement;
+
+        Request(LogicalTrader trader, AID receiver, long sent, long deadline, boolean settlement) {
+            this.trader = trader;
+            this.receiver = receiver;
+            this.sent = sent;
+            this.deadline = deadline;
+            this.settlement = settlement;
+        }
+    }
+
+    /**
+     * A single logical trader. All its methods are called from the host's behaviours, so no synchronization is needed.
+     */
+    class LogicalTrader {
+
+        int id;
+        String name;
+
+        ArrayList<BookInfo> myBooks;
+        ArrayList<Goal> myGoal;
+        long myMoney;
+        //the shard of the environment which keeps our state (the one which sent us the StartTrading)
+        AID myEnvironment;
+        //the replica of the environment we ask for our state (null if there is none), and the version of the state
+        //which includes our last transaction
+        AID myReplica;
+        long stateVersion = 0;
+
+        long nextRound;
+
+        //our running negotiations (we are the buyer), by conversation ID
+        HashMap<String, Negotiation> negotiations = new HashMap<String, Negotiation>();
+        //titles we are currently negotiating about
+        HashSet<String> negotiatedTitles = new HashSet<String>();
+
+        LogicalTrader(int id) {
+            this.id = id;
+            this.name = Utils.getLogicalTraderName(getAID(), id);
+            //spread the rounds of the traders over the period
+            this.nextRound = System.currentTimeMillis() + rnd.nextInt((int) Math.max(1, period));
+        }
+
+        void step(long now) {
+
+            if (myGoal == null)
+                return;
+
+            //decide the negotiations which timed out, give up those whose seller did not confirm the accepted offer
+            ArrayList<String> expired = new ArrayList<String>();
+            for (Map.Entry<String, Negotiation> e : negotiations.entrySet()) {
+                if (e.getValue().deadline <= now) {
+                    expired.add(e.getKey());
+                }
+            }
+            for (String conversationId : expired) {
+                Negotiation n = negotiations.get(conversationId);
+                if (n.accepted == null) {
+                    decide(conversationId);
+                } else {
+                    rtt.timeout(n.seller);
+                    finishNegotiation(conversationId);
+                }
+            }
+
+            if (now < nextRound)
+                return;
+            nextRound = now + period;
+
+            //try to buy all books that are in my goals and I do not own them yet
+            for (BookInfo book : BookTraderImproved.getUnsatisfiedGoalBooks(myGoal, myBooks)) {
+                if (!negotiatedTitles.contains(book.getBookName())) {
+                    startNegotiation(book.getBookName(), now);
+                }
+            }
+        }
+
+        void startNegotiation(String bookName, long now) {
+
+            ACLMessage cfp = new ACLMessage(ACLMessage.CFP);
+            cfp.setLanguage(codec.getName());
+            cfp.setOntology(onto.getName());
+            cfp.setProtocol(FIPANames.InteractionProtocol.FIPA_CONTRACT_NET);
+            long deadline = now + rtt.getTimeout(otherTraders);
+            cfp.setReplyByDate(new Date(deadline));
+
+            String conversationId = newConversationId(this);
+            cfp.setConversationId(conversationId);
+            cfp.setReplyWith(conversationId);
+
+            for (AID trader : otherTraders) {
+                cfp.addReceiver(trader);
+            }
+
+            ArrayList<BookInfo> bis = new ArrayList<BookInfo>();
+            BookInfo bi = new BookInfo();
+            bi.setBookName(bookName);
+            bis.add(bi);
+
+            SellMeBooks smb = new SellMeBooks();
+            smb.setBooks(bis);
+
+            try {
+                getContentManager().fillContent(cfp, new Action(getAID(), smb));
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+                return;
+            } catch (OntologyException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Negotiation n = new Negotiation();
+            n.title = bookName;
+            n.deadline = deadline;
+            n.expectedResponses = otherTraders.size();
+            n.sent = now;
+            n.waiting = new HashSet<AID>(otherTraders);
+            n.shouldReceive = bis;
+            negotiations.put(conversationId, n);
+            negotiatedTitles.add(bookName);
+            initiated.put(conversationId, this);
+
+            send(this, cfp);
+        }
+
+        //we got all proposals (or the time is out), accept the best one and reject the others
+        void decide(String conversationId) {
+
+            Negotiation n = negotiations.get(conversationId);
+
+            //the hosts which did not answer before the deadline
+            for (AID host : n.waiting) {
+                rtt.timeout(host);
+            }
+            n.waiting.clear();
+
+            scorer.reset();
+            for (ACLMessage proposal : n.proposals) {
+                try {
+                    scorer.add(getContentManager(), proposal);
+                } catch (Codec.CodecException e) {
+                    e.printStackTrace();
+                } catch (OntologyException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            TraderState state = BookTraderImproved.toTraderState(myGoal, myBooks);
+            state.money = myMoney;
+            scorer.score(strategy, state, BookTraderImproved.getSecondsFromStart());
+
+            ACLMessage bestProposal = scorer.hasBestOffer() ? scorer.getProposal(scorer.getBestProposal()) : null;
+            Offer bestOffer = scorer.getBestOffer(myBooks);
+
+            for (ACLMessage proposal : n.proposals) {
+                ACLMessage reply = proposal.createReply();
+                if (proposal == bestProposal) {
+                    reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
+                    Chosen ch = new Chosen();
+                    ch.setOffer(bestOffer);
+                    try {
+                        getContentManager().fillContent(reply, ch);
+                    } catch (Codec.CodecException e) {
+                        e.printStackTrace();
+                    } catch (OntologyException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                }
+                send(this, reply);
+            }
+
+            if (bestProposal == null) {
+                finishNegotiation(conversationId);
+                return;
+            }
+
+            n.accepted = bestOffer;
+            n.shouldReceive = scorer.getBestWillSell();
+            n.seller = bestProposal.getSender();
+            n.acceptedAt = System.currentTimeMillis();
+            n.deadline = n.acceptedAt + rtt.getTimeout(n.seller);
+        }
+
+        void finishNegotiation(String conversationId) {
+            Negotiation n = negotiations.remove(conversationId);
+            initiated.remove(conversationId);
+            if (n != null) {
+                negotiatedTitles.remove(n.title);
+            }
+        }
+
+        //we answer the CFP with our offers
+        void propose(ACLMessage cfp, ChooseFrom cf) {
+
+            ACLMessage reply = cfp.createReply();
+            reply.setPerformative(ACLMessage.PROPOSE);
+            //the buyer answers after the deadline of its CFP (unless all the sellers answer sooner), the time of its
+            //answer is measured from then
+            long proposed = System.currentTimeMillis();
+            if (cfp.getReplyByDate() != null) {
+                proposed = Math.max(proposed, cfp.getReplyByDate().getTime());
+            }
+            long deadline = proposed + rtt.getTimeout(cfp.getSender());
+            reply.setReplyByDate(new Date(deadline));
+
+            try {
+                getContentManager().fillContent(reply, cf);
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+                return;
+            } catch (OntologyException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            responding.put(cfp.getConversationId(), new Proposal(this, cfp.getSender(), cf, proposed, deadline));
+            send(this, reply);
+        }
+
+        //the buyer accepted or rejected our proposal
+        void handleDecision(ACLMessage msg, Proposal p) {
+
+            long now = System.currentTimeMillis();
+            if (now >= p.proposed) {
+                rtt.sample(msg.getSender(), now - p.proposed);
+            }
+            if (msg.getPerformative() != ACLMessage.ACCEPT_PROPOSAL)
+                return;
+            ChooseFrom cf = p.offers;
+
+            try {
+                Chosen c = (Chosen) getContentManager().extractContent(msg);
+
+                MakeTransaction mt = new MakeTransaction();
+                mt.setSenderName(name);
+                mt.setReceiverName(Utils.getTraderName(msg));
+                mt.setTradeConversationID(msg.getConversationId());
+                mt.setSendingBooks(cf.getWillSell());
+                mt.setSendingMoney(0);
+                mt.setReceivingBooks(c.getOffer().getBooks() == null ? new ArrayList<BookInfo>() : c.getOffer().getBooks());
+                mt.setReceivingMoney(c.getOffer().getMoney());
+
+                requestTransaction(mt);
+
+                ACLMessage reply = msg.createReply();
+                reply.setPerformative(ACLMessage.INFORM);
+                send(this, reply);
+
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //replies of the environment (or a replica) to our requests
+        void handleRequestReply(ACLMessage msg, Request request) {
+
+            if (!request.settlement) {
+                rtt.sample(request.receiver, System.currentTimeMillis() - request.sent);
+            }
+
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                handleEnvironmentInform(msg);
+            } else if (msg.getPerformative() == ACLMessage.FAILURE && msg.getSender().equals(myReplica)) {
+                //the replica is stale or behind, ask the environment
+                requestInfo(getEnvironment());
+            }
+        }
+
+        //the environment (or a replica) did not answer our request before its deadline
+        void requestExpired(Request request) {
+            if (!request.settlement) {
+                rtt.timeout(request.receiver);
+            }
+            if (request.settlement || request.receiver.equals(myReplica)) {
+                //we do not know our state now (the transaction may have been settled), ask the environment
+                requestInfo(getEnvironment());
+            }
+        }
+
+        //replies in the negotiations we started
+        void handleReply(ACLMessage msg) {
+
+            String conversationId = msg.getConversationId();
+            Negotiation n = negotiations.get(conversationId);
+            if (n == null) {
+                initiated.remove(conversationId);
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (n.waiting.remove(msg.getSender())) {
+                rtt.sample(msg.getSender(), now - n.sent);
+            } else if (n.accepted != null && msg.getSender().equals(n.seller)
+                    && (msg.getPerformative() == ACLMessage.INFORM || msg.getPerformative() == ACLMessage.FAILURE)) {
+                rtt.sample(n.seller, now - n.acceptedAt);
+            }
+
+            switch (msg.getPerformative()) {
+                case ACLMessage.PROPOSE:
+                    //the proposal came after we decided
+                    if (n.accepted != null) {
+                        reject(msg);
+                        return;
+                    }
+                    n.proposals.add(msg);
+                    n.responses++;
+                    break;
+                case ACLMessage.REFUSE:
+                case ACLMessage.NOT_UNDERSTOOD:
+                    n.responses++;
+                    break;
+                case ACLMessage.INFORM:
+                    //the seller processed the order, we need to send the payment
+                    if (n.accepted != null) {
+                        MakeTransaction mt = new MakeTransaction();
+                        mt.setSenderName(name);
+                        mt.setReceiverName(Utils.getTraderName(msg));
+                        mt.setTradeConversationID(conversationId);
+                        mt.setSendingBooks(n.accepted.getBooks() == null ? new ArrayList<BookInfo>() : n.accepted.getBooks());
+                        mt.setSendingMoney(n.accepted.getMoney());
+                        mt.setReceivingBooks(n.shouldReceive);
+                        mt.setReceivingMoney(0);
+                        finishNegotiation(conversationId);
+                        requestTransaction(mt);
+                    }
+                    return;
+                case ACLMessage.FAILURE:
+                    finishNegotiation(conversationId);
+                    return;
+            }
+
+            if (n.accepted == null && n.responses >= n.expectedResponses) {
+                decide(conversationId);
+            }
+        }
+
+        void reject(ACLMessage proposal) {
+            ACLMessage reply = proposal.createReply();
+            reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+            send(this, reply);
+        }
+
+        void handleEnvironmentInform(ACLMessage msg) {
+
+            //transaction done, ask for our new state
+            if ("done".equals(msg.getContent())) {
+                stateVersion = Utils.getStateVersion(msg);
+                requestInfo();
+                return;
+            }
+
+            try {
+                Result res = (Result) getContentManager().extractContent(msg);
+                AgentInfo ai = (AgentInfo) res.getValue();
+                myBooks = ai.getBooks();
+                myGoal = ai.getGoals();
+                myMoney = ai.getMoney();
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+
+        AID getEnvironment() {
+            if (myEnvironment != null)
+                return myEnvironment;
+            AID shard = Utils.chooseEnvironment(environments, name);
+            return shard != null ? shard : environment;
+        }
+
+        void requestInfo() {
+            requestInfo(myReplica != null ? myReplica : getEnvironment());
+        }
+
+        void requestInfo(AID receiver) {
+            ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
+            getMyInfo.setLanguage(codec.getName());
+            getMyInfo.setOntology(onto.getName());
+            getMyInfo.addReceiver(receiver);
+            if (stateVersion > 0) {
+                getMyInfo.addUserDefinedParameter(Utils.STATE_VERSION_PARAMETER, String.valueOf(stateVersion));
+            }
+            long now = System.currentTimeMillis();
+            long deadline = now + rtt.getTimeout(receiver);
+            getMyInfo.setReplyByDate(new Date(deadline));
+            sendRequest(getMyInfo, new GetMyInfo(), new Request(this, receiver, now, deadline, false));
+        }
+
+        void requestTransaction(MakeTransaction mt) {
+            AID env = getEnvironment();
+            ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
+            transReq.setLanguage(codec.getName());
+            transReq.setOntology(onto.getName());
+            transReq.addReceiver(env);
+            //the environment answers when the other leg comes, or fails the leg after its match timeout
+            long now = System.currentTimeMillis();
+            long deadline = now + Environment.MATCH_TIMEOUT + Environment.EXPIRY_PERIOD + rtt.getTimeout(env);
+            transReq.setReplyByDate(new Date(deadline));
+            sendRequest(transReq, mt, new Request(this, env, now, deadline, true));
+        }
+
+        void sendRequest(ACLMessage request, AgentAction action, Request pending) {
+            AID receiver = pending.receiver;
+            String conversationId = newConversationId(this);
+            request.setConversationId(conversationId);
+            request.setProtocol(FIPANames.InteractionProtocol.FIPA_REQUEST);
+            try {
+                getContentManager().fillContent(request, new Action(receiver, action));
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+                return;
+            } catch (OntologyException e) {
+                e.printStackTrace();
+                return;
+            }
+            requests.put(conversationId, pending);
+            send(this, request);
+        }
+    }
+}
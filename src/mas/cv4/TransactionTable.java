@@ -0,0 +1,240 @@
+package mas.cv4;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import mas.cv4.onto.BookInfo;
+import mas.cv4.onto.MakeTransaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The transactions of the environment by their ID (the conversation of the trade).
+ *
+ * A transaction is PENDING_ONE_LEG after its first leg, SETTLED or FAILED after the other leg, or EXPIRED if the other
+ * leg does not come in time. The finished transactions are kept for the retention time, so a leg sent again (e.g. after
+ * a lost reply) gets the same answer as before, and a third leg with the same ID cannot match them.
+ *
+ * The legs are compared by their fingerprints (a hash of the traders, the books in the order of the leg and the
+ * money). The fingerprint of the leg which matches the first one is known in advance, so the other leg is matched by
+ * comparing two longs (and checked in full only if they are equal). A pending transaction keeps only its first leg and
+ * the little needed to reply to its trader, not the whole request.
+ */
+public class TransactionTable {
+
+    public enum State { PENDING_ONE_LEG, SETTLED, FAILED, EXPIRED }
+
+    //what is needed to reply to the request of a trader
+    public static class ReplyInfo {
+
+        final AID receiver;
+        final String conversationId;
+        final String replyWith;
+        final String protocol;
+        final String language;
+        final String ontology;
+
+        public ReplyInfo(ACLMessage request) {
+            Iterator replyTo = request.getAllReplyTo();
+            this.receiver = replyTo.hasNext() ? (AID) replyTo.next() : request.getSender();
+            this.conversationId = request.getConversationId();
+            this.replyWith = request.getReplyWith();
+            this.protocol = request.getProtocol();
+            this.language = request.getLanguage();
+            this.ontology = request.getOntology();
+        }
+
+        //the same reply as request.createReply() would create
+        public ACLMessage createReply(int performative, String content) {
+            ACLMessage reply = new ACLMessage(performative);
+            reply.addReceiver(receiver);
+            reply.setConversationId(conversationId);
+            reply.setInReplyTo(replyWith);
+            reply.setProtocol(protocol);
+            reply.setLanguage(language);
+            reply.setOntology(ontology);
+            reply.setContent(content);
+            return reply;
+        }
+    }
+
+    public static class Entry {
+
+        State state = State.PENDING_ONE_LEG;
+        long time;
+        long fingerprint;
+        long matchFingerprint;
+        long secondFingerprint;
+
+        //the first leg and its trader, only while the transaction is pending
+        MakeTransaction leg;
+        ReplyInfo reply;
+
+        //the answer to the legs of a finished transaction
+        String result;
+
+        public State getState() {
+            return state;
+        }
+
+        public MakeTransaction getLeg() {
+            return leg;
+        }
+
+        public ReplyInfo getReply() {
+            return reply;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getMatchFingerprint() {
+            return matchFingerprint;
+        }
+
+        //whether the leg is one of the legs of the (finished) transaction
+        public boolean isLeg(long fp) {
+            return fp == fingerprint || fp == secondFingerprint;
+        }
+
+        public String getResult() {
+            return result;
+        }
+    }
+
+    long timeout;
+    long retention;
+
+    HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    long settled = 0;
+    long failed = 0;
+    long expired = 0;
+    long duplicates = 0;
+
+    public TransactionTable(long timeout, long retention) {
+        this.timeout = timeout;
+        this.retention = retention;
+    }
+
+    public Entry get(String id) {
+        return entries.get(id);
+    }
+
+    //the first leg of a transaction
+    public Entry addPending(MakeTransaction leg, ACLMessage request, long now) {
+        Entry e = new Entry();
+        e.time = now;
+        e.fingerprint = fingerprint(leg);
+        e.matchFingerprint = matchFingerprint(leg);
+        e.leg = leg;
+        e.reply = new ReplyInfo(request);
+        entries.put(leg.getTradeConversationID(), e);
+        return e;
+    }
+
+    //the first leg was sent again, only the latest request is answered
+    public void retry(Entry e, ACLMessage request) {
+        e.reply = new ReplyInfo(request);
+        duplicates++;
+    }
+
+    //the leg of a finished transaction was sent again
+    public void repeated() {
+        duplicates++;
+    }
+
+    public void finish(Entry e, State state, String result, long secondFingerprint, long now) {
+        e.state = state;
+        e.result = result;
+        e.secondFingerprint = secondFingerprint;
+        e.time = now;
+        e.leg = null;
+        e.reply = null;
+        if (state == State.SETTLED) {
+            settled++;
+        } else {
+            failed++;
+        }
+    }
+
+    /**
+     * Expires the pending transactions older than the timeout and forgets the finished ones older than the retention.
+     * Returns the traders of the expired transactions, they have to be told.
+     */
+    public ArrayList<ReplyInfo> expire(long now) {
+
+        ArrayList<ReplyInfo> expiredReplies = new ArrayList<ReplyInfo>();
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e.state == State.PENDING_ONE_LEG) {
+                if (now - e.time > timeout) {
+                    expiredReplies.add(e.reply);
+                    e.state = State.EXPIRED;
+                    e.result = "transaction not matched in time";
+                    e.time = now;
+                    e.leg = null;
+                    e.reply = null;
+                    expired++;
+                }
+            } else if (now - e.time > retention) {
+                it.remove();
+            }
+        }
+
+        return expiredReplies;
+    }
+
+    //the hash of the traders, books and money of the leg
+    public static long fingerprint(MakeTransaction leg) {
+        return fingerprint(leg.getSenderName(), leg.getReceiverName(), leg.getSendingBooks(), leg.getSendingMoney(),
+                leg.getReceivingBooks(), leg.getReceivingMoney());
+    }
+
+    //the fingerprint of the leg which matches the given one - the traders, books and money are swapped
+    public static long matchFingerprint(MakeTransaction leg) {
+        return fingerprint(leg.getReceiverName(), leg.getSenderName(), leg.getReceivingBooks(), leg.getReceivingMoney(),
+                leg.getSendingBooks(), leg.getSendingMoney());
+    }
+
+    static long fingerprint(String sender, String receiver, ArrayList<BookInfo> sending, long sendingMoney,
+                            ArrayList<BookInfo> receiving, long receivingMoney) {
+        long h = 17;
+        h = mix(h, sender.hashCode());
+        h = mix(h, receiver.hashCode());
+        h = mix(h, sendingMoney);
+        h = mix(h, receivingMoney);
+        h = mixBooks(h, sending);
+        h = mixBooks(h, receiving);
+        return h;
+    }
+
+    static long mixBooks(long h, ArrayList<BookInfo> books) {
+        if (books == null)
+            return mix(h, 0);
+        h = mix(h, books.size());
+        for (BookInfo bi : books) {
+            h = mix(h, bi.getBookID());
+        }
+        return h;
+    }
+
+    static long mix(long h, long x) {
+        h = (h ^ x) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public String toString() {
+        return "transactions: " + settled + " settled, " + failed + " failed, " + expired + " expired, " + duplicates
+                + " repeated legs, " + entries.size() + " in the table";
+    }
+}
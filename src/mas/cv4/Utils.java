@@ -1,10 +1,32 @@
 package mas.cv4;
 
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.content.onto.basic.Action;
+import jade.content.onto.basic.Result;
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.domain.FIPANames;
+import jade.domain.FIPAService;
+import jade.lang.acl.ACLMessage;
 import mas.cv4.onto.BookInfo;
 import mas.cv4.onto.AgentInfo;
+import mas.cv4.onto.BookOntology;
+import mas.cv4.onto.BookOwners;
+import mas.cv4.onto.GetMyInfo;
 import mas.cv4.onto.Goal;
+import mas.cv4.onto.Money;
+import mas.cv4.onto.WhoHas;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
 
 /**
  * Created by Martin Pilat on 15.4.14.
@@ -13,6 +35,16 @@ import java.util.ArrayList;
  */
 public class Utils {
 
+    //user defined message parameter with the ID of the logical trader (see TraderHost) which sent the message
+    public static final String TRADER_PARAMETER = "X-Trader";
+    //property of the book-trader service with the number of logical traders the agent runs
+    public static final String TRADERS_PROPERTY = "traders";
+    //properties of the environment service - the index of the shard and the number of shards (see Environment)
+    public static final String SHARD_PROPERTY = "shard";
+    public static final String SHARDS_PROPERTY = "shards";
+    //user-defined parameter with the version of the state kept by the environment (shard) - the environment sends it
+    //with the result of each transaction and with the state of the trader, a replica is asked for at least this version
+    public static final String STATE_VERSION_PARAMETER = "X-State-Version";
 
     /** Compute the utility of the agent based on its money and books it has
      *
@@ -21,7 +53,7 @@ public class Utils {
      */
     public static double computeUtility(AgentInfo ai) {
 
-        double util = ai.getMoney();
+        double util = Money.toDouble(ai.getMoney());
 
         ArrayList<Goal> goals = ai.getGoals();
         ArrayList<BookInfo> books = ai.getBooks();
@@ -61,4 +93,270 @@ public class Utils {
         return nBooks == goals.size();
 
     }
+
+    /**
+     * Returns the value of the agent argument in the form "key=value", or null if the argument was not given.
+     */
+    public static String getArgument(Agent a, String key) {
+
+        Object[] args = a.getArguments();
+        if (args == null)
+            return null;
+
+        for (Object arg : args) {
+            String s = arg.toString();
+            if (s.startsWith(key + "=")) {
+                return s.substring(key.length() + 1);
+            }
+        }
+
+        return null;
+    }
+
+    /** Creates the random generator of the agent
+     *
+     *  The seed is taken from the "seed" argument of the agent, if it is not given, it is derived from the "mas.seed"
+     *  system property and the name of the agent, otherwise a random seed is used. The seed is always stored in the
+     *  trace (if recording is on), so that the run can be reproduced.
+     */
+    public static Random createRandom(Agent a) {
+
+        long seed;
+        String arg = getArgument(a, "seed");
+        String global = System.getProperty("mas.seed");
+        if (arg != null) {
+            seed = Long.parseLong(arg);
+        } else if (global != null) {
+            seed = Long.parseLong(global) * 31 + a.getLocalName().hashCode();
+        } else {
+            seed = new Random().nextLong();
+        }
+
+        TraceRecorder recorder = TraceRecorder.getInstance();
+        if (recorder != null) {
+            recorder.recordSeed(a.getName(), seed);
+        }
+
+        return new Random(seed);
+    }
+
+    /**
+     * Returns the name of the trader which sent the message. It is the name of the sender, or the name of the logical
+     * trader, if the message was sent by a TraderHost.
+     */
+    public static String getTraderName(ACLMessage msg) {
+
+        String logicalID = msg.getUserDefinedParameter(TRADER_PARAMETER);
+        if (logicalID == null)
+            return msg.getSender().getName();
+
+        return getLogicalTraderName(msg.getSender(), Integer.parseInt(logicalID));
+    }
+
+    public static String getLogicalTraderName(AID host, int id) {
+        return host.getName() + "#" + id;
+    }
+
+    /**
+     * Returns the number of logical traders run by the agent described by the DF description, 0 for normal traders.
+     */
+    public static int getLogicalTraderCount(DFAgentDescription dfd) {
+        return getIntProperty(dfd, TRADERS_PROPERTY, 0);
+    }
+
+    /**
+     * Returns the value of the property of a service of the agent described by the DF description.
+     */
+    public static int getIntProperty(DFAgentDescription dfd, String name, int defaultValue) {
+
+        jade.util.leap.Iterator services = dfd.getAllServices();
+        while (services.hasNext()) {
+            ServiceDescription sd = (ServiceDescription) services.next();
+            jade.util.leap.Iterator properties = sd.getAllProperties();
+            while (properties.hasNext()) {
+                Property p = (Property) properties.next();
+                if (name.equals(p.getName())) {
+                    return Integer.parseInt(p.getValue().toString());
+                }
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Returns the index of the environment shard which keeps the state of the trader.
+     */
+    public static int getShard(String traderName, int shards) {
+        return Math.floorMod(traderName.hashCode(), shards);
+    }
+
+    /**
+     * Finds the environment (the shard of the environment) the trader sends its requests to.
+     */
+    public static AID findEnvironment(Agent a, String traderName) throws FIPAException {
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        DFAgentDescription[] envs = DFService.search(a, dfd, all);
+        if (envs.length == 0)
+            throw new FIPAException("no environment found");
+
+        return chooseEnvironment(envs, traderName);
+    }
+
+    /**
+     * Chooses the shard of the trader from the DF descriptions of the environment shards, null if there are none.
+     */
+    public static AID chooseEnvironment(DFAgentDescription[] envs, String traderName) {
+
+        for (DFAgentDescription env : envs) {
+            int shards = getIntProperty(env, SHARDS_PROPERTY, 1);
+            if (getIntProperty(env, SHARD_PROPERTY, 0) == getShard(traderName, shards)) {
+                return env.getName();
+            }
+        }
+
+        return envs.length == 0 ? null : envs[0].getName();
+    }
+
+    /**
+     * Finds a replica of the environment shard which keeps the state of the trader, null if there is none. The traders
+     * of a shard are spread over its replicas.
+     */
+    public static AID findReplica(Agent a, String traderName) throws FIPAException {
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment-replica");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        return chooseReplica(DFService.search(a, dfd, all), traderName);
+    }
+
+    /**
+     * Chooses the replica for the trader from the DF descriptions of the replicas, null if its shard has none.
+     */
+    public static AID chooseReplica(DFAgentDescription[] found, String traderName) {
+
+        ArrayList<AID> replicas = new ArrayList<AID>();
+        for (DFAgentDescription replica : found) {
+            int shards = getIntProperty(replica, SHARDS_PROPERTY, 1);
+            if (getIntProperty(replica, SHARD_PROPERTY, 0) == getShard(traderName, shards)) {
+                replicas.add(replica.getName());
+            }
+        }
+
+        if (replicas.isEmpty())
+            return null;
+        return replicas.get(Math.floorMod((traderName + "#replica").hashCode(), replicas.size()));
+    }
+
+    /**
+     * Returns the version of the state in the message from the environment (or a replica), 0 if there is none.
+     */
+    public static long getStateVersion(ACLMessage msg) {
+        String version = msg.getUserDefinedParameter(STATE_VERSION_PARAMETER);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    /**
+     * Asks for the state of the trader - a replica of its environment shard, or the environment if there is no replica
+     * or the replica cannot answer. The state includes at least the given version (0 for any version), e.g. the
+     * version from the INFORM about the last transaction of the trader.
+     */
+    public static AgentInfo getMyInfo(Agent a, String traderName, long minVersion) throws FIPAException, Codec.CodecException, OntologyException {
+
+        AID replica = findReplica(a, traderName);
+        if (replica != null) {
+            try {
+                return requestMyInfo(a, replica, minVersion);
+            } catch (FIPAException e) {
+                //the replica is stale or does not have the version yet
+            }
+        }
+
+        return requestMyInfo(a, findEnvironment(a, traderName), minVersion);
+    }
+
+    static AgentInfo requestMyInfo(Agent a, AID receiver, long minVersion) throws FIPAException, Codec.CodecException, OntologyException {
+
+        ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
+        getMyInfo.setLanguage(FIPANames.ContentLanguage.FIPA_SL);
+        getMyInfo.setOntology(BookOntology.ONTOLOGY_NAME);
+        getMyInfo.addReceiver(receiver);
+        if (minVersion > 0) {
+            getMyInfo.addUserDefinedParameter(STATE_VERSION_PARAMETER, String.valueOf(minVersion));
+        }
+        a.getContentManager().fillContent(getMyInfo, new Action(receiver, new GetMyInfo()));
+
+        ACLMessage myInfo = FIPAService.doFipaRequestClient(a, getMyInfo);
+
+        Result res = (Result) a.getContentManager().extractContent(myInfo);
+        return (AgentInfo) res.getValue();
+    }
+
+    /**
+     * Returns the AID of the agent which runs the trader (the TraderHost for the logical traders).
+     */
+    public static AID getTraderAID(String traderName) {
+        int i = traderName.lastIndexOf('#');
+        return new AID(i < 0 ? traderName : traderName.substring(0, i), AID.ISGUID);
+    }
+
+    /**
+     * Finds all shards of the environment.
+     */
+    public static ArrayList<AID> findEnvironments(Agent a) throws FIPAException {
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("environment");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        ArrayList<AID> envs = new ArrayList<AID>();
+        for (DFAgentDescription env : DFService.search(a, dfd, all)) {
+            envs.add(env.getName());
+        }
+        return envs;
+    }
+
+    /**
+     * Creates the request asking the environment shard which traders own the book.
+     */
+    public static ACLMessage createWhoHas(Agent a, AID env, String bookName) throws Codec.CodecException, OntologyException {
+
+        WhoHas whoHas = new WhoHas();
+        whoHas.setBookName(bookName);
+
+        ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+        request.setLanguage(FIPANames.ContentLanguage.FIPA_SL);
+        request.setOntology(BookOntology.ONTOLOGY_NAME);
+        request.setProtocol(FIPANames.InteractionProtocol.FIPA_REQUEST);
+        request.addReceiver(env);
+        a.getContentManager().fillContent(request, new Action(env, whoHas));
+        return request;
+    }
+
+    /**
+     * Adds the agents which run the owners of the book (from the answer to WhoHas) to the owners.
+     */
+    public static void addOwners(Agent a, ACLMessage reply, Collection<AID> owners) throws Codec.CodecException, OntologyException {
+        Result res = (Result) a.getContentManager().extractContent(reply);
+        for (String owner : ((BookOwners) res.getValue()).getOwners()) {
+            owners.add(getTraderAID(owner));
+        }
+    }
 }
@@ -0,0 +1,66 @@
+package mas.cv4.market;
+
+import mas.cv4.Constants;
+
+/**
+ * The pricing of BookTraderImproved. The non-goal books are sold for the default price, the goal books for more than
+ * their value for us, and the prices move towards the limits during the first maxTime seconds. The constants are
+ * given by StrategyParameters.
+ */
+public class ImprovedStrategy implements TradingStrategy {
+
+    public static final long MAXTIME = 120;
+
+    final StrategyParameters params;
+
+    public ImprovedStrategy() {
+        this(new StrategyParameters());
+    }
+
+    public ImprovedStrategy(StrategyParameters params) {
+        this.params = params;
+    }
+
+    public StrategyParameters getParameters() {
+        return params;
+    }
+
+    private double getValueDifferenceInTimeIncreasing(double max, double min, long seconds) {
+        return min + Math.min(seconds, params.maxTime) * (max - min) / params.maxTime;
+    }
+
+    private double getValueDifferenceInTimeDecreasing(double max, double min, long seconds) {
+        return max - Math.min(seconds, params.maxTime) * (max - min) / params.maxTime;
+    }
+
+    @Override
+    public double getSellValue(TraderState trader, int title, long seconds) {
+
+        // if we have the goal two times, we can get rid of one for default price
+        if (trader.isGoal(title) && trader.owned[title] <= 1) {
+            // if we only have one goal, sell it at high price
+            double value = trader.goalValue[title];
+            return getValueDifferenceInTimeDecreasing(value * params.sellGoalMarkup, value + 1, seconds);
+        }
+
+        return getValueDifferenceInTimeDecreasing(Constants.getPrice(title) + params.sellDefaultMarkup, 1, seconds);
+    }
+
+    @Override
+    public double getBuyValue(TraderState trader, int title, long seconds) {
+
+        //if the book is in our unsatisfied goals and we do not have it yet, than the book has for us quite a high value
+        if (trader.isUnsatisfiedGoal(title)) {
+            double value = trader.goalValue[title];
+            return getValueDifferenceInTimeIncreasing(value, params.buyGoalFactor * value, seconds) - 1;
+        }
+
+        //if not in our goals, the book has for us relatively small value
+        return getValueDifferenceInTimeDecreasing(Constants.getPrice(title) / params.buyDefaultDivisor, 0, seconds);
+    }
+
+    @Override
+    public long getPeriod() {
+        return params.period;
+    }
+}
@@ -0,0 +1,256 @@
+package mas.cv4.market;
+
+import mas.cv4.Constants;
+import mas.cv4.onto.Money;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * A JADE-free model of the book trading competition.
+ *
+ * The traders, their negotiations and the settlement of trades are plain method calls over primitive arrays, the
+ * time is simulated in steps of STEP milliseconds. The initial state is generated in the same way the Environment
+ * does it, the negotiation follows BookTraderImproved - every period of its strategy each trader asks all other
+ * traders for each book from its unsatisfied goals, the sellers offer the book for money, or for one of the books from their own
+ * unsatisfied goals (+money), and the buyer accepts the best offer with a positive utility.
+ */
+public class MarketKernel {
+
+    //the offer does not require any book
+    public static final int NO_BOOK = -1;
+
+    public static final int INITIAL_BOOKS = 4;
+    public static final long INITIAL_MONEY = 400 * Money.SCALE;
+
+    //length of one simulation step (ms)
+    public static final long STEP = 100;
+
+    final int titles;
+    final TradingStrategy[] strategies;
+    final TraderState[] traders;
+    final Random rnd;
+
+    long millis = 0;
+    int trades = 0;
+    int failedTrades = 0;
+
+    //order in which the traders act in a step
+    final int[] order;
+    //the time when the trader tries to buy the books next time
+    final long[] nextAction;
+
+    /**
+     * Creates the market with one trader for each strategy, the goals and books are generated from the seed.
+     */
+    public MarketKernel(TradingStrategy[] strategies, long seed) {
+
+        this.titles = Constants.getBookCount();
+        this.strategies = strategies;
+        this.traders = new TraderState[strategies.length];
+        this.rnd = new Random(seed);
+        this.order = new int[strategies.length];
+        this.nextAction = new long[strategies.length];
+
+        ArrayList<Integer> shuffled = new ArrayList<Integer>();
+        for (int t = 0; t < titles; t++) {
+            shuffled.add(t);
+        }
+
+        for (int i = 0; i < traders.length; i++) {
+            order[i] = i;
+            nextAction[i] = strategies[i].getPeriod();
+
+            Collections.shuffle(shuffled, rnd);
+            TraderState ts = new TraderState(titles);
+
+            for (int j = 0; j < INITIAL_BOOKS; j++) {
+                ts.owned[shuffled.get(j)]++;
+            }
+
+            for (int j = INITIAL_BOOKS; j < titles; j++) {
+                int t = shuffled.get(j);
+                ts.goalValue[t] = Constants.getPrice(t) + rnd.nextInt(40) - 20;
+            }
+
+            ts.money = INITIAL_MONEY;
+            traders[i] = ts;
+        }
+    }
+
+    /**
+     * Runs the competition for the given number of (simulated) seconds.
+     */
+    public void run(int duration) {
+        long end = millis + duration * 1000L;
+        while (millis < end) {
+            step();
+        }
+    }
+
+    //one step of the competition, the traders whose period passed act in a random order
+    public void step() {
+
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        for (int buyer : order) {
+            if (millis < nextAction[buyer])
+                continue;
+            nextAction[buyer] += strategies[buyer].getPeriod();
+
+            TraderState ts = traders[buyer];
+            for (int t = 0; t < titles; t++) {
+                if (ts.isUnsatisfiedGoal(t)) {
+                    negotiate(buyer, t);
+                }
+            }
+        }
+
+        millis += STEP;
+    }
+
+    /**
+     * The buyer asks all other traders for a book of the title and accepts the best offer.
+     *
+     * @return true if a trade was made
+     */
+    public boolean negotiate(int buyer, int title) {
+
+        long seconds = millis / 1000;
+        TraderState b = traders[buyer];
+        TradingStrategy bs = strategies[buyer];
+        double gain = bs.getBuyValue(b, title, seconds);
+
+        int bestSeller = -1;
+        int bestPaidTitle = NO_BOOK;
+        long bestMoney = 0;
+        //we accept only offers we gain on
+        double bestUtility = 0;
+
+        for (int seller = 0; seller < traders.length; seller++) {
+            TraderState s = traders[seller];
+            if (seller == buyer || s.owned[title] == 0)
+                continue;
+
+            double sellPrice = strategies[seller].getSellValue(s, title, seconds);
+
+            //offer for money only (rounded to cents, as in the offers of the traders)
+            long price = Money.fromDouble(sellPrice);
+            if (price <= b.money && gain - Money.toDouble(price) > bestUtility) {
+                bestUtility = gain - Money.toDouble(price);
+                bestSeller = seller;
+                bestPaidTitle = NO_BOOK;
+                bestMoney = price;
+            }
+
+            //book-for-book (+money) offers for the books in the seller's unsatisfied goals
+            for (int g = 0; g < titles; g++) {
+                if (!s.isUnsatisfiedGoal(g) || b.owned[g] == 0)
+                    continue;
+
+                long money = Money.fromDouble(Math.max(0, sellPrice - s.goalValue[g]));
+                if (money > b.money)
+                    continue;
+
+                double utility = gain - Money.toDouble(money) - bs.getSellValue(b, g, seconds);
+                if (utility > bestUtility) {
+                    bestUtility = utility;
+                    bestSeller = seller;
+                    bestPaidTitle = g;
+                    bestMoney = money;
+                }
+            }
+        }
+
+        if (bestSeller == -1)
+            return false;
+
+        return settle(buyer, bestSeller, title, bestPaidTitle, bestMoney);
+    }
+
+    /**
+     * Settles a trade - the seller sends a book of the title, the buyer sends the money and optionally a book of the
+     * paid title. The rules are the same as in the Environment, both traders must own the books they send and the buyer
+     * must have enough money.
+     *
+     * @return false if the trade is not valid
+     */
+    public boolean settle(int buyer, int seller, int title, int paidTitle, long money) {
+
+        TraderState b = traders[buyer];
+        TraderState s = traders[seller];
+
+        if (s.owned[title] == 0 || (paidTitle != NO_BOOK && b.owned[paidTitle] == 0) || b.money < money) {
+            failedTrades++;
+            return false;
+        }
+
+        s.owned[title]--;
+        b.owned[title]++;
+
+        if (paidTitle != NO_BOOK) {
+            b.owned[paidTitle]--;
+            s.owned[paidTitle]++;
+        }
+
+        b.money -= money;
+        s.money += money;
+
+        trades++;
+        return true;
+    }
+
+    /**
+     * Checks that the two legs of a transaction match - the books and money sent by one agent are the books and money
+     * the other agent expects to receive. The books are given as their IDs, in the order of the orders, the money in
+     * cents, so it is compared exactly.
+     */
+    public static boolean legsMatch(int[] sendBooks1, long sendMoney1, int[] receiveBooks1, long receiveMoney1,
+                                    int[] sendBooks2, long sendMoney2, int[] receiveBooks2, long receiveMoney2) {
+
+        if (sendBooks1.length != receiveBooks2.length || sendBooks2.length != receiveBooks1.length)
+            return false;
+
+        for (int i = 0; i < sendBooks1.length; i++) {
+            if (sendBooks1[i] != receiveBooks2[i])
+                return false;
+        }
+
+        for (int i = 0; i < sendBooks2.length; i++) {
+            if (sendBooks2[i] != receiveBooks1[i])
+                return false;
+        }
+
+        return sendMoney1 == receiveMoney2 && sendMoney2 == receiveMoney1;
+    }
+
+    public int getTraderCount() {
+        return traders.length;
+    }
+
+    public TraderState getTrader(int trader) {
+        return traders[trader];
+    }
+
+    public double getUtility(int trader) {
+        return traders[trader].getUtility();
+    }
+
+    public long getSeconds() {
+        return millis / 1000;
+    }
+
+    public int getTradeCount() {
+        return trades;
+    }
+
+    public int getFailedTradeCount() {
+        return failedTrades;
+    }
+}
@@ -0,0 +1,85 @@
+package mas.cv4.market;
+
+import java.util.Locale;
+
+/**
+ * The constants of the ImprovedStrategy. They can be given to the agents as arguments in the form "key=value" (the
+ * keys are the names of the fields), so that the Tournament can search for their best values.
+ */
+public class StrategyParameters {
+
+    //goal books are sold for at most sellGoalMarkup * value
+    public double sellGoalMarkup = 1.25;
+    //other books are sold for at most the default price + sellDefaultMarkup
+    public double sellDefaultMarkup = 5;
+    //books not in the goals are bought for at most the default price / buyDefaultDivisor
+    public double buyDefaultDivisor = 5;
+    //goal books are bought for at least buyGoalFactor * value
+    public double buyGoalFactor = 0.7;
+    //the time (s) in which the prices move from the initial to the final values
+    public long maxTime = 120;
+    //the time (ms) between two attempts to buy the books
+    public long period = 1000;
+
+    public StrategyParameters() {
+    }
+
+    public StrategyParameters(StrategyParameters other) {
+        sellGoalMarkup = other.sellGoalMarkup;
+        sellDefaultMarkup = other.sellDefaultMarkup;
+        buyDefaultDivisor = other.buyDefaultDivisor;
+        buyGoalFactor = other.buyGoalFactor;
+        maxTime = other.maxTime;
+        period = other.period;
+    }
+
+    /**
+     * Sets the parameter with the given name.
+     *
+     * @return false if there is no such parameter
+     */
+    public boolean set(String key, String value) {
+        if (key.equals("sellGoalMarkup")) {
+            sellGoalMarkup = Double.parseDouble(value);
+        } else if (key.equals("sellDefaultMarkup")) {
+            sellDefaultMarkup = Double.parseDouble(value);
+        } else if (key.equals("buyDefaultDivisor")) {
+            buyDefaultDivisor = Double.parseDouble(value);
+        } else if (key.equals("buyGoalFactor")) {
+            buyGoalFactor = Double.parseDouble(value);
+        } else if (key.equals("maxTime")) {
+            maxTime = Long.parseLong(value);
+        } else if (key.equals("period")) {
+            period = Long.parseLong(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the parameters from the agent arguments, the arguments which are not parameters are ignored.
+     */
+    public static StrategyParameters parse(Object[] args) {
+
+        StrategyParameters params = new StrategyParameters();
+        if (args == null)
+            return params;
+
+        for (Object arg : args) {
+            String s = arg.toString();
+            int eq = s.indexOf('=');
+            if (eq > 0) {
+                params.set(s.substring(0, eq), s.substring(eq + 1));
+            }
+        }
+
+        return params;
+    }
+
+    //the same format as the agent arguments
+    public String toString() {
+        return String.format(Locale.US, "sellGoalMarkup=%.3f,sellDefaultMarkup=%.2f,buyDefaultDivisor=%.2f,buyGoalFactor=%.3f,maxTime=%d,period=%d",
+                sellGoalMarkup, sellDefaultMarkup, buyDefaultDivisor, buyGoalFactor, maxTime, period);
+    }
+}
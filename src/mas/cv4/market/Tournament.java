@@ -0,0 +1,276 @@
+package mas.cv4.market;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches for the best constants of the ImprovedStrategy.
+ *
+ * Every parameter set plays a number of competitions in the MarketKernel, each competition is isolated - it has its
+ * own market, traders and seed. In each competition half of the traders use the tested parameters, the other half
+ * uses the default ones. Each competition is played twice with the same seed, the second time with the seats of the
+ * two halves swapped, so the results do not depend on the initial states of the seats. All parameter sets play the
+ * competitions with the same seeds, so their results can be compared directly. The competitions run concurrently on
+ * all cores.
+ *
+ * Arguments: search=grid|random (default grid), sets=number of random parameter sets (default 50),
+ * competitions=number of competitions per parameter set (default 20), traders=traders per competition (default 20),
+ * duration=length of a competition in seconds (default 180), seed=seed of the competitions (default 42),
+ * threads=number of threads (default number of cores), top=number of parameter sets in the report (default 20).
+ */
+public class Tournament {
+
+    //the grid of the parameters searched by the grid search, the random search draws from the same ranges
+    static final double[] SELL_GOAL_MARKUPS = {1.1, 1.25, 1.5};
+    static final double[] SELL_DEFAULT_MARKUPS = {0, 5, 15};
+    static final double[] BUY_DEFAULT_DIVISORS = {2, 5, 10};
+    static final double[] BUY_GOAL_FACTORS = {0.5, 0.7, 0.9};
+    static final long[] MAX_TIMES = {60, 120, 170};
+    static final long[] PERIODS = {500, 1000, 2000};
+
+    int competitions;
+    int traders;
+    int duration;
+    long seed;
+
+    public Tournament(int competitions, int traders, int duration, long seed) {
+        this.competitions = competitions;
+        this.traders = traders;
+        this.duration = duration;
+        this.seed = seed;
+    }
+
+    /**
+     * Results of one parameter set.
+     */
+    public static class Result {
+
+        public final StrategyParameters params;
+        //mean utility of a trader with the tested / default parameters in each competition
+        public final double[] utility;
+        public final double[] baselineUtility;
+
+        Result(StrategyParameters params, int competitions) {
+            this.params = params;
+            this.utility = new double[competitions];
+            this.baselineUtility = new double[competitions];
+        }
+
+        public double getMean() {
+            return mean(utility);
+        }
+
+        public double getStdDev() {
+            double m = getMean();
+            double sum = 0;
+            for (double u : utility) {
+                sum += (u - m) * (u - m);
+            }
+            return utility.length > 1 ? Math.sqrt(sum / (utility.length - 1)) : 0;
+        }
+
+        public double getBaselineMean() {
+            return mean(baselineUtility);
+        }
+
+        //the fraction of the competitions in which the tested parameters were better than the default ones
+        public double getWinRate() {
+            int wins = 0;
+            for (int i = 0; i < utility.length; i++) {
+                if (utility[i] > baselineUtility[i])
+                    wins++;
+            }
+            return (double) wins / utility.length;
+        }
+
+        static double mean(double[] values) {
+            double sum = 0;
+            for (double v : values) {
+                sum += v;
+            }
+            return sum / values.length;
+        }
+    }
+
+    /**
+     * Plays one competition of the parameter set (in both seatings) and stores its results.
+     */
+    void play(Result result, int competition) {
+
+        double[] even = playSeats(result.params, competition, 0);
+        double[] odd = playSeats(result.params, competition, 1);
+
+        result.utility[competition] = (even[0] + odd[0]) / 2;
+        result.baselineUtility[competition] = (even[1] + odd[1]) / 2;
+    }
+
+    /**
+     * Plays the competition with the tested parameters in the seats of the given parity (0 or 1) and the default ones
+     * in the others, returns the mean utility of the tested and of the default traders.
+     */
+    double[] playSeats(StrategyParameters params, int competition, int parity) {
+
+        StrategyParameters baseline = new StrategyParameters();
+
+        //the traders alternate, so both halves get a similar share of good and bad initial states
+        TradingStrategy[] strategies = new TradingStrategy[traders];
+        for (int i = 0; i < traders; i++) {
+            strategies[i] = new ImprovedStrategy(i % 2 == parity ? params : baseline);
+        }
+
+        MarketKernel kernel = new MarketKernel(strategies, seed + competition);
+        kernel.run(duration);
+
+        double tested = 0;
+        double base = 0;
+        int testedCount = 0;
+        for (int i = 0; i < traders; i++) {
+            if (i % 2 == parity) {
+                tested += kernel.getUtility(i);
+                testedCount++;
+            } else {
+                base += kernel.getUtility(i);
+            }
+        }
+
+        return new double[] {tested / Math.max(1, testedCount), base / Math.max(1, traders - testedCount)};
+    }
+
+    /**
+     * Plays all competitions of all parameter sets, the results are sorted from the best mean utility.
+     */
+    public ArrayList<Result> run(List<StrategyParameters> sets, int threads) throws InterruptedException, ExecutionException {
+
+        ArrayList<Result> results = new ArrayList<Result>();
+        for (StrategyParameters p : sets) {
+            results.add(new Result(p, competitions));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Result r : results) {
+                for (int c = 0; c < competitions; c++) {
+                    final int competition = c;
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            play(r, competition);
+                        }
+                    }));
+                }
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result o1, Result o2) {
+                return Double.compare(o2.getMean(), o1.getMean());
+            }
+        });
+
+        return results;
+    }
+
+    //all combinations of the values in the grid
+    static ArrayList<StrategyParameters> createGrid() {
+        ArrayList<StrategyParameters> sets = new ArrayList<StrategyParameters>();
+        for (double sgm : SELL_GOAL_MARKUPS)
+            for (double sdm : SELL_DEFAULT_MARKUPS)
+                for (double bdd : BUY_DEFAULT_DIVISORS)
+                    for (double bgf : BUY_GOAL_FACTORS)
+                        for (long mt : MAX_TIMES)
+                            for (long p : PERIODS) {
+                                StrategyParameters params = new StrategyParameters();
+                                params.sellGoalMarkup = sgm;
+                                params.sellDefaultMarkup = sdm;
+                                params.buyDefaultDivisor = bdd;
+                                params.buyGoalFactor = bgf;
+                                params.maxTime = mt;
+                                params.period = p;
+                                sets.add(params);
+                            }
+        return sets;
+    }
+
+    //parameter sets drawn uniformly from the ranges of the grid
+    static ArrayList<StrategyParameters> createRandom(int count, Random rnd) {
+        ArrayList<StrategyParameters> sets = new ArrayList<StrategyParameters>();
+        for (int i = 0; i < count; i++) {
+            StrategyParameters params = new StrategyParameters();
+            params.sellGoalMarkup = uniform(rnd, SELL_GOAL_MARKUPS);
+            params.sellDefaultMarkup = uniform(rnd, SELL_DEFAULT_MARKUPS);
+            params.buyDefaultDivisor = uniform(rnd, BUY_DEFAULT_DIVISORS);
+            params.buyGoalFactor = uniform(rnd, BUY_GOAL_FACTORS);
+            params.maxTime = Math.round(uniform(rnd, new double[] {MAX_TIMES[0], MAX_TIMES[MAX_TIMES.length - 1]}));
+            params.period = Math.round(uniform(rnd, new double[] {PERIODS[0], PERIODS[PERIODS.length - 1]}) / MarketKernel.STEP) * MarketKernel.STEP;
+            sets.add(params);
+        }
+        return sets;
+    }
+
+    static double uniform(Random rnd, double[] range) {
+        double min = range[0];
+        double max = range[range.length - 1];
+        return min + rnd.nextDouble() * (max - min);
+    }
+
+    static String getArgument(String[] args, String key, String defaultValue) {
+        for (String a : args) {
+            if (a.startsWith(key + "=")) {
+                return a.substring(key.length() + 1);
+            }
+        }
+        return defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int competitions = Integer.parseInt(getArgument(args, "competitions", "20"));
+        int traders = Integer.parseInt(getArgument(args, "traders", "20"));
+        int duration = Integer.parseInt(getArgument(args, "duration", "180"));
+        long seed = Long.parseLong(getArgument(args, "seed", "42"));
+        int threads = Integer.parseInt(getArgument(args, "threads", "" + Runtime.getRuntime().availableProcessors()));
+        int top = Integer.parseInt(getArgument(args, "top", "20"));
+
+        ArrayList<StrategyParameters> sets;
+        if ("random".equals(getArgument(args, "search", "grid"))) {
+            sets = createRandom(Integer.parseInt(getArgument(args, "sets", "50")), new Random(seed));
+        } else {
+            sets = createGrid();
+        }
+        //the default parameters are always included (once), so the report shows where they stand
+        String defaults = new StrategyParameters().toString();
+        boolean hasDefaults = false;
+        for (StrategyParameters params : sets) {
+            hasDefaults |= params.toString().equals(defaults);
+        }
+        if (!hasDefaults) {
+            sets.add(new StrategyParameters());
+        }
+
+        System.out.println("Playing " + sets.size() + " parameter sets x " + competitions + " competitions ("
+                + traders + " traders, " + duration + " s) on " + threads + " threads");
+
+        long start = System.nanoTime();
+        Tournament tournament = new Tournament(competitions, traders, duration, seed);
+        ArrayList<Result> results = tournament.run(sets, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Finished in %.1f s (%.0f competitions/s)\n\n", seconds, sets.size() * competitions / seconds);
+        System.out.printf("%4s %10s %8s %10s %6s  %s\n", "rank", "utility", "stddev", "baseline", "wins", "parameters");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            boolean isDefault = r.params.toString().equals(new StrategyParameters().toString());
+            if (i >= top && !isDefault)
+                continue;
+            System.out.printf(Locale.US, "%4d %10.2f %8.2f %10.2f %5.0f%%  %s%s\n", i + 1, r.getMean(), r.getStdDev(),
+                    r.getBaselineMean(), 100 * r.getWinRate(), r.params, isDefault ? " (default)" : "");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package mas.cv4.market;
+
+import mas.cv4.onto.Money;
+
+import java.util.Arrays;
+
+/**
+ * The state of a trader in a form which does not depend on the ontology - the number of owned books and the value of
+ * the goal for each title (titles are identified by their index in Constants), and the money (in cents).
+ */
+public class TraderState {
+
+    //number of owned books of each title
+    public final int[] owned;
+    //value of the goal for each title, NaN if the title is not in the goals
+    public final double[] goalValue;
+    public long money;
+
+    public TraderState(int titles) {
+        owned = new int[titles];
+        goalValue = new double[titles];
+        Arrays.fill(goalValue, Double.NaN);
+    }
+
+    public boolean isGoal(int title) {
+        return !Double.isNaN(goalValue[title]);
+    }
+
+    //the title is in the goals and we do not have it yet
+    public boolean isUnsatisfiedGoal(int title) {
+        return isGoal(title) && owned[title] == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(owned, 0);
+        Arrays.fill(goalValue, Double.NaN);
+        money = 0;
+    }
+
+    /** Computes the utility of the trader
+     *
+     *  The same as Utils.computeUtility - the money and the values of the goals the trader owns.
+     */
+    public double getUtility() {
+        double util = Money.toDouble(money);
+        for (int t = 0; t < owned.length; t++) {
+            if (isGoal(t) && owned[t] > 0) {
+                util += goalValue[t];
+            }
+        }
+        return util;
+    }
+}
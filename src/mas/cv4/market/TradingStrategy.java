@@ -0,0 +1,25 @@
+package mas.cv4.market;
+
+/**
+ * The pricing part of a trader - how much money the trader wants for a book and how much it is willing to pay for it.
+ *
+ * The strategy gets the time from the start of trading as a parameter, so that it can be evaluated both in the real
+ * competition and in the simulated time of the MarketKernel.
+ */
+public interface TradingStrategy {
+
+    /**
+     * Returns the amount of money for which we are willing to sell a book of the given title.
+     */
+    double getSellValue(TraderState trader, int title, long seconds);
+
+    /**
+     * Returns the amount of money for which we are willing to buy a book of the given title.
+     */
+    double getBuyValue(TraderState trader, int title, long seconds);
+
+    /**
+     * Returns the time (in ms) between two attempts to buy the books from the goals.
+     */
+    long getPeriod();
+}
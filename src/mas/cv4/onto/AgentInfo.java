@@ -8,13 +8,13 @@ import java.util.ArrayList;
 /**
  * Created by Martin Pilat on 12.2.14.
  *
- * This class contains agent information -- goals, list of books, and the amount of money
+ * This class contains agent information -- goals, list of books, and the amount of money (in cents, see Money)
  */
 public class AgentInfo implements Concept {
 
     ArrayList<BookInfo> books;
     ArrayList<Goal> goals;
-    double money;
+    long money;
 
     @Slot(mandatory = true)
     public ArrayList<BookInfo> getBooks() {
@@ -35,11 +35,11 @@ public class AgentInfo implements Concept {
     }
 
     @Slot(mandatory = true)
-    public double getMoney() {
+    public long getMoney() {
         return money;
     }
 
-    public void setMoney(double money) {
+    public void setMoney(long money) {
         this.money = money;
     }
 
@@ -57,7 +57,7 @@ public class AgentInfo implements Concept {
             ret += g.toString();
         }
 
-        ret += "\nmoney: " + money;
+        ret += "\nmoney: " + Money.format(money);
 
         return ret;
     }
@@ -0,0 +1,31 @@
+package mas.cv4.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * The information about one agent in the StateUpdate - the name of the agent and its books, goals and money
+ */
+public class AgentState implements Concept {
+
+    String agentName;
+    AgentInfo agentInfo;
+
+    @Slot(mandatory = true)
+    public String getAgentName() {
+        return agentName;
+    }
+
+    public void setAgentName(String agentName) {
+        this.agentName = agentName;
+    }
+
+    @Slot(mandatory = true)
+    public AgentInfo getAgentInfo() {
+        return agentInfo;
+    }
+
+    public void setAgentInfo(AgentInfo agentInfo) {
+        this.agentInfo = agentInfo;
+    }
+}
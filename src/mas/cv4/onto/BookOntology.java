@@ -1,31 +1,654 @@
 package mas.cv4.onto;
 
-import jade.content.onto.BeanOntology;
-import jade.content.onto.BeanOntologyException;
+import jade.content.abs.*;
+import jade.content.onto.*;
+import jade.content.schema.*;
+
+import java.util.ArrayList;
 
 /**
  * Created by marti_000 on 3.2.14.
+ *
+ * The schemas are written by hand instead of being introspected by the BeanOntology at startup, and the objects are
+ * converted to/from their abstract descriptors directly, without the reflective getters and setters. The names of the
+ * schemas and slots are the same the BeanOntology generated from the classes, so the messages do not change. When a
+ * class is added to (or changed in) this package, its schema and conversion have to be added here.
+ *
+ * The money slots are integers (cents, see Money), the other numbers keep their types.
  */
-public class BookOntology extends BeanOntology {
+public class BookOntology extends Ontology {
+
+    public static final String ONTOLOGY_NAME = "book-ontology";
+
+    //vocabulary
+    public static final String BOOK_INFO = "BookInfo";
+    public static final String BOOK_INFO_BOOK_NAME = "bookName";
+    public static final String BOOK_INFO_BOOK_ID = "bookID";
+
+    public static final String GOAL = "Goal";
+    public static final String GOAL_BOOK = "book";
+    public static final String GOAL_VALUE = "value";
+
+    public static final String AGENT_INFO = "AgentInfo";
+    public static final String AGENT_INFO_BOOKS = "books";
+    public static final String AGENT_INFO_GOALS = "goals";
+    public static final String AGENT_INFO_MONEY = "money";
+
+    public static final String OFFER = "Offer";
+    public static final String OFFER_BOOKS = "books";
+    public static final String OFFER_MONEY = "money";
+
+    public static final String CHOOSE_FROM = "ChooseFrom";
+    public static final String CHOOSE_FROM_OFFERS = "offers";
+    public static final String CHOOSE_FROM_WILL_SELL = "willSell";
+
+    public static final String CHOSEN = "Chosen";
+    public static final String CHOSEN_OFFER = "offer";
+
+    public static final String GET_MY_INFO = "GetMyInfo";
+    public static final String START_TRADING = "StartTrading";
+    public static final String START_TRADING_AGENT_INFO = "agentInfo";
+
+    public static final String SELL_ME_BOOKS = "SellMeBooks";
+    public static final String SELL_ME_BOOKS_BOOKS = "books";
+
+    public static final String MAKE_TRANSACTION = "MakeTransaction";
+    public static final String MAKE_TRANSACTION_SENDER_NAME = "senderName";
+    public static final String MAKE_TRANSACTION_RECEIVER_NAME = "receiverName";
+    public static final String MAKE_TRANSACTION_TRADE_CONVERSATION_ID = "tradeConversationID";
+    public static final String MAKE_TRANSACTION_SENDING_BOOKS = "sendingBooks";
+    public static final String MAKE_TRANSACTION_SENDING_MONEY = "sendingMoney";
+    public static final String MAKE_TRANSACTION_RECEIVING_BOOKS = "receivingBooks";
+    public static final String MAKE_TRANSACTION_RECEIVING_MONEY = "receivingMoney";
+
+    public static final String AGENT_STATE = "AgentState";
+    public static final String AGENT_STATE_AGENT_NAME = "agentName";
+    public static final String AGENT_STATE_AGENT_INFO = "agentInfo";
+
+    public static final String STATE_UPDATE = "StateUpdate";
+    public static final String STATE_UPDATE_VERSION = "version";
+    public static final String STATE_UPDATE_STATES = "states";
+
+    public static final String GET_LEADERBOARD = "GetLeaderboard";
+    public static final String GET_LEADERBOARD_LIMIT = "limit";
+
+    public static final String LEADERBOARD_ENTRY = "LeaderboardEntry";
+    public static final String LEADERBOARD_ENTRY_AGENT_NAME = "agentName";
+    public static final String LEADERBOARD_ENTRY_UTILITY = "utility";
+    public static final String LEADERBOARD_ENTRY_ALL_GOALS = "allGoals";
+
+    public static final String LEADERBOARD = "Leaderboard";
+    public static final String LEADERBOARD_VERSION = "version";
+    public static final String LEADERBOARD_ENTRIES = "entries";
+
+    public static final String GET_MARKET_STATS = "GetMarketStats";
+    public static final String GET_MARKET_STATS_BOOK_NAME = "bookName";
+
+    public static final String TITLE_STATS = "TitleStats";
+    public static final String TITLE_STATS_BOOK_NAME = "bookName";
+    public static final String TITLE_STATS_VOLUME = "volume";
+    public static final String TITLE_STATS_LAST_PRICE = "lastPrice";
+    public static final String TITLE_STATS_AVERAGE_PRICE = "averagePrice";
+
+    public static final String MARKET_STATS = "MarketStats";
+    public static final String MARKET_STATS_VERSION = "version";
+    public static final String MARKET_STATS_TRADES = "trades";
+    public static final String MARKET_STATS_TITLES = "titles";
+
+    public static final String WHO_HAS = "WhoHas";
+    public static final String WHO_HAS_BOOK_NAME = "bookName";
+
+    public static final String BOOK_OWNERS = "BookOwners";
+    public static final String BOOK_OWNERS_BOOK_NAME = "bookName";
+    public static final String BOOK_OWNERS_OWNERS = "owners";
 
     static BookOntology theInstance = null;
 
     private BookOntology() {
-        super("book-ontology");
+        super(ONTOLOGY_NAME, BasicOntology.getInstance());
 
         try {
-            add("mas.cv4.onto");
+            PrimitiveSchema stringSchema = (PrimitiveSchema) getSchema(BasicOntology.STRING);
+            PrimitiveSchema integerSchema = (PrimitiveSchema) getSchema(BasicOntology.INTEGER);
+            PrimitiveSchema floatSchema = (PrimitiveSchema) getSchema(BasicOntology.FLOAT);
+            PrimitiveSchema booleanSchema = (PrimitiveSchema) getSchema(BasicOntology.BOOLEAN);
+            //the money is sent as an integer number of cents (see Money)
+            PrimitiveSchema moneySchema = integerSchema;
+
+            ConceptSchema bookInfo = new ConceptSchema(BOOK_INFO);
+            bookInfo.add(BOOK_INFO_BOOK_NAME, stringSchema);
+            bookInfo.add(BOOK_INFO_BOOK_ID, integerSchema, ObjectSchema.OPTIONAL);
+            add(bookInfo, BookInfo.class);
+
+            ConceptSchema goal = new ConceptSchema(GOAL);
+            goal.add(GOAL_BOOK, bookInfo);
+            goal.add(GOAL_VALUE, floatSchema);
+            add(goal, Goal.class);
+
+            ConceptSchema agentInfo = new ConceptSchema(AGENT_INFO);
+            agentInfo.add(AGENT_INFO_BOOKS, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            agentInfo.add(AGENT_INFO_GOALS, goal, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            agentInfo.add(AGENT_INFO_MONEY, moneySchema);
+            add(agentInfo, AgentInfo.class);
+
+            ConceptSchema offer = new ConceptSchema(OFFER);
+            offer.add(OFFER_BOOKS, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            offer.add(OFFER_MONEY, moneySchema);
+            add(offer, Offer.class);
+
+            PredicateSchema chooseFrom = new PredicateSchema(CHOOSE_FROM);
+            chooseFrom.add(CHOOSE_FROM_OFFERS, offer, 1, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            chooseFrom.add(CHOOSE_FROM_WILL_SELL, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            add(chooseFrom, ChooseFrom.class);
+
+            PredicateSchema chosen = new PredicateSchema(CHOSEN);
+            chosen.add(CHOSEN_OFFER, offer);
+            add(chosen, Chosen.class);
+
+            add(new AgentActionSchema(GET_MY_INFO), GetMyInfo.class);
+
+            AgentActionSchema startTrading = new AgentActionSchema(START_TRADING);
+            startTrading.add(START_TRADING_AGENT_INFO, agentInfo, ObjectSchema.OPTIONAL);
+            add(startTrading, StartTrading.class);
+
+            AgentActionSchema sellMeBooks = new AgentActionSchema(SELL_ME_BOOKS);
+            sellMeBooks.add(SELL_ME_BOOKS_BOOKS, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            add(sellMeBooks, SellMeBooks.class);
+
+            AgentActionSchema makeTransaction = new AgentActionSchema(MAKE_TRANSACTION);
+            makeTransaction.add(MAKE_TRANSACTION_SENDER_NAME, stringSchema);
+            makeTransaction.add(MAKE_TRANSACTION_RECEIVER_NAME, stringSchema);
+            makeTransaction.add(MAKE_TRANSACTION_TRADE_CONVERSATION_ID, stringSchema);
+            makeTransaction.add(MAKE_TRANSACTION_SENDING_BOOKS, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            makeTransaction.add(MAKE_TRANSACTION_SENDING_MONEY, moneySchema);
+            makeTransaction.add(MAKE_TRANSACTION_RECEIVING_BOOKS, bookInfo, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            makeTransaction.add(MAKE_TRANSACTION_RECEIVING_MONEY, moneySchema);
+            add(makeTransaction, MakeTransaction.class);
+
+            ConceptSchema agentState = new ConceptSchema(AGENT_STATE);
+            agentState.add(AGENT_STATE_AGENT_NAME, stringSchema);
+            agentState.add(AGENT_STATE_AGENT_INFO, agentInfo);
+            add(agentState, AgentState.class);
+
+            PredicateSchema stateUpdate = new PredicateSchema(STATE_UPDATE);
+            stateUpdate.add(STATE_UPDATE_VERSION, integerSchema);
+            stateUpdate.add(STATE_UPDATE_STATES, agentState, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            add(stateUpdate, StateUpdate.class);
+
+            AgentActionSchema getLeaderboard = new AgentActionSchema(GET_LEADERBOARD);
+            getLeaderboard.add(GET_LEADERBOARD_LIMIT, integerSchema, ObjectSchema.OPTIONAL);
+            add(getLeaderboard, GetLeaderboard.class);
+
+            ConceptSchema leaderboardEntry = new ConceptSchema(LEADERBOARD_ENTRY);
+            leaderboardEntry.add(LEADERBOARD_ENTRY_AGENT_NAME, stringSchema);
+            leaderboardEntry.add(LEADERBOARD_ENTRY_UTILITY, floatSchema);
+            leaderboardEntry.add(LEADERBOARD_ENTRY_ALL_GOALS, booleanSchema);
+            add(leaderboardEntry, LeaderboardEntry.class);
+
+            ConceptSchema leaderboard = new ConceptSchema(LEADERBOARD);
+            leaderboard.add(LEADERBOARD_VERSION, integerSchema);
+            leaderboard.add(LEADERBOARD_ENTRIES, leaderboardEntry, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            add(leaderboard, Leaderboard.class);
+
+            AgentActionSchema getMarketStats = new AgentActionSchema(GET_MARKET_STATS);
+            getMarketStats.add(GET_MARKET_STATS_BOOK_NAME, stringSchema, ObjectSchema.OPTIONAL);
+            add(getMarketStats, GetMarketStats.class);
+
+            ConceptSchema titleStats = new ConceptSchema(TITLE_STATS);
+            titleStats.add(TITLE_STATS_BOOK_NAME, stringSchema);
+            titleStats.add(TITLE_STATS_VOLUME, integerSchema);
+            titleStats.add(TITLE_STATS_LAST_PRICE, floatSchema);
+            titleStats.add(TITLE_STATS_AVERAGE_PRICE, floatSchema);
+            add(titleStats, TitleStats.class);
+
+            ConceptSchema marketStats = new ConceptSchema(MARKET_STATS);
+            marketStats.add(MARKET_STATS_VERSION, integerSchema);
+            marketStats.add(MARKET_STATS_TRADES, integerSchema);
+            marketStats.add(MARKET_STATS_TITLES, titleStats, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            add(marketStats, MarketStats.class);
+
+            AgentActionSchema whoHas = new AgentActionSchema(WHO_HAS);
+            whoHas.add(WHO_HAS_BOOK_NAME, stringSchema);
+            add(whoHas, WhoHas.class);
+
+            ConceptSchema bookOwners = new ConceptSchema(BOOK_OWNERS);
+            bookOwners.add(BOOK_OWNERS_BOOK_NAME, stringSchema);
+            bookOwners.add(BOOK_OWNERS_OWNERS, stringSchema, 0, ObjectSchema.UNLIMITED, BasicOntology.SEQUENCE);
+            add(bookOwners, BookOwners.class);
         }
-        catch (BeanOntologyException be) {
-            be.printStackTrace();
+        catch (OntologyException oe) {
+            oe.printStackTrace();
         }
     }
 
-    public static BookOntology getInstance() {
+    public static synchronized BookOntology getInstance() {
         if (theInstance == null)
             theInstance = new BookOntology();
-
         return theInstance;
     }
 
+    //object -> abstract descriptor, the other objects (Action, Result, ...) are handled by the BasicOntology
+    @Override
+    protected AbsObject fromObject(Object obj, Ontology globalOnto) throws UnknownSchemaException, OntologyException {
+
+        if (obj instanceof BookInfo) {
+            return fromBookInfo((BookInfo) obj);
+        }
+        if (obj instanceof Goal) {
+            return fromGoal((Goal) obj);
+        }
+        if (obj instanceof AgentInfo) {
+            return fromAgentInfo((AgentInfo) obj);
+        }
+        if (obj instanceof Offer) {
+            return fromOffer((Offer) obj);
+        }
+        if (obj instanceof ChooseFrom) {
+            ChooseFrom cf = (ChooseFrom) obj;
+            AbsPredicate abs = new AbsPredicate(CHOOSE_FROM);
+            AbsAggregate offers = new AbsAggregate(BasicOntology.SEQUENCE);
+            if (cf.getOffers() != null) {
+                for (Offer o : cf.getOffers()) {
+                    offers.add(fromOffer(o));
+                }
+            }
+            abs.set(CHOOSE_FROM_OFFERS, offers);
+            AbsAggregate willSell = fromBooks(cf.getWillSell());
+            if (willSell != null) {
+                abs.set(CHOOSE_FROM_WILL_SELL, willSell);
+            }
+            return abs;
+        }
+        if (obj instanceof Chosen) {
+            AbsPredicate abs = new AbsPredicate(CHOSEN);
+            abs.set(CHOSEN_OFFER, fromOffer(((Chosen) obj).getOffer()));
+            return abs;
+        }
+        if (obj instanceof GetMyInfo) {
+            return new AbsAgentAction(GET_MY_INFO);
+        }
+        if (obj instanceof StartTrading) {
+            AbsAgentAction abs = new AbsAgentAction(START_TRADING);
+            AgentInfo ai = ((StartTrading) obj).getAgentInfo();
+            if (ai != null) {
+                abs.set(START_TRADING_AGENT_INFO, fromAgentInfo(ai));
+            }
+            return abs;
+        }
+        if (obj instanceof SellMeBooks) {
+            AbsAgentAction abs = new AbsAgentAction(SELL_ME_BOOKS);
+            setAggregate(abs, SELL_ME_BOOKS_BOOKS, fromBooks(((SellMeBooks) obj).getBooks()));
+            return abs;
+        }
+        if (obj instanceof MakeTransaction) {
+            MakeTransaction mt = (MakeTransaction) obj;
+            AbsAgentAction abs = new AbsAgentAction(MAKE_TRANSACTION);
+            abs.set(MAKE_TRANSACTION_SENDER_NAME, mt.getSenderName());
+            abs.set(MAKE_TRANSACTION_RECEIVER_NAME, mt.getReceiverName());
+            abs.set(MAKE_TRANSACTION_TRADE_CONVERSATION_ID, mt.getTradeConversationID());
+            setAggregate(abs, MAKE_TRANSACTION_SENDING_BOOKS, fromBooks(mt.getSendingBooks()));
+            abs.set(MAKE_TRANSACTION_SENDING_MONEY, mt.getSendingMoney());
+            setAggregate(abs, MAKE_TRANSACTION_RECEIVING_BOOKS, fromBooks(mt.getReceivingBooks()));
+            abs.set(MAKE_TRANSACTION_RECEIVING_MONEY, mt.getReceivingMoney());
+            return abs;
+        }
+        if (obj instanceof StateUpdate) {
+            StateUpdate su = (StateUpdate) obj;
+            AbsPredicate abs = new AbsPredicate(STATE_UPDATE);
+            abs.set(STATE_UPDATE_VERSION, su.getVersion());
+            AbsAggregate states = new AbsAggregate(BasicOntology.SEQUENCE);
+            if (su.getStates() != null) {
+                for (AgentState as : su.getStates()) {
+                    AbsConcept state = new AbsConcept(AGENT_STATE);
+                    state.set(AGENT_STATE_AGENT_NAME, as.getAgentName());
+                    state.set(AGENT_STATE_AGENT_INFO, fromAgentInfo(as.getAgentInfo()));
+                    states.add(state);
+                }
+            }
+            abs.set(STATE_UPDATE_STATES, states);
+            return abs;
+        }
+        if (obj instanceof GetLeaderboard) {
+            AbsAgentAction abs = new AbsAgentAction(GET_LEADERBOARD);
+            Integer limit = ((GetLeaderboard) obj).getLimit();
+            if (limit != null) {
+                abs.set(GET_LEADERBOARD_LIMIT, limit.intValue());
+            }
+            return abs;
+        }
+        if (obj instanceof Leaderboard) {
+            Leaderboard lb = (Leaderboard) obj;
+            AbsConcept abs = new AbsConcept(LEADERBOARD);
+            abs.set(LEADERBOARD_VERSION, lb.getVersion());
+            AbsAggregate entries = new AbsAggregate(BasicOntology.SEQUENCE);
+            if (lb.getEntries() != null) {
+                for (LeaderboardEntry e : lb.getEntries()) {
+                    AbsConcept entry = new AbsConcept(LEADERBOARD_ENTRY);
+                    entry.set(LEADERBOARD_ENTRY_AGENT_NAME, e.getAgentName());
+                    entry.set(LEADERBOARD_ENTRY_UTILITY, e.getUtility());
+                    entry.set(LEADERBOARD_ENTRY_ALL_GOALS, e.isAllGoals());
+                    entries.add(entry);
+                }
+            }
+            abs.set(LEADERBOARD_ENTRIES, entries);
+            return abs;
+        }
+        if (obj instanceof GetMarketStats) {
+            AbsAgentAction abs = new AbsAgentAction(GET_MARKET_STATS);
+            String bookName = ((GetMarketStats) obj).getBookName();
+            if (bookName != null) {
+                abs.set(GET_MARKET_STATS_BOOK_NAME, bookName);
+            }
+            return abs;
+        }
+        if (obj instanceof MarketStats) {
+            MarketStats ms = (MarketStats) obj;
+            AbsConcept abs = new AbsConcept(MARKET_STATS);
+            abs.set(MARKET_STATS_VERSION, ms.getVersion());
+            abs.set(MARKET_STATS_TRADES, ms.getTrades());
+            AbsAggregate titles = new AbsAggregate(BasicOntology.SEQUENCE);
+            if (ms.getTitles() != null) {
+                for (TitleStats ts : ms.getTitles()) {
+                    AbsConcept title = new AbsConcept(TITLE_STATS);
+                    title.set(TITLE_STATS_BOOK_NAME, ts.getBookName());
+                    title.set(TITLE_STATS_VOLUME, ts.getVolume());
+                    title.set(TITLE_STATS_LAST_PRICE, ts.getLastPrice());
+                    title.set(TITLE_STATS_AVERAGE_PRICE, ts.getAveragePrice());
+                    titles.add(title);
+                }
+            }
+            abs.set(MARKET_STATS_TITLES, titles);
+            return abs;
+        }
+        if (obj instanceof WhoHas) {
+            AbsAgentAction abs = new AbsAgentAction(WHO_HAS);
+            abs.set(WHO_HAS_BOOK_NAME, ((WhoHas) obj).getBookName());
+            return abs;
+        }
+        if (obj instanceof BookOwners) {
+            BookOwners bo = (BookOwners) obj;
+            AbsConcept abs = new AbsConcept(BOOK_OWNERS);
+            abs.set(BOOK_OWNERS_BOOK_NAME, bo.getBookName());
+            AbsAggregate owners = new AbsAggregate(BasicOntology.SEQUENCE);
+            if (bo.getOwners() != null) {
+                for (String owner : bo.getOwners()) {
+                    owners.add(AbsPrimitive.wrap(owner));
+                }
+            }
+            abs.set(BOOK_OWNERS_OWNERS, owners);
+            return abs;
+        }
+
+        return super.fromObject(obj, globalOnto);
+    }
+
+    //abstract descriptor -> object, lcType is the lower case name of the schema
+    @Override
+    protected Object toObject(AbsObject abs, String lcType, Ontology globalOnto) throws UnknownSchemaException, UngroundedException, OntologyException {
+
+        switch (lcType) {
+            case "bookinfo":
+                return toBookInfo(abs);
+            case "goal":
+                return toGoal(abs);
+            case "agentinfo":
+                return toAgentInfo(abs);
+            case "offer":
+                return toOffer(abs);
+            case "choosefrom": {
+                ChooseFrom cf = new ChooseFrom();
+                ArrayList<Offer> offers = new ArrayList<Offer>();
+                AbsAggregate agg = (AbsAggregate) abs.getAbsObject(CHOOSE_FROM_OFFERS);
+                if (agg != null) {
+                    for (int i = 0; i < agg.size(); i++) {
+                        offers.add(toOffer(agg.get(i)));
+                    }
+                }
+                cf.setOffers(offers);
+                cf.setWillSell(toBooks(abs.getAbsObject(CHOOSE_FROM_WILL_SELL)));
+                return cf;
+            }
+            case "chosen": {
+                Chosen ch = new Chosen();
+                ch.setOffer(toOffer(abs.getAbsObject(CHOSEN_OFFER)));
+                return ch;
+            }
+            case "getmyinfo":
+                return new GetMyInfo();
+            case "starttrading": {
+                StartTrading st = new StartTrading();
+                if (abs.getAbsObject(START_TRADING_AGENT_INFO) != null) {
+                    st.setAgentInfo(toAgentInfo(abs.getAbsObject(START_TRADING_AGENT_INFO)));
+                }
+                return st;
+            }
+            case "sellmebooks": {
+                SellMeBooks smb = new SellMeBooks();
+                smb.setBooks(toBooks(abs.getAbsObject(SELL_ME_BOOKS_BOOKS)));
+                return smb;
+            }
+            case "maketransaction": {
+                MakeTransaction mt = new MakeTransaction();
+                mt.setSenderName(getString(abs, MAKE_TRANSACTION_SENDER_NAME));
+                mt.setReceiverName(getString(abs, MAKE_TRANSACTION_RECEIVER_NAME));
+                mt.setTradeConversationID(getString(abs, MAKE_TRANSACTION_TRADE_CONVERSATION_ID));
+                mt.setSendingBooks(toBooks(abs.getAbsObject(MAKE_TRANSACTION_SENDING_BOOKS)));
+                mt.setSendingMoney(getLong(abs, MAKE_TRANSACTION_SENDING_MONEY));
+                mt.setReceivingBooks(toBooks(abs.getAbsObject(MAKE_TRANSACTION_RECEIVING_BOOKS)));
+                mt.setReceivingMoney(getLong(abs, MAKE_TRANSACTION_RECEIVING_MONEY));
+                return mt;
+            }
+            case "stateupdate": {
+                StateUpdate su = new StateUpdate();
+                su.setVersion(getLong(abs, STATE_UPDATE_VERSION));
+                ArrayList<AgentState> states = new ArrayList<AgentState>();
+                AbsAggregate agg = (AbsAggregate) abs.getAbsObject(STATE_UPDATE_STATES);
+                if (agg != null) {
+                    for (int i = 0; i < agg.size(); i++) {
+                        AgentState as = new AgentState();
+                        as.setAgentName(getString(agg.get(i), AGENT_STATE_AGENT_NAME));
+                        as.setAgentInfo(toAgentInfo(agg.get(i).getAbsObject(AGENT_STATE_AGENT_INFO)));
+                        states.add(as);
+                    }
+                }
+                su.setStates(states);
+                return su;
+            }
+            case "getleaderboard": {
+                GetLeaderboard gl = new GetLeaderboard();
+                if (abs.getAbsObject(GET_LEADERBOARD_LIMIT) != null) {
+                    gl.setLimit(getInt(abs, GET_LEADERBOARD_LIMIT));
+                }
+                return gl;
+            }
+            case "leaderboard": {
+                Leaderboard lb = new Leaderboard();
+                lb.setVersion(getLong(abs, LEADERBOARD_VERSION));
+                ArrayList<LeaderboardEntry> entries = new ArrayList<LeaderboardEntry>();
+                AbsAggregate agg = (AbsAggregate) abs.getAbsObject(LEADERBOARD_ENTRIES);
+                if (agg != null) {
+                    for (int i = 0; i < agg.size(); i++) {
+                        LeaderboardEntry e = new LeaderboardEntry();
+                        e.setAgentName(getString(agg.get(i), LEADERBOARD_ENTRY_AGENT_NAME));
+                        e.setUtility(getDouble(agg.get(i), LEADERBOARD_ENTRY_UTILITY));
+                        e.setAllGoals(getBoolean(agg.get(i), LEADERBOARD_ENTRY_ALL_GOALS));
+                        entries.add(e);
+                    }
+                }
+                lb.setEntries(entries);
+                return lb;
+            }
+            case "getmarketstats": {
+                GetMarketStats gms = new GetMarketStats();
+                gms.setBookName(getString(abs, GET_MARKET_STATS_BOOK_NAME));
+                return gms;
+            }
+            case "marketstats": {
+                MarketStats ms = new MarketStats();
+                ms.setVersion(getLong(abs, MARKET_STATS_VERSION));
+                ms.setTrades(getLong(abs, MARKET_STATS_TRADES));
+                ArrayList<TitleStats> titles = new ArrayList<TitleStats>();
+                AbsAggregate agg = (AbsAggregate) abs.getAbsObject(MARKET_STATS_TITLES);
+                if (agg != null) {
+                    for (int i = 0; i < agg.size(); i++) {
+                        TitleStats ts = new TitleStats();
+                        ts.setBookName(getString(agg.get(i), TITLE_STATS_BOOK_NAME));
+                        ts.setVolume(getLong(agg.get(i), TITLE_STATS_VOLUME));
+                        ts.setLastPrice(getDouble(agg.get(i), TITLE_STATS_LAST_PRICE));
+                        ts.setAveragePrice(getDouble(agg.get(i), TITLE_STATS_AVERAGE_PRICE));
+                        titles.add(ts);
+                    }
+                }
+                ms.setTitles(titles);
+                return ms;
+            }
+            case "whohas": {
+                WhoHas wh = new WhoHas();
+                wh.setBookName(getString(abs, WHO_HAS_BOOK_NAME));
+                return wh;
+            }
+            case "bookowners": {
+                BookOwners bo = new BookOwners();
+                bo.setBookName(getString(abs, BOOK_OWNERS_BOOK_NAME));
+                ArrayList<String> owners = new ArrayList<String>();
+                AbsAggregate agg = (AbsAggregate) abs.getAbsObject(BOOK_OWNERS_OWNERS);
+                if (agg != null) {
+                    for (int i = 0; i < agg.size(); i++) {
+                        owners.add(((AbsPrimitive) agg.get(i)).getString());
+                    }
+                }
+                bo.setOwners(owners);
+                return bo;
+            }
+        }
+
+        return super.toObject(abs, lcType, globalOnto);
+    }
+
+    static AbsConcept fromBookInfo(BookInfo bi) {
+        AbsConcept abs = new AbsConcept(BOOK_INFO);
+        abs.set(BOOK_INFO_BOOK_NAME, bi.getBookName());
+        abs.set(BOOK_INFO_BOOK_ID, bi.getBookID());
+        return abs;
+    }
+
+    static AbsConcept fromGoal(Goal g) {
+        AbsConcept abs = new AbsConcept(GOAL);
+        abs.set(GOAL_BOOK, fromBookInfo(g.getBook()));
+        abs.set(GOAL_VALUE, g.getValue());
+        return abs;
+    }
+
+    static AbsConcept fromAgentInfo(AgentInfo ai) {
+        AbsConcept abs = new AbsConcept(AGENT_INFO);
+        setAggregate(abs, AGENT_INFO_BOOKS, fromBooks(ai.getBooks()));
+        AbsAggregate goals = new AbsAggregate(BasicOntology.SEQUENCE);
+        if (ai.getGoals() != null) {
+            for (Goal g : ai.getGoals()) {
+                goals.add(fromGoal(g));
+            }
+        }
+        abs.set(AGENT_INFO_GOALS, goals);
+        abs.set(AGENT_INFO_MONEY, ai.getMoney());
+        return abs;
+    }
+
+    static AbsConcept fromOffer(Offer o) {
+        AbsConcept abs = new AbsConcept(OFFER);
+        setAggregate(abs, OFFER_BOOKS, fromBooks(o.getBooks()));
+        abs.set(OFFER_MONEY, o.getMoney());
+        return abs;
+    }
+
+    //null lists are not sent (as in the BeanOntology)
+    static AbsAggregate fromBooks(ArrayList<BookInfo> books) {
+        if (books == null)
+            return null;
+        AbsAggregate agg = new AbsAggregate(BasicOntology.SEQUENCE);
+        for (BookInfo bi : books) {
+            agg.add(fromBookInfo(bi));
+        }
+        return agg;
+    }
+
+    static void setAggregate(AbsConcept abs, String slot, AbsAggregate agg) {
+        if (agg != null) {
+            abs.set(slot, agg);
+        }
+    }
+
+    static BookInfo toBookInfo(AbsObject abs) {
+        BookInfo bi = new BookInfo();
+        bi.setBookName(getString(abs, BOOK_INFO_BOOK_NAME));
+        if (abs.getAbsObject(BOOK_INFO_BOOK_ID) != null) {
+            bi.setBookID(getInt(abs, BOOK_INFO_BOOK_ID));
+        }
+        return bi;
+    }
+
+    static Goal toGoal(AbsObject abs) {
+        Goal g = new Goal();
+        g.setBook(toBookInfo(abs.getAbsObject(GOAL_BOOK)));
+        g.setValue(getDouble(abs, GOAL_VALUE));
+        return g;
+    }
+
+    static AgentInfo toAgentInfo(AbsObject abs) {
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(toBooks(abs.getAbsObject(AGENT_INFO_BOOKS)));
+        ArrayList<Goal> goals = new ArrayList<Goal>();
+        AbsAggregate agg = (AbsAggregate) abs.getAbsObject(AGENT_INFO_GOALS);
+        if (agg != null) {
+            for (int i = 0; i < agg.size(); i++) {
+                goals.add(toGoal(agg.get(i)));
+            }
+        }
+        ai.setGoals(goals);
+        ai.setMoney(getLong(abs, AGENT_INFO_MONEY));
+        return ai;
+    }
+
+    static Offer toOffer(AbsObject abs) {
+        Offer o = new Offer();
+        o.setBooks(toBooks(abs.getAbsObject(OFFER_BOOKS)));
+        o.setMoney(getLong(abs, OFFER_MONEY));
+        return o;
+    }
+
+    static ArrayList<BookInfo> toBooks(AbsObject abs) {
+        if (abs == null)
+            return null;
+        AbsAggregate agg = (AbsAggregate) abs;
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>(agg.size());
+        for (int i = 0; i < agg.size(); i++) {
+            books.add(toBookInfo(agg.get(i)));
+        }
+        return books;
+    }
+
+    //the codec may decode the numbers as any Number (e.g. a Long for "5"), the slots are converted here
+    static double getDouble(AbsObject abs, String slot) {
+        AbsPrimitive p = (AbsPrimitive) abs.getAbsObject(slot);
+        return p == null ? 0 : ((Number) p.getObject()).doubleValue();
+    }
+
+    static int getInt(AbsObject abs, String slot) {
+        AbsPrimitive p = (AbsPrimitive) abs.getAbsObject(slot);
+        return p == null ? 0 : ((Number) p.getObject()).intValue();
+    }
+
+    static long getLong(AbsObject abs, String slot) {
+        AbsPrimitive p = (AbsPrimitive) abs.getAbsObject(slot);
+        return p == null ? 0 : ((Number) p.getObject()).longValue();
+    }
+
+    static boolean getBoolean(AbsObject abs, String slot) {
+        AbsPrimitive p = (AbsPrimitive) abs.getAbsObject(slot);
+        return p != null && p.getBoolean();
+    }
+
+    static String getString(AbsObject abs, String slot) {
+        AbsPrimitive p = (AbsPrimitive) abs.getAbsObject(slot);
+        return p == null ? null : p.getString();
+    }
 }
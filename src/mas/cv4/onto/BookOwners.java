@@ -0,0 +1,33 @@
+package mas.cv4.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * The names of the agents which own the book
+ */
+public class BookOwners implements Concept {
+
+    String bookName;
+    ArrayList<String> owners;
+
+    @Slot(mandatory = true)
+    public String getBookName() {
+        return bookName;
+    }
+
+    public void setBookName(String bookName) {
+        this.bookName = bookName;
+    }
+
+    @Slot(mandatory = false)
+    public ArrayList<String> getOwners() {
+        return owners;
+    }
+
+    public void setOwners(ArrayList<String> owners) {
+        this.owners = owners;
+    }
+}
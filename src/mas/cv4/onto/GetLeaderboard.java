@@ -0,0 +1,21 @@
+package mas.cv4.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request for the ranking of the agents by their utility (the best limit of them, all if the limit is not given)
+ */
+public class GetLeaderboard implements AgentAction {
+
+    Integer limit;
+
+    @Slot(mandatory = false)
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+}
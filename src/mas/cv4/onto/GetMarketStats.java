@@ -0,0 +1,21 @@
+package mas.cv4.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request for the prices and the volumes of the traded books (only of the given book, if its name is given)
+ */
+public class GetMarketStats implements AgentAction {
+
+    String bookName;
+
+    @Slot(mandatory = false)
+    public String getBookName() {
+        return bookName;
+    }
+
+    public void setBookName(String bookName) {
+        this.bookName = bookName;
+    }
+}
@@ -0,0 +1,33 @@
+package mas.cv4.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * The agents sorted by their utility (the best first), as of the given version of the market statistics
+ */
+public class Leaderboard implements Concept {
+
+    long version;
+    ArrayList<LeaderboardEntry> entries;
+
+    @Slot(mandatory = true)
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    @Slot(mandatory = false)
+    public ArrayList<LeaderboardEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(ArrayList<LeaderboardEntry> entries) {
+        this.entries = entries;
+    }
+}
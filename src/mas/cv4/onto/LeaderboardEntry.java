@@ -0,0 +1,45 @@
+package mas.cv4.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * The utility of an agent and whether it has all the books from its goals
+ */
+public class LeaderboardEntry implements Concept {
+
+    String agentName;
+    double utility;
+    boolean allGoals;
+
+    @Slot(mandatory = true)
+    public String getAgentName() {
+        return agentName;
+    }
+
+    public void setAgentName(String agentName) {
+        this.agentName = agentName;
+    }
+
+    @Slot(mandatory = true)
+    public double getUtility() {
+        return utility;
+    }
+
+    public void setUtility(double utility) {
+        this.utility = utility;
+    }
+
+    @Slot(mandatory = true)
+    public boolean isAllGoals() {
+        return allGoals;
+    }
+
+    public void setAllGoals(boolean allGoals) {
+        this.allGoals = allGoals;
+    }
+
+    public String toString() {
+        return agentName + " " + utility + (allGoals ? " (all goals)" : "");
+    }
+}
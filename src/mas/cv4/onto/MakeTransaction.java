@@ -17,9 +17,9 @@ public class MakeTransaction implements AgentAction {
     String tradeConversationID;
 
     ArrayList<BookInfo> sendingBooks;
-    double sendingMoney;
+    long sendingMoney;
     ArrayList<BookInfo> receivingBooks;
-    double receivingMoney;
+    long receivingMoney;
 
 
     @Slot(mandatory = true)
@@ -59,11 +59,11 @@ public class MakeTransaction implements AgentAction {
     }
 
     @Slot(mandatory = true)
-    public double getSendingMoney() {
+    public long getSendingMoney() {
         return sendingMoney;
     }
 
-    public void setSendingMoney(double money) {
+    public void setSendingMoney(long money) {
         this.sendingMoney = money;
     }
 
@@ -77,11 +77,11 @@ public class MakeTransaction implements AgentAction {
     }
 
     @Slot(mandatory = true)
-    public double getReceivingMoney() {
+    public long getReceivingMoney() {
         return receivingMoney;
     }
 
-    public void setReceivingMoney(double receivingMoney) {
+    public void setReceivingMoney(long receivingMoney) {
         this.receivingMoney = receivingMoney;
     }
 
@@ -103,8 +103,8 @@ public class MakeTransaction implements AgentAction {
             str += receivingBooks.get(i);
         }
 
-        str += "\nsendingMoney: " + sendingMoney;
-        str += "\nreceivingMoney: " + receivingMoney;
+        str += "\nsendingMoney: " + Money.format(sendingMoney);
+        str += "\nreceivingMoney: " + Money.format(receivingMoney);
 
         return str;
     }
@@ -0,0 +1,44 @@
+package mas.cv4.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * The statistics of the market - the number of transactions and the statistics of the traded books, as of the given
+ * version
+ */
+public class MarketStats implements Concept {
+
+    long version;
+    long trades;
+    ArrayList<TitleStats> titles;
+
+    @Slot(mandatory = true)
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    @Slot(mandatory = true)
+    public long getTrades() {
+        return trades;
+    }
+
+    public void setTrades(long trades) {
+        this.trades = trades;
+    }
+
+    @Slot(mandatory = false)
+    public ArrayList<TitleStats> getTitles() {
+        return titles;
+    }
+
+    public void setTitles(ArrayList<TitleStats> titles) {
+        this.titles = titles;
+    }
+}
@@ -0,0 +1,28 @@
+package mas.cv4.onto;
+
+/**
+ * The money is counted in cents (long) - in AgentInfo, Offer and MakeTransaction, in the messages (integer slots) and
+ * in the settlement, so the legs of a transaction are compared and the money is added exactly.
+ *
+ * The prices computed by the strategies, the values of the goals and the utilities stay doubles in whole units, they
+ * are rounded to cents when they become money (in the offers).
+ */
+public class Money {
+
+    public static final long SCALE = 100;
+
+    //the amount in whole units rounded to cents
+    public static long fromDouble(double amount) {
+        return Math.round(amount * SCALE);
+    }
+
+    //the money in whole units
+    public static double toDouble(long money) {
+        return (double) money / SCALE;
+    }
+
+    public static String format(long money) {
+        long abs = Math.abs(money);
+        return (money < 0 ? "-" : "") + abs / SCALE + "." + String.format("%02d", abs % SCALE);
+    }
+}
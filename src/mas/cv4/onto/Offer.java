@@ -14,14 +14,14 @@ import java.util.ArrayList;
 public class Offer implements Concept {
 
     ArrayList<BookInfo> books;
-    double money;
+    long money;
 
     @Slot(mandatory = true)
-    public double getMoney() {
+    public long getMoney() {
         return money;
     }
 
-    public void setMoney(double money) {
+    public void setMoney(long money) {
         this.money = money;
     }
 
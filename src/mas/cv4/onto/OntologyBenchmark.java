@@ -0,0 +1,112 @@
+package mas.cv4.onto;
+
+import jade.content.ContentElement;
+import jade.content.ContentManager;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.BeanOntology;
+import jade.content.onto.Ontology;
+import jade.content.onto.basic.Action;
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+
+/**
+ * Compares the BookOntology with the BeanOntology it replaced - the time to create the ontology and the time to encode
+ * and decode the messages sent during the trading (a ChooseFrom with several offers and a MakeTransaction).
+ *
+ * Arguments: number of iterations (default 20000).
+ */
+public class OntologyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        long start = System.nanoTime();
+        BeanOntology bean = new BeanOntology("book-ontology");
+        bean.add("mas.cv4.onto");
+        long beanStartup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Ontology generated = BookOntology.getInstance();
+        long staticStartup = System.nanoTime() - start;
+
+        System.out.printf("%20s %10s %10s\n", "", "bean", "static");
+        System.out.printf("%20s %8.2f ms %7.2f ms\n", "startup:", beanStartup / 1e6, staticStartup / 1e6);
+
+        ContentElement chooseFrom = createChooseFrom();
+        ContentElement transaction = new Action(new AID("environment", AID.ISLOCALNAME), createTransaction());
+
+        System.out.printf("%20s %8.2f us %7.2f us\n", "ChooseFrom:", measure(bean, chooseFrom, iterations),
+                measure(generated, chooseFrom, iterations));
+        System.out.printf("%20s %8.2f us %7.2f us\n", "MakeTransaction:", measure(bean, transaction, iterations),
+                measure(generated, transaction, iterations));
+    }
+
+    //the average time (us) to fill and extract the content, after a warm-up
+    static double measure(Ontology onto, ContentElement ce, int iterations) throws Exception {
+
+        ContentManager cm = new ContentManager();
+        SLCodec codec = new SLCodec();
+        cm.registerLanguage(codec);
+        cm.registerOntology(onto);
+
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setLanguage(codec.getName());
+        msg.setOntology(onto.getName());
+
+        for (int i = 0; i < iterations / 10; i++) {
+            cm.fillContent(msg, ce);
+            cm.extractContent(msg);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            cm.fillContent(msg, ce);
+            cm.extractContent(msg);
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+
+    static ArrayList<BookInfo> books(String... names) {
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        for (int i = 0; i < names.length; i++) {
+            BookInfo bi = new BookInfo();
+            bi.setBookName(names[i]);
+            bi.setBookID(i + 1);
+            books.add(bi);
+        }
+        return books;
+    }
+
+    static ChooseFrom createChooseFrom() {
+        ArrayList<Offer> offers = new ArrayList<Offer>();
+        String[] titles = {"The Goldfinch", "Grain Brain", "Shadow Spell"};
+        for (int i = 0; i <= titles.length; i++) {
+            Offer o = new Offer();
+            o.setMoney(Money.fromDouble(50 + 10 * i));
+            if (i > 0) {
+                o.setBooks(books(titles[i - 1]));
+            }
+            offers.add(o);
+        }
+
+        ChooseFrom cf = new ChooseFrom();
+        cf.setOffers(offers);
+        cf.setWillSell(books("Sycamore Row"));
+        return cf;
+    }
+
+    static MakeTransaction createTransaction() {
+        MakeTransaction mt = new MakeTransaction();
+        mt.setSenderName("trader1@platform");
+        mt.setReceiverName("trader2@platform");
+        mt.setTradeConversationID("C123456_789");
+        mt.setSendingBooks(books("The Goldfinch"));
+        mt.setSendingMoney(Money.fromDouble(35.5));
+        mt.setReceivingBooks(books("Sycamore Row"));
+        mt.setReceivingMoney(0);
+        return mt;
+    }
+}
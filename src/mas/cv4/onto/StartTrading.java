@@ -1,11 +1,24 @@
 package mas.cv4.onto;
 
 import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
 
 /**
  * Created by Martin Pilat on 16.4.14.
  *
- * Information for the agents to start trading
+ * Information for the agents to start trading. The environment sends each trader its initial books, goals and money,
+ * so the trader does not have to ask for them by GetMyInfo.
  */
 public class StartTrading implements AgentAction {
+
+    AgentInfo agentInfo;
+
+    @Slot(mandatory = false)
+    public AgentInfo getAgentInfo() {
+        return agentInfo;
+    }
+
+    public void setAgentInfo(AgentInfo agentInfo) {
+        this.agentInfo = agentInfo;
+    }
 }
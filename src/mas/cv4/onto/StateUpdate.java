@@ -0,0 +1,35 @@
+package mas.cv4.onto;
+
+import jade.content.Predicate;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * The environment sends it to its replicas - the states of the agents changed by the transactions, the state of the
+ * environment has the given version after the change. An update without any states only tells the replica the
+ * environment is still there (and its version).
+ */
+public class StateUpdate implements Predicate {
+
+    long version;
+    ArrayList<AgentState> states;
+
+    @Slot(mandatory = true)
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    @Slot(mandatory = false)
+    public ArrayList<AgentState> getStates() {
+        return states;
+    }
+
+    public void setStates(ArrayList<AgentState> states) {
+        this.states = states;
+    }
+}
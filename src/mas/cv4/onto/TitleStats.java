@@ -0,0 +1,56 @@
+package mas.cv4.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * The statistics of the trades with a book - the number of traded copies, the last price and the average price
+ * weighted by the volume (only the trades in which the book was bought for money alone have a price)
+ */
+public class TitleStats implements Concept {
+
+    String bookName;
+    long volume;
+    double lastPrice;
+    double averagePrice;
+
+    @Slot(mandatory = true)
+    public String getBookName() {
+        return bookName;
+    }
+
+    public void setBookName(String bookName) {
+        this.bookName = bookName;
+    }
+
+    @Slot(mandatory = true)
+    public long getVolume() {
+        return volume;
+    }
+
+    public void setVolume(long volume) {
+        this.volume = volume;
+    }
+
+    @Slot(mandatory = true)
+    public double getLastPrice() {
+        return lastPrice;
+    }
+
+    public void setLastPrice(double lastPrice) {
+        this.lastPrice = lastPrice;
+    }
+
+    @Slot(mandatory = true)
+    public double getAveragePrice() {
+        return averagePrice;
+    }
+
+    public void setAveragePrice(double averagePrice) {
+        this.averagePrice = averagePrice;
+    }
+
+    public String toString() {
+        return bookName + ": " + volume + " traded, last price " + lastPrice + ", average price " + averagePrice;
+    }
+}
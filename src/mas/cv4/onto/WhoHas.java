@@ -0,0 +1,21 @@
+package mas.cv4.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request for the names of the agents which own the book (the answer is BookOwners)
+ */
+public class WhoHas implements AgentAction {
+
+    String bookName;
+
+    @Slot(mandatory = true)
+    public String getBookName() {
+        return bookName;
+    }
+
+    public void setBookName(String bookName) {
+        this.bookName = bookName;
+    }
+}